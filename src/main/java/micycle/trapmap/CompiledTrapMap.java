@@ -0,0 +1,359 @@
+package micycle.trapmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import micycle.trapmap.graph.Leaf;
+import micycle.trapmap.graph.Node;
+import micycle.trapmap.graph.XNode;
+import micycle.trapmap.graph.YNode;
+import processing.core.PVector;
+
+/**
+ * A read-only, compact form of a {@link TrapMap}'s search structure, for fast
+ * point location.
+ * <p>
+ * The DAG of x- and y-nodes is flattened into a single int array of fixed-size
+ * node records (holding the node's children and its point or segment
+ * coordinates), so a query follows array indices rather than object
+ * references. The order in which nodes are laid out in the array determines
+ * how many cache lines a query touches; see {@link Layout}.
+ * <p>
+ * Queries give exactly the same results as the map's own.
+ *
+ * @author Michael Carleton
+ * @see TrapMap#compile(Layout)
+ */
+public final class CompiledTrapMap implements FaceLocator {
+
+	/**
+	 * The order in which the nodes of the search structure are laid out in memory.
+	 */
+	public enum Layout {
+		/**
+		 * Level by level from the root: the top levels of the DAG are packed together,
+		 * but deeper levels of a query's path are far apart.
+		 */
+		BREADTH_FIRST,
+		/**
+		 * Depth-first preorder: a node's left subgraph follows it directly, but its
+		 * right subgraph may be far away.
+		 */
+		DEPTH_FIRST,
+		/**
+		 * A cache-oblivious (van Emde Boas) layout: the top half of the levels of the
+		 * DAG is laid out recursively, followed by each of the subgraphs hanging below
+		 * it, also laid out recursively. Any path through the DAG then crosses few
+		 * blocks, of whatever size (cache line or page).
+		 */
+		VAN_EMDE_BOAS
+	}
+
+	static final int STRIDE = 8; // ints per node record (two records per 64-byte cache line)
+	static final int KIND = 0; // X_NODE or Y_NODE
+	static final int LEFT = 1; // child reference: left of an x-node, or above a y-node
+	static final int RIGHT = 2; // child reference: right of an x-node, or below a y-node
+	static final int COORDS = 3; // float bits: (x, y) of an x-node; (lx, ly, rx, ry) of a y-node
+	static final int X_NODE = 0;
+	static final int Y_NODE = 1;
+
+	/*
+	 * Child references are the index of the child's record when non-negative, or
+	 * the bitwise complement of the index of a leaf.
+	 */
+	private final int[] nodes;
+	private final int root;
+	private final Trapezoid[] leaves;
+	private final int[] leafFaces;
+
+	private final float minX, minY, maxX, maxY;
+
+	CompiledTrapMap(Node root, float minX, float minY, float maxX, float maxY, Layout layout) {
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+
+		final List<Node> order = order(root, layout);
+		final Map<Node, Integer> index = new IdentityHashMap<>(order.size());
+		for (Node node : order) {
+			index.put(node, index.size());
+		}
+		// leaves are numbered in the order they are first referenced; a trapezoid may
+		// be held by several leaf nodes, which are merged
+		final Map<Trapezoid, Integer> leafIndex = new IdentityHashMap<>();
+		final List<Trapezoid> leafList = new ArrayList<>();
+
+		nodes = new int[order.size() * STRIDE];
+		for (Node node : order) {
+			final int o = index.get(node) * STRIDE;
+			if (node instanceof XNode) {
+				final PVector p = ((XNode) node).getData();
+				nodes[o + KIND] = X_NODE;
+				nodes[o + COORDS] = Float.floatToRawIntBits(p.x);
+				nodes[o + COORDS + 1] = Float.floatToRawIntBits(p.y);
+			} else {
+				final Segment s = ((YNode) node).getData();
+				nodes[o + KIND] = Y_NODE;
+				nodes[o + COORDS] = Float.floatToRawIntBits(s.getLeftPoint().x);
+				nodes[o + COORDS + 1] = Float.floatToRawIntBits(s.getLeftPoint().y);
+				nodes[o + COORDS + 2] = Float.floatToRawIntBits(s.getRightPoint().x);
+				nodes[o + COORDS + 3] = Float.floatToRawIntBits(s.getRightPoint().y);
+			}
+			nodes[o + LEFT] = reference(node.getLeftChildNode(), index, leafIndex, leafList);
+			nodes[o + RIGHT] = reference(node.getRightChildNode(), index, leafIndex, leafList);
+		}
+		this.root = reference(root, index, leafIndex, leafList);
+
+		leaves = leafList.toArray(new Trapezoid[0]);
+		leafFaces = new int[leaves.length];
+		for (int i = 0; i < leaves.length; i++) {
+			leafFaces[i] = leaves[i].getFaceId();
+		}
+	}
+
+	/**
+	 * Locates the trapezoid which contains the query point. If the point does not
+	 * lie inside any trapezoid, the nearest trapezoid to the point is returned.
+	 *
+	 * @see TrapMap#findNearestTrapezoid(double, double)
+	 */
+	public Trapezoid findNearestTrapezoid(double x, double y) {
+		return leaves[locate(x, y)];
+	}
+
+	/**
+	 * Locates the trapezoid which contains the query point, or null if the point
+	 * lies outside the map.
+	 *
+	 * @see TrapMap#findContainingTrapezoid(double, double)
+	 */
+	public Trapezoid findContainingTrapezoid(double x, double y) {
+		return inBounds(x, y) ? leaves[locate(x, y)] : null;
+	}
+
+	/**
+	 * Locates the face which contains the query point, returning its integer ID.
+	 *
+	 * @return ID of the face which contains the query point; otherwise -1 if no
+	 *         face contains the point
+	 * @see TrapMap#findContainingFace(double, double)
+	 */
+	@Override
+	public int findContainingFace(double x, double y) {
+		return inBounds(x, y) ? leafFaces[locate(x, y)] : -1;
+	}
+
+	/**
+	 * Locates the faces containing each of a batch of points, in the order of a
+	 * Hilbert curve (for cache locality).
+	 *
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the ID of the face containing each point (-1 where no face contains
+	 *         it)
+	 * @see TrapMap#findContainingFaces(double[], boolean)
+	 */
+	@Override
+	public int[] findContainingFaces(double[] coords) {
+		final int[] faces = new int[coords.length / 2];
+		for (int i : HilbertCurve.sort(coords, minX, minY, maxX, maxY)) {
+			faces[i] = findContainingFace(coords[2 * i], coords[2 * i + 1]);
+		}
+		return faces;
+	}
+
+	/**
+	 * Copies this structure, along with the geometry and neighbors of its
+	 * trapezoids, into direct (off-heap) memory.
+	 *
+	 * @return an off-heap copy of this structure, which must be
+	 *         {@link OffHeapTrapMap#close() closed} to release its memory promptly
+	 */
+	public OffHeapTrapMap toOffHeap() {
+		return new OffHeapTrapMap(nodes, root, leaves, leafFaces, minX, minY, maxX, maxY);
+	}
+
+	/**
+	 * @return the number of nodes (excluding leaves) in the search structure
+	 */
+	public int getNodeCount() {
+		return nodes.length / STRIDE;
+	}
+
+	/**
+	 * @return the number of distinct trapezoids (including point-like ones) in the
+	 *         search structure
+	 */
+	public int getLeafCount() {
+		return leaves.length;
+	}
+
+	/**
+	 * Descends the search structure, making exactly the comparisons that
+	 * {@link TrapMap#findNearestTrapezoid(double, double)} makes.
+	 *
+	 * @return index of the leaf reached
+	 */
+	private int locate(double x, double y) {
+		x = Math.min(Math.max(x, minX), maxX);
+		y = Math.min(Math.max(y, minY), maxY);
+		final int[] nodes = this.nodes;
+		int ref = root;
+		while (ref >= 0) {
+			final int o = ref * STRIDE;
+			final boolean left;
+			if (nodes[o + KIND] == X_NODE) {
+				final float px = Float.intBitsToFloat(nodes[o + COORDS]);
+				final float py = Float.intBitsToFloat(nodes[o + COORDS + 1]);
+				left = x < px || (x == px && y < py);
+			} else {
+				final float lx = Float.intBitsToFloat(nodes[o + COORDS]);
+				final float ly = Float.intBitsToFloat(nodes[o + COORDS + 1]);
+				final float rx = Float.intBitsToFloat(nodes[o + COORDS + 2]);
+				final float ry = Float.intBitsToFloat(nodes[o + COORDS + 3]);
+				left = (x - lx) * ry + (rx - x) * ly < y * (rx - lx); // is the point above the segment?
+			}
+			ref = nodes[o + (left ? LEFT : RIGHT)];
+		}
+		return ~ref;
+	}
+
+	private boolean inBounds(double x, double y) {
+		return x >= minX && x <= maxX && y >= minY && y <= maxY;
+	}
+
+	private static int reference(Node node, Map<Node, Integer> index, Map<Trapezoid, Integer> leafIndex, List<Trapezoid> leafList) {
+		if (node instanceof Leaf) {
+			final Trapezoid t = ((Leaf) node).getData();
+			Integer i = leafIndex.get(t);
+			if (i == null) {
+				i = leafList.size();
+				leafIndex.put(t, i);
+				leafList.add(t);
+			}
+			return ~i;
+		}
+		return index.get(node);
+	}
+
+	/**
+	 * @return the internal (non-leaf) nodes reachable from the root, in layout
+	 *         order
+	 */
+	static List<Node> order(Node root, Layout layout) {
+		final List<Node> order = new ArrayList<>();
+		if (root instanceof Leaf) {
+			return order;
+		}
+		final Set<Node> placed = Collections.newSetFromMap(new IdentityHashMap<>());
+		switch (layout) {
+			case BREADTH_FIRST :
+				final ArrayDeque<Node> queue = new ArrayDeque<>();
+				queue.add(root);
+				placed.add(root);
+				while (!queue.isEmpty()) {
+					final Node node = queue.poll();
+					order.add(node);
+					for (Node child : children(node)) {
+						if (!(child instanceof Leaf) && placed.add(child)) {
+							queue.add(child);
+						}
+					}
+				}
+				break;
+			case DEPTH_FIRST :
+				depthFirst(root, placed, order);
+				break;
+			case VAN_EMDE_BOAS :
+			default :
+				vanEmdeBoas(Collections.singletonList(root), height(root, new IdentityHashMap<>()), placed, order);
+				// nodes only reached through already-placed nodes are placed last
+				final List<Node> all = new ArrayList<>();
+				depthFirst(root, Collections.newSetFromMap(new IdentityHashMap<>()), all);
+				for (Node node : all) {
+					if (placed.add(node)) {
+						order.add(node);
+					}
+				}
+				break;
+		}
+		return order;
+	}
+
+	private static void depthFirst(Node root, Set<Node> placed, List<Node> order) {
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Node node = stack.pop();
+			if (node instanceof Leaf || !placed.add(node)) {
+				continue;
+			}
+			order.add(node);
+			stack.push(node.getRightChildNode());
+			stack.push(node.getLeftChildNode());
+		}
+	}
+
+	/**
+	 * Lays out the nodes within <code>height</code> levels of the given roots: the
+	 * top half of the levels first, then each subgraph rooted just below them.
+	 * Nodes already placed (reached by another path) are not placed again.
+	 */
+	private static void vanEmdeBoas(List<Node> roots, int height, Set<Node> placed, List<Node> order) {
+		if (height <= 1) {
+			for (Node node : roots) {
+				if (placed.add(node)) {
+					order.add(node);
+				}
+			}
+			return;
+		}
+		final int top = height / 2;
+		vanEmdeBoas(roots, top, placed, order);
+
+		// find the internal nodes exactly top levels below the roots
+		final Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<Node> level = roots;
+		for (int depth = 0; depth < top; depth++) {
+			final List<Node> next = new ArrayList<>();
+			for (Node node : level) {
+				for (Node child : children(node)) {
+					if (!(child instanceof Leaf) && seen.add(child)) {
+						next.add(child);
+					}
+				}
+			}
+			level = next;
+		}
+		for (Node node : level) {
+			if (!placed.contains(node)) {
+				vanEmdeBoas(Collections.singletonList(node), height - top, placed, order);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of internal nodes on the longest path from the node
+	 */
+	private static int height(Node node, Map<Node, Integer> memo) {
+		if (node instanceof Leaf) {
+			return 0;
+		}
+		final Integer known = memo.get(node);
+		if (known != null) {
+			return known;
+		}
+		final int h = 1 + Math.max(height(node.getLeftChildNode(), memo), height(node.getRightChildNode(), memo));
+		memo.put(node, h);
+		return h;
+	}
+
+	private static Node[] children(Node node) {
+		return new Node[] { node.getLeftChildNode(), node.getRightChildNode() };
+	}
+}
@@ -0,0 +1,541 @@
+package micycle.trapmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import processing.core.PVector;
+
+/**
+ * Finds the pairs of segments that cross, with the semantics of
+ * {@link Segment#crosses(Segment)}, using a Bentley–Ottmann plane sweep in
+ * O((n+k) log n) time for n segments and k crossing pairs.
+ * <p>
+ * A vertical line sweeps the plane from left to right, stopping at segment
+ * endpoints and at the crossing points discovered so far (events are ordered
+ * like points in the trapezoidal map: by x, then y). The sweep status is the
+ * set of segments stabbed by the line, ordered bottom to top. Since two
+ * segments must become adjacent in the status before they cross, only
+ * neighbours need to be tested. The status is a treap whose nodes are reached
+ * through handles held by each segment, so removing a segment and swapping two
+ * crossing segments never depend on (numerically fragile) comparisons.
+ * <p>
+ * Degenerate configurations are handled explicitly: segments passing through
+ * an event point (such as an endpoint lying in the interior of another
+ * segment) are gathered by walking outward from the event, and vertical
+ * segments, which are not inserted into the status, query the range of status
+ * segments that they span.
+ *
+ * @author Michael Carleton
+ */
+final class CrossingSweep {
+
+	private static final int END = 0; // event types, processed in this order at a point
+	private static final int CROSS = 1;
+	private static final int START = 2;
+
+	private final PriorityQueue<Event> events;
+	private final Set<Long> pending = new HashSet<>(); // pairs with a scheduled swap
+	private final Set<Long> reported = new HashSet<>();
+	private final List<Segment[]> crossings = new ArrayList<>();
+	private final List<Seg> verticals = new ArrayList<>(); // vertical segments at the current sweep x
+	private double verticalsX = Double.NaN;
+
+	private final Random priorities = new Random(0x5EEDL);
+	private StatusNode root;
+
+	private CrossingSweep(Collection<Segment> segments) {
+		events = new PriorityQueue<>(Math.max(1, segments.size() * 2));
+		int id = 0;
+		for (Segment segment : segments) {
+			final Seg s = new Seg(segment, id++);
+			if (s.lx == s.rx && s.ly == s.ry) {
+				continue; // point-like
+			}
+			events.add(new Event(s.lx, s.ly, START, s, null));
+			if (!s.vertical) {
+				events.add(new Event(s.rx, s.ry, END, s, null));
+			}
+		}
+	}
+
+	/**
+	 * Finds every pair of segments that cross one another (see
+	 * {@link Segment#crosses(Segment)}): segments whose interiors intersect, or
+	 * where an endpoint of one lies in the interior of the other. Segments that
+	 * merely share an endpoint are not reported.
+	 *
+	 * @return list of crossing pairs, each given as a two-element array
+	 */
+	static List<Segment[]> findCrossings(Collection<Segment> segments) {
+		final CrossingSweep sweep = new CrossingSweep(segments);
+		sweep.run();
+		return sweep.crossings;
+	}
+
+	/**
+	 * Splits crossing segments at their intersection points, so that the returned
+	 * segments meet only at endpoints. Crossing pairs are found with
+	 * {@link #findCrossings(Collection)}; collinear overlapping segments are split
+	 * at each other's endpoints and their common pieces merged. Pieces keep the
+	 * face(s) of the segment they came from.
+	 * <p>
+	 * Intersection points are rounded to float precision, so in rare cases a
+	 * piece may pass marginally on the other side of a nearby vertex; the
+	 * noding is not iterated.
+	 */
+	static Collection<Segment> node(Collection<Segment> segments) {
+		final List<Segment[]> crossings = findCrossings(segments);
+		if (crossings.isEmpty()) {
+			return segments;
+		}
+		final Map<Segment, List<PVector>> splits = new IdentityHashMap<>();
+		for (Segment[] pair : crossings) {
+			addSplits(pair[0], pair[1], splits);
+		}
+
+		final Map<Segment, Segment> noded = new LinkedHashMap<>(segments.size() + crossings.size() * 4);
+		for (Segment s : segments) {
+			final List<PVector> points = splits.get(s);
+			if (points == null) {
+				merge(noded, s);
+				continue;
+			}
+			points.add(s.getLeftPoint());
+			points.add(s.getRightPoint());
+			points.sort((a, b) -> a.x != b.x ? Float.compare(a.x, b.x) : Float.compare(a.y, b.y));
+			for (int i = 1; i < points.size(); i++) {
+				final PVector a = points.get(i - 1);
+				final PVector b = points.get(i);
+				if (a.x != b.x || a.y != b.y) {
+					final Segment piece = new Segment(a, b, s.faceA, s.faceIdA);
+					piece.faceB = s.faceB;
+					piece.faceIdB = s.faceIdB;
+					merge(noded, piece);
+				}
+			}
+		}
+		return noded.values();
+	}
+
+	private void run() {
+		while (!events.isEmpty()) {
+			final Event e = events.poll();
+			if (e.x != verticalsX) {
+				verticals.clear();
+				verticalsX = e.x;
+			}
+			switch (e.type) {
+				case START:
+					if (e.a.vertical) {
+						startVertical(e.a);
+					} else {
+						start(e.a, e.x, e.y);
+					}
+					break;
+				case END:
+					end(e.a, e.x, e.y);
+					break;
+				default:
+					cross(e.a, e.b, e.x);
+					break;
+			}
+		}
+	}
+
+	private void start(Seg s, double x, double y) {
+		insert(s, x, y);
+		final StatusNode below = predecessor(s.node);
+		final StatusNode above = successor(s.node);
+		if (below != null) {
+			check(below.seg, s, x);
+		}
+		if (above != null) {
+			check(s, above.seg, x);
+		}
+		testThrough(s, x, y);
+		for (Seg v : verticals) {
+			test(v, s);
+		}
+	}
+
+	private void end(Seg s, double x, double y) {
+		testThrough(s, x, y);
+		final StatusNode below = predecessor(s.node);
+		final StatusNode above = successor(s.node);
+		remove(s.node);
+		if (below != null && above != null) {
+			check(below.seg, above.seg, x);
+		}
+	}
+
+	private void cross(Seg lower, Seg upper, double x) {
+		pending.remove(pairKey(lower, upper));
+		// only swap if the pair is still adjacent and out of order (it may have been
+		// separated by a segment crossing at the same point, in which case the swap is
+		// rescheduled once they are adjacent again)
+		if (successor(lower.node) != upper.node) {
+			return;
+		}
+		final StatusNode lowerNode = lower.node;
+		final StatusNode upperNode = upper.node;
+		lowerNode.seg = upper;
+		upperNode.seg = lower;
+		upper.node = lowerNode;
+		lower.node = upperNode;
+
+		final StatusNode below = predecessor(lowerNode);
+		final StatusNode above = successor(upperNode);
+		if (below != null) {
+			check(below.seg, upper, x);
+		}
+		if (above != null) {
+			check(lower, above.seg, x);
+		}
+	}
+
+	private void startVertical(Seg v) {
+		// test status segments whose position on the sweep line falls within the span
+		// of the vertical segment
+		final double tol = tolerance(v.lx, v.ry);
+		StatusNode n = lowerBound(v.lx, v.ly - tol);
+		while (n != null && n.seg.yAt(v.lx) <= v.ry + tol) {
+			test(v, n.seg);
+			n = successor(n);
+		}
+		for (Seg other : verticals) {
+			test(v, other);
+		}
+		verticals.add(v);
+	}
+
+	/**
+	 * Tests neighbours of <code>s</code> in the status beyond its immediate
+	 * neighbours that also pass through (x, y).
+	 */
+	private void testThrough(Seg s, double x, double y) {
+		final double tol = tolerance(x, y);
+		StatusNode n = predecessor(s.node);
+		while (n != null && Math.abs(n.seg.yAt(x) - y) <= tol) {
+			test(n.seg, s);
+			n = predecessor(n);
+		}
+		n = successor(s.node);
+		while (n != null && Math.abs(n.seg.yAt(x) - y) <= tol) {
+			test(s, n.seg);
+			n = successor(n);
+		}
+	}
+
+	/**
+	 * Tests a pair of adjacent status segments (lower below upper) for crossing
+	 * and, if they are going to swap places to the right of the sweep line,
+	 * schedules the swap.
+	 */
+	private void check(Seg lower, Seg upper, double x) {
+		test(lower, upper);
+		if (lower.slope > upper.slope) { // converging
+			double cx = (upper.intercept - lower.intercept) / (lower.slope - upper.slope);
+			if (cx < Math.min(lower.rx, upper.rx) && pending.add(pairKey(lower, upper))) {
+				cx = Math.max(cx, x); // never schedule behind the sweep line
+				events.add(new Event(cx, lower.yAt(cx), CROSS, lower, upper));
+			}
+		}
+	}
+
+	private void test(Seg a, Seg b) {
+		if (a == b) {
+			return;
+		}
+		if (a.segment.crosses(b.segment) && reported.add(pairKey(a, b))) {
+			crossings.add(new Segment[] { a.segment, b.segment });
+		}
+	}
+
+	private static long pairKey(Seg a, Seg b) {
+		return a.id < b.id ? ((long) a.id << 32) | b.id : ((long) b.id << 32) | a.id;
+	}
+
+	private static double tolerance(double x, double y) {
+		return 4 * Math.ulp((float) Math.max(Math.abs(x), Math.abs(y)));
+	}
+
+	private static void addSplits(Segment a, Segment b, Map<Segment, List<PVector>> splits) {
+		final PVector al = a.getLeftPoint(), ar = a.getRightPoint();
+		final PVector bl = b.getLeftPoint(), br = b.getRightPoint();
+		final double adx = ar.x - al.x, ady = ar.y - al.y;
+		final double bdx = br.x - bl.x, bdy = br.y - bl.y;
+		final double d = adx * bdy - ady * bdx;
+		if (d != 0) {
+			final double t = ((bl.x - al.x) * bdy - (bl.y - al.y) * bdx) / d; // parameter along a
+			final double u = ((bl.x - al.x) * ady - (bl.y - al.y) * adx) / d; // parameter along b
+			final PVector p;
+			if (Math.abs(u) < 1e-9) {
+				p = bl; // endpoint of b in the interior of a
+			} else if (Math.abs(u - 1) < 1e-9) {
+				p = br;
+			} else if (Math.abs(t) < 1e-9) {
+				p = al;
+			} else if (Math.abs(t - 1) < 1e-9) {
+				p = ar;
+			} else {
+				// keep crossings on axis-aligned segments exactly on them
+				final double x = adx == 0 ? al.x : bdx == 0 ? bl.x : al.x + t * adx;
+				final double y = ady == 0 ? al.y : bdy == 0 ? bl.y : al.y + t * ady;
+				p = new PVector((float) x, (float) y);
+			}
+			addSplit(a, p, splits);
+			addSplit(b, p, splits);
+		} else { // collinear: split each segment at the other's endpoints
+			addSplit(a, bl, splits);
+			addSplit(a, br, splits);
+			addSplit(b, al, splits);
+			addSplit(b, ar, splits);
+		}
+	}
+
+	/**
+	 * Records a split point of a segment, if the point lies strictly between the
+	 * segment's endpoints (in the lexicographic order of the trapezoidal map).
+	 */
+	private static void addSplit(Segment s, PVector p, Map<Segment, List<PVector>> splits) {
+		final PVector l = s.getLeftPoint(), r = s.getRightPoint();
+		final boolean afterLeft = p.x > l.x || (p.x == l.x && p.y > l.y);
+		final boolean beforeRight = p.x < r.x || (p.x == r.x && p.y < r.y);
+		if (afterLeft && beforeRight) {
+			splits.computeIfAbsent(s, k -> new ArrayList<>(2)).add(p);
+		}
+	}
+
+	private static void merge(Map<Segment, Segment> noded, Segment piece) {
+		final Segment existing = noded.putIfAbsent(piece, piece);
+		if (existing != null && existing != piece && piece.faceIdA != -1 && piece.faceIdA != existing.faceIdA
+				&& existing.faceIdB == -1) { // overlapping pieces of different faces
+			existing.faceB = piece.faceA;
+			existing.faceIdB = piece.faceIdA;
+		}
+	}
+
+	// ---- sweep status (treap) ----
+
+	/**
+	 * Inserts a segment that starts at (x, y) into the status.
+	 */
+	private void insert(Seg s, double x, double y) {
+		final StatusNode n = new StatusNode(s, priorities.nextInt());
+		s.node = n;
+		if (root == null) {
+			root = n;
+			return;
+		}
+		final double tol = tolerance(x, y);
+		StatusNode current = root;
+		while (true) {
+			final Seg other = current.seg;
+			final double otherY = other.yAt(x);
+			final boolean below;
+			if (Math.abs(y - otherY) > tol) {
+				below = y < otherY;
+			} else if (s.slope != other.slope) { // both pass through the event point
+				below = s.slope < other.slope;
+			} else {
+				below = s.id < other.id;
+			}
+			if (below) {
+				if (current.left == null) {
+					current.left = n;
+					break;
+				}
+				current = current.left;
+			} else {
+				if (current.right == null) {
+					current.right = n;
+					break;
+				}
+				current = current.right;
+			}
+		}
+		n.parent = current;
+		while (n.parent != null && n.priority > n.parent.priority) {
+			rotateUp(n);
+		}
+	}
+
+	private void remove(StatusNode n) {
+		while (n.left != null || n.right != null) {
+			final StatusNode child;
+			if (n.left == null) {
+				child = n.right;
+			} else if (n.right == null) {
+				child = n.left;
+			} else {
+				child = n.left.priority > n.right.priority ? n.left : n.right;
+			}
+			rotateUp(child);
+		}
+		if (n.parent == null) {
+			root = null;
+		} else if (n.parent.left == n) {
+			n.parent.left = null;
+		} else {
+			n.parent.right = null;
+		}
+		n.parent = null;
+	}
+
+	private void rotateUp(StatusNode n) {
+		final StatusNode p = n.parent;
+		final StatusNode g = p.parent;
+		if (p.left == n) {
+			p.left = n.right;
+			if (n.right != null) {
+				n.right.parent = p;
+			}
+			n.right = p;
+		} else {
+			p.right = n.left;
+			if (n.left != null) {
+				n.left.parent = p;
+			}
+			n.left = p;
+		}
+		p.parent = n;
+		n.parent = g;
+		if (g == null) {
+			root = n;
+		} else if (g.left == p) {
+			g.left = n;
+		} else {
+			g.right = n;
+		}
+	}
+
+	/**
+	 * @return the lowest status node whose segment lies at or above y at the given
+	 *         x
+	 */
+	private StatusNode lowerBound(double x, double y) {
+		StatusNode best = null;
+		StatusNode current = root;
+		while (current != null) {
+			if (current.seg.yAt(x) >= y) {
+				best = current;
+				current = current.left;
+			} else {
+				current = current.right;
+			}
+		}
+		return best;
+	}
+
+	private static StatusNode successor(StatusNode n) {
+		if (n.right != null) {
+			n = n.right;
+			while (n.left != null) {
+				n = n.left;
+			}
+			return n;
+		}
+		while (n.parent != null && n.parent.right == n) {
+			n = n.parent;
+		}
+		return n.parent;
+	}
+
+	private static StatusNode predecessor(StatusNode n) {
+		if (n.left != null) {
+			n = n.left;
+			while (n.right != null) {
+				n = n.right;
+			}
+			return n;
+		}
+		while (n.parent != null && n.parent.left == n) {
+			n = n.parent;
+		}
+		return n.parent;
+	}
+
+	private static final class StatusNode {
+
+		Seg seg;
+		final int priority;
+		StatusNode left, right, parent;
+
+		StatusNode(Seg seg, int priority) {
+			this.seg = seg;
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * A segment, with its coordinates in double precision.
+	 */
+	private static final class Seg {
+
+		final Segment segment;
+		final int id;
+		final double lx, ly, rx, ry;
+		final boolean vertical;
+		final double slope, intercept;
+		StatusNode node; // handle into the status (while the segment is in it)
+
+		Seg(Segment segment, int id) {
+			this.segment = segment;
+			this.id = id;
+			lx = segment.getLeftPoint().x;
+			ly = segment.getLeftPoint().y;
+			rx = segment.getRightPoint().x;
+			ry = segment.getRightPoint().y;
+			vertical = lx == rx;
+			slope = vertical ? Double.POSITIVE_INFINITY : (ry - ly) / (rx - lx);
+			intercept = vertical ? 0 : ly - lx * slope;
+		}
+
+		double yAt(double x) {
+			if (vertical) {
+				return ly;
+			}
+			if (x <= lx) {
+				return ly;
+			}
+			if (x >= rx) {
+				return ry;
+			}
+			return ly + (x - lx) * slope;
+		}
+	}
+
+	private static final class Event implements Comparable<Event> {
+
+		final double x, y;
+		final int type;
+		final Seg a, b;
+
+		Event(double x, double y, int type, Seg a, Seg b) {
+			this.x = x;
+			this.y = y;
+			this.type = type;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			if (x != o.x) {
+				return x < o.x ? -1 : 1;
+			}
+			if (y != o.y) {
+				return y < o.y ? -1 : 1;
+			}
+			return Integer.compare(type, o.type);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package micycle.trapmap;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import processing.core.PVector;
+
+/**
+ * The adjacency graph of a map's faces, in compressed sparse row (CSR) form:
+ * two faces are adjacent when they share boundary segments, and each adjacency
+ * carries the total length of the boundary they share.
+ * <p>
+ * Face IDs need not be dense: the faces of the graph are listed in ascending
+ * order by {@link #getFaces()}, and rows are numbered by position in that list,
+ * so the graph's size depends on the number of faces rather than on the largest
+ * ID. The faces adjacent to the face at position <i>i</i> are
+ * <code>getAdjacentFaces()[getOffsets()[i]]</code> to
+ * <code>getAdjacentFaces()[getOffsets()[i + 1] - 1]</code>, as face IDs in
+ * ascending order, and <code>getSharedLengths()</code> holds the shared length
+ * at the same positions; so the neighbors of a face are listed in O(degree)
+ * time (after finding its row, in O(log n) time, for the per-face methods).
+ * <p>
+ * Adjacency is read from the faces on either side of each input segment, which
+ * are recorded when a map is built from polygons or rings (a segment shared by
+ * two of them is stored once, carrying both faces); a map built from bare
+ * segments has no labelled faces, so its graph has no edges. An overlay
+ * labels its segments with its own faces (see
+ * {@link TrapMapOverlay#getFaceGraph()}). Faces share a
+ * segment only where both their rings have an edge between the same two
+ * vertices, so an edge of one ring that spans several edges of another (meeting
+ * a vertex in its middle) is not shared. Faces that touch only at a vertex are
+ * not adjacent.
+ *
+ * @author Michael Carleton
+ * @see TrapMap#getFaceGraph()
+ */
+public final class FaceGraph {
+
+	private final int[] faces; // face ID of each row, ascending
+	private final int[] offsets;
+	private final int[] adjacent;
+	private final double[] sharedLengths;
+
+	FaceGraph(Collection<Segment> segments) {
+		int[] ids = new int[2 * segments.size()];
+		int idCount = 0;
+		int n = 0; // shared segments, both ways round
+		for (Segment s : segments) {
+			if (s.faceIdA != -1) {
+				ids[idCount++] = s.faceIdA;
+			}
+			if (s.faceIdB != -1) {
+				ids[idCount++] = s.faceIdB;
+			}
+			if (isShared(s)) {
+				n += 2;
+			}
+		}
+		Arrays.sort(ids, 0, idCount);
+		int faceCount = 0;
+		for (int i = 0; i < idCount; i++) {
+			if (faceCount == 0 || ids[faceCount - 1] != ids[i]) {
+				ids[faceCount++] = ids[i];
+			}
+		}
+		faces = Arrays.copyOf(ids, faceCount);
+
+		final int[] from = new int[n]; // rows, not face IDs
+		final int[] to = new int[n];
+		final double[] length = new double[n];
+		int k = 0;
+		for (Segment s : segments) {
+			if (isShared(s)) {
+				final PVector l = s.getLeftPoint();
+				final PVector r = s.getRightPoint();
+				final double d = Math.hypot(r.x - l.x, r.y - l.y);
+				final int a = Arrays.binarySearch(faces, s.faceIdA);
+				final int b = Arrays.binarySearch(faces, s.faceIdB);
+				from[k] = a;
+				to[k] = b;
+				length[k++] = d;
+				from[k] = b;
+				to[k] = a;
+				length[k++] = d;
+			}
+		}
+
+		// order the entries by face, then by adjacent face (two stable counting sorts)
+		final int[] order = sortBy(from, sortBy(to, null, faceCount), faceCount);
+		offsets = new int[faceCount + 1];
+		final int[] adjacent = new int[n];
+		final double[] sharedLengths = new double[n];
+		int edges = 0;
+		for (int i = 0; i < n; i++) {
+			final int e = order[i];
+			if (i > 0 && from[order[i - 1]] == from[e] && to[order[i - 1]] == to[e]) {
+				sharedLengths[edges - 1] += length[e]; // several segments shared by the same faces
+				continue;
+			}
+			offsets[from[e] + 1]++;
+			adjacent[edges] = faces[to[e]]; // rows ascend with face ID, so each row stays sorted
+			sharedLengths[edges++] = length[e];
+		}
+		for (int f = 0; f < faceCount; f++) {
+			offsets[f + 1] += offsets[f];
+		}
+		this.adjacent = Arrays.copyOf(adjacent, edges);
+		this.sharedLengths = Arrays.copyOf(sharedLengths, edges);
+	}
+
+	/**
+	 * @return the number of faces that label a segment of the map (the exterior,
+	 *         -1, is not counted)
+	 */
+	public int getFaceCount() {
+		return faces.length;
+	}
+
+	/**
+	 * @return the IDs of the faces that label a segment of the map, in ascending
+	 *         order; the face at position <i>i</i> owns row <i>i</i> of
+	 *         {@link #getOffsets()} (the array is not copied)
+	 */
+	public int[] getFaces() {
+		return faces;
+	}
+
+	/**
+	 * @param face a face ID
+	 * @return the position of the face in {@link #getFaces()} (its row), or -1 if
+	 *         it labels no segment of the map
+	 */
+	public int indexOf(int face) {
+		final int i = Arrays.binarySearch(faces, face);
+		return i < 0 ? -1 : i;
+	}
+
+	/**
+	 * @param face a face ID
+	 * @return the number of faces adjacent to the face
+	 */
+	public int getDegree(int face) {
+		final int i = indexOf(face);
+		return i < 0 ? 0 : offsets[i + 1] - offsets[i];
+	}
+
+	/**
+	 * @param face a face ID
+	 * @return the IDs of the faces adjacent to the face, in ascending order
+	 */
+	public int[] getAdjacentFaces(int face) {
+		final int i = indexOf(face);
+		return i < 0 ? new int[0] : Arrays.copyOfRange(adjacent, offsets[i], offsets[i + 1]);
+	}
+
+	/**
+	 * @param face a face ID
+	 * @return the length of boundary the face shares with each of its
+	 *         {@link #getAdjacentFaces(int) adjacent faces}, in the same order
+	 */
+	public double[] getSharedLengths(int face) {
+		final int i = indexOf(face);
+		return i < 0 ? new double[0] : Arrays.copyOfRange(sharedLengths, offsets[i], offsets[i + 1]);
+	}
+
+	/**
+	 * Returns the length of the boundary two faces share.
+	 *
+	 * @param face  a face ID
+	 * @param other another face ID
+	 * @return the total length of the segments between the faces (0 if they are
+	 *         not adjacent)
+	 */
+	public double getSharedLength(int face, int other) {
+		final int row = indexOf(face);
+		if (row < 0) {
+			return 0;
+		}
+		final int i = Arrays.binarySearch(adjacent, offsets[row], offsets[row + 1], other);
+		return i < 0 ? 0 : sharedLengths[i];
+	}
+
+	/**
+	 * @return the start of each face's row of {@link #getAdjacentFaces()}, in the
+	 *         order of {@link #getFaces()}, plus one extra entry marking the end
+	 *         (the array is not copied)
+	 */
+	public int[] getOffsets() {
+		return offsets;
+	}
+
+	/**
+	 * @return the IDs of the adjacent faces of every face, row after row (the
+	 *         array is not copied)
+	 */
+	public int[] getAdjacentFaces() {
+		return adjacent;
+	}
+
+	/**
+	 * @return the shared boundary length of every adjacency, at the same positions
+	 *         as {@link #getAdjacentFaces()} (the array is not copied)
+	 */
+	public double[] getSharedLengths() {
+		return sharedLengths;
+	}
+
+	/**
+	 * @return whether the segment separates two different faces
+	 */
+	private static boolean isShared(Segment s) {
+		return s.faceIdA != -1 && s.faceIdB != -1 && s.faceIdA != s.faceIdB;
+	}
+
+	/**
+	 * Stably sorts entries by a key in [0, keyCount), by counting. Keys are rows,
+	 * so the count arrays are sized by the number of faces, not their IDs.
+	 *
+	 * @param keys  the key of each entry
+	 * @param order the entries in their current order (null for 0, 1, 2...)
+	 * @return the entries in order of key
+	 */
+	private static int[] sortBy(int[] keys, int[] order, int keyCount) {
+		final int[] starts = new int[keyCount + 1];
+		for (int key : keys) {
+			starts[key + 1]++;
+		}
+		for (int k = 0; k < keyCount; k++) {
+			starts[k + 1] += starts[k];
+		}
+		final int[] sorted = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			final int e = order == null ? i : order[i];
+			sorted[starts[keys[e]]++] = e;
+		}
+		return sorted;
+	}
+}
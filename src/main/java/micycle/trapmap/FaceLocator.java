@@ -0,0 +1,31 @@
+package micycle.trapmap;
+
+/**
+ * Locates the faces of a planar subdivision containing query points. This is
+ * the query API shared by a {@link TrapMap} and its compiled forms
+ * ({@link CompiledTrapMap} on the heap, {@link OffHeapTrapMap} off it), which
+ * give identical results for the same map.
+ *
+ * @author Michael Carleton
+ */
+public interface FaceLocator {
+
+	/**
+	 * Locates the face which contains the query point, returning its integer ID.
+	 *
+	 * @param x x-coordinate of query point
+	 * @param y y-coordinate of query point
+	 * @return ID of the face which contains the query point; otherwise -1 if no
+	 *         face contains the point
+	 */
+	int findContainingFace(double x, double y);
+
+	/**
+	 * Locates the faces containing each of a batch of points.
+	 *
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the ID of the face containing each point (-1 where no face contains
+	 *         it)
+	 */
+	int[] findContainingFaces(double[] coords);
+}
@@ -0,0 +1,311 @@
+package micycle.trapmap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import processing.core.PVector;
+
+/**
+ * Classifies a polyline (a vehicle trace, say), streamed vertex by vertex,
+ * against the faces of a trapezoidal map: it reports each face the polyline
+ * passes through, and where it enters and exits it.
+ * <p>
+ * Positions along the polyline are given by a parameter: vertex <i>i</i> is at
+ * <i>i</i>, and the point a fraction <i>f</i> of the way from vertex <i>i</i>
+ * to vertex <i>i+1</i> is at <i>i + f</i>. Consecutive events abut: each
+ * exit parameter is the entry parameter of the next event. Stretches of the
+ * polyline outside any face (including outside the map) are reported with a
+ * face ID of -1; a face that the polyline merely touches at a point is not
+ * reported.
+ * <p>
+ * Each step (from one vertex to the next) walks from the trapezoid reached by
+ * the previous step, through the neighbor links of the trapezoids it crosses.
+ * Where it crosses a segment of the map (which links do not cross), it finds the
+ * trapezoid beyond by a binary search among the trapezoids along that segment;
+ * and where it passes through a vertex, or across a vertical segment, it
+ * searches the few trapezoids around that point. Nothing is located afresh from
+ * the root, so a step costs time proportional to the number of trapezoids it
+ * crosses (and logarithmic in the number along each segment it crosses). Only
+ * steps that leave the map or lie outside it (or where rounding leaves the walk
+ * unsure of its way) fall back to
+ * {@link TrapMap#findTrapezoidsAlongSegment(double, double, double, double)}.
+ *
+ * <pre>
+ * FaceTracker tracker = new FaceTracker(trapMap, (faceId, entry, exit) -&gt; ...);
+ * for (double[] p : trace) {
+ * 	tracker.addVertex(p[0], p[1]);
+ * }
+ * tracker.finish();
+ * </pre>
+ *
+ * @author Michael Carleton
+ */
+public class FaceTracker {
+
+	/**
+	 * Receives the faces that a polyline passes through, in order.
+	 */
+	@FunctionalInterface
+	public interface Listener {
+
+		/**
+		 * Called once the polyline has exited a face (or when the polyline is
+		 * finished).
+		 *
+		 * @param faceId ID of the face (-1 if the polyline is outside any face)
+		 * @param entry  polyline parameter where the polyline entered the face
+		 * @param exit   polyline parameter where the polyline exited the face
+		 */
+		void onFace(int faceId, double entry, double exit);
+	}
+
+	/**
+	 * Tolerance on segment parameters (in [0, 1]) when chaining the trapezoids
+	 * crossed by a segment, whose shared walls are computed with rounding.
+	 */
+	private static final double EPSILON = 1e-9;
+
+	/**
+	 * Number of trapezoids around a point that the walk searches before it falls
+	 * back to a descent.
+	 */
+	private static final int MAX_SEARCH = 64;
+
+	private final TrapMap trapMap;
+	private final SegmentSides sides;
+	private final Listener listener;
+	private final QueryRegion.Line line = new QueryRegion.Line(0, 0, 0, 0, 0, 1); // the current step
+	private final ArrayDeque<Trapezoid> queue = new ArrayDeque<>(); // reused by search()
+	private final List<Trapezoid> visited = new ArrayList<>();
+
+	private int vertices; // number of vertices added since the polyline started
+	private double lastX, lastY;
+	private int face; // the face the polyline is currently in
+	private double faceEntry;
+	private double position; // polyline parameter reached so far
+	private Trapezoid current; // the trapezoid containing the last vertex (null if unknown or outside the map)
+	int descents; // steps finished by a descent from the root
+
+	/**
+	 * Creates a tracker, ready to receive the first vertex of a polyline.
+	 *
+	 * @param trapMap  the map whose faces to classify the polyline against
+	 * @param listener receives the faces passed through
+	 */
+	public FaceTracker(TrapMap trapMap, Listener listener) {
+		this.trapMap = trapMap;
+		this.listener = listener;
+		sides = trapMap.getSegmentSides();
+	}
+
+	/**
+	 * Adds the next vertex of the polyline, reporting every face that the polyline
+	 * has exited since the previous vertex.
+	 *
+	 * @param x x-coordinate of the vertex
+	 * @param y y-coordinate of the vertex
+	 */
+	public void addVertex(double x, double y) {
+		if (vertices == 0) {
+			current = trapMap.findContainingTrapezoid(x, y);
+			face = current == null ? -1 : current.getFaceId();
+			faceEntry = 0;
+		} else if (x != lastX || y != lastY) {
+			step(lastX, lastY, x, y, vertices - 1);
+		}
+		position = vertices++;
+		lastX = x;
+		lastY = y;
+	}
+
+	/**
+	 * Finishes the polyline, reporting the face it ends in. The tracker is then
+	 * ready to receive a new polyline.
+	 */
+	public void finish() {
+		if (vertices == 1 || (vertices > 1 && position > faceEntry)) {
+			listener.onFace(face, faceEntry, position);
+		}
+		vertices = 0;
+	}
+
+	/**
+	 * Follows the polyline from one vertex to the next.
+	 *
+	 * @param base polyline parameter of the first vertex
+	 */
+	private void step(double x1, double y1, double x2, double y2, double base) {
+		final double dx = x2 - x1;
+		final double dy = y2 - y1;
+		line.set(x1, y1, dx, dy);
+		double t = 0; // segment parameter reached so far
+		Trapezoid trapezoid = current == null ? null : clipsFrom(current, t) ? current : search(current, x1, y1, t);
+		while (trapezoid != null) { // the line is clipped to the trapezoid
+			enter(trapezoid.getFaceId(), base + t);
+			t = line.exit;
+			if (t >= 1 - EPSILON) {
+				current = trapezoid;
+				return;
+			}
+			trapezoid = next(trapezoid, x1, y1, dx, dy, t);
+		}
+		descend(x1, y1, x2, y2, base, t);
+	}
+
+	/**
+	 * Finds the trapezoid that the step enters where it leaves another (at
+	 * parameter t), and clips the line to it.
+	 *
+	 * @return the next trapezoid, or null if it could not be found from here
+	 */
+	private Trapezoid next(Trapezoid trapezoid, double x1, double y1, double dx, double dy, double t) {
+		final double x = x1 + t * dx;
+		final double y = y1 + t * dy;
+		final double wallX = dx > 0 ? trapezoid.getRightBound().x : trapezoid.getLeftBound().x;
+		if (dx != 0 && t >= (wallX - x1) / dx - EPSILON) { // leaves through the wall on its side
+			final Trapezoid next;
+			if (dx > 0) {
+				next = y >= trapezoid.getRightBound().y ? trapezoid.getUpperRightNeighbor() : trapezoid.getLowerRightNeighbor();
+			} else {
+				next = y >= trapezoid.getLeftBound().y ? trapezoid.getUpperLeftNeighbor() : trapezoid.getLowerLeftNeighbor();
+			}
+			if (next != null && clipsFrom(next, t)) {
+				return next;
+			}
+		} else { // leaves through the segment above or below it, into a trapezoid along its other side
+			final Segment top = trapezoid.getUpperBound();
+			final Segment bottom = trapezoid.getLowerBound();
+			final Trapezoid[] side = Math.abs(y - QueryRegion.yAt(top, x)) <= Math.abs(y - QueryRegion.yAt(bottom, x))
+					? sides.above(top)
+					: sides.below(bottom);
+			if (side.length > 0) {
+				final Trapezoid next = side[SegmentSides.search(side, x, y)];
+				if (clipsFrom(next, t)) {
+					return next;
+				}
+			}
+		}
+		// a vertex or a vertical segment of the map lies here (or the map's edge)
+		return search(trapezoid, x, y, t);
+	}
+
+	/**
+	 * Searches the trapezoids touching a point of the step, spreading out from one
+	 * of them across walls (by neighbor links) and segments (along their sides),
+	 * for the one that the step passes through from parameter t, and clips the line
+	 * to it.
+	 *
+	 * @return the trapezoid found, or null if there is none around the point
+	 */
+	private Trapezoid search(Trapezoid from, double x, double y, double t) {
+		final double tolerance = EPSILON * Math.max(1, Math.abs(x) + Math.abs(y));
+		queue.clear();
+		visited.clear();
+		queue.add(from);
+		visited.add(from);
+		while (!queue.isEmpty() && visited.size() < MAX_SEARCH) {
+			final Trapezoid trapezoid = queue.poll();
+			if (trapezoid != from && clipsFrom(trapezoid, t)) {
+				return trapezoid;
+			}
+			visit(trapezoid.getUpperLeftNeighbor(), x, y, tolerance);
+			visit(trapezoid.getLowerLeftNeighbor(), x, y, tolerance);
+			visit(trapezoid.getUpperRightNeighbor(), x, y, tolerance);
+			visit(trapezoid.getLowerRightNeighbor(), x, y, tolerance);
+			visitAlong(sides.above(trapezoid.getUpperBound()), x, y, tolerance);
+			visitAlong(sides.below(trapezoid.getLowerBound()), x, y, tolerance);
+		}
+		return null;
+	}
+
+	/**
+	 * Visits the trapezoids along one side of a segment that lie nearest a point.
+	 */
+	private void visitAlong(Trapezoid[] side, double x, double y, double tolerance) {
+		if (side.length > 0) {
+			final int i = SegmentSides.search(side, x, y);
+			for (int j = Math.max(0, i - 1); j <= Math.min(side.length - 1, i + 1); j++) {
+				visit(side[j], x, y, tolerance);
+			}
+		}
+	}
+
+	private void visit(Trapezoid trapezoid, double x, double y, double tolerance) {
+		if (trapezoid == null || !touches(trapezoid, x, y, tolerance)) {
+			return;
+		}
+		for (int i = 0; i < visited.size(); i++) { // a handful at most; no iterator
+			if (visited.get(i) == trapezoid) {
+				return;
+			}
+		}
+		visited.add(trapezoid);
+		queue.add(trapezoid);
+	}
+
+	/**
+	 * @return whether the closure of a trapezoid contains a point (to within a
+	 *         tolerance)
+	 */
+	private static boolean touches(Trapezoid trapezoid, double x, double y, double tolerance) {
+		final PVector l = trapezoid.getLeftBound();
+		final PVector r = trapezoid.getRightBound();
+		if (x < l.x - tolerance || x > r.x + tolerance) {
+			return false;
+		}
+		// a vertical segment bounds a trapezoid of zero width, from its left point up
+		// (as its lower bound) or up to its right point (as its upper bound)
+		final Segment top = trapezoid.getUpperBound();
+		final Segment bottom = trapezoid.getLowerBound();
+		final double high = top.getLeftPoint().x == top.getRightPoint().x ? r.y : QueryRegion.yAt(top, x);
+		final double low = bottom.getLeftPoint().x == bottom.getRightPoint().x ? l.y : QueryRegion.yAt(bottom, x);
+		return y >= low - tolerance && y <= high + tolerance;
+	}
+
+	/**
+	 * Clips the line to a trapezoid with area.
+	 *
+	 * @return whether the line passes through the trapezoid from parameter t
+	 */
+	private boolean clipsFrom(Trapezoid trapezoid, double t) {
+		return !trapezoid.hasZeroWidth() && !trapezoid.hasZeroHeight() && line.intersects(trapezoid) && line.enter <= t + EPSILON
+				&& line.exit > t + EPSILON;
+	}
+
+	/**
+	 * Follows the rest of a step (from parameter t) by locating the trapezoids
+	 * along the whole step.
+	 */
+	private void descend(double x1, double y1, double x2, double y2, double base, double t) {
+		descents++;
+		current = null;
+		for (Trapezoid trapezoid : trapMap.findTrapezoidsAlongSegment(x1, y1, x2, y2)) {
+			line.intersects(trapezoid);
+			if (line.exit <= t + EPSILON || line.exit <= line.enter) {
+				continue; // only touched, or already passed through
+			}
+			if (line.enter > t + EPSILON) {
+				enter(-1, base + t); // a gap between trapezoids (outside the map)
+			}
+			enter(trapezoid.getFaceId(), base + Math.max(t, line.enter));
+			t = line.exit;
+			if (t >= 1 - EPSILON) {
+				current = trapezoid;
+			}
+		}
+		if (t < 1 - EPSILON) {
+			enter(-1, base + t);
+		}
+	}
+
+	private void enter(int faceId, double at) {
+		if (faceId != face) {
+			if (at > faceEntry) {
+				listener.onFace(face, faceEntry, at);
+			}
+			face = faceId;
+			faceEntry = at;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package micycle.trapmap;
+
+import java.util.Arrays;
+
+/**
+ * Maps points to their position along a Hilbert curve, so that points can be
+ * sorted into an order in which consecutive points are (mostly) near to each
+ * other.
+ *
+ * @author Michael Carleton
+ */
+final class HilbertCurve {
+
+	private static final int ORDER = 15; // bits per axis (so that indices are non-negative ints)
+	private static final int SIDE = 1 << ORDER;
+
+	private HilbertCurve() {
+	}
+
+	/**
+	 * Sorts points along a Hilbert curve over a bounding box.
+	 *
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the indices of the points (into coords / 2), in curve order
+	 */
+	static int[] sort(double[] coords, double minX, double minY, double maxX, double maxY) {
+		final int n = coords.length / 2;
+		final double scaleX = maxX > minX ? (SIDE - 1) / (maxX - minX) : 0;
+		final double scaleY = maxY > minY ? (SIDE - 1) / (maxY - minY) : 0;
+		// pack (curve index, point index) into longs, to sort primitives
+		final long[] keys = new long[n];
+		for (int i = 0; i < n; i++) {
+			final int x = quantize(coords[2 * i], minX, scaleX);
+			final int y = quantize(coords[2 * i + 1], minY, scaleY);
+			keys[i] = ((long) index(x, y) << 32) | i;
+		}
+		Arrays.sort(keys);
+		final int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/**
+	 * @return the position of the cell (x, y) along the curve
+	 */
+	static int index(int x, int y) {
+		int d = 0;
+		for (int s = SIDE >>> 1; s > 0; s >>>= 1) {
+			final int rx = (x & s) > 0 ? 1 : 0;
+			final int ry = (y & s) > 0 ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant, so that the curve within it has the right orientation
+			if (ry == 0) {
+				if (rx == 1) {
+					x = SIDE - 1 - x;
+					y = SIDE - 1 - y;
+				}
+				final int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	private static int quantize(double v, double min, double scale) {
+		final double q = (v - min) * scale;
+		// clamp (points outside the box, and NaN, go to the box's edges)
+		return q >= SIDE - 1 ? SIDE - 1 : (q > 0 ? (int) q : 0);
+	}
+}
@@ -0,0 +1,93 @@
+package micycle.trapmap;
+
+/**
+ * A minimal open-addressing hash map from primitive <code>long</code> keys to
+ * non-negative <code>int</code> values, avoiding the boxing and per-entry
+ * objects of a <code>HashMap&lt;Long, Integer&gt;</code>.
+ * <p>
+ * Keys are scrambled with the MurmurHash3 64-bit finalizer before probing, so
+ * structured keys (such as packed coordinate bits or vertex index pairs) spread
+ * evenly over the table.
+ *
+ * @author Michael Carleton
+ */
+final class LongIntHashMap {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int[] values; // value + 1; 0 marks an empty slot
+	private int size;
+	private int mask;
+
+	LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * @return the value mapped to the key, or -1 if there is no mapping
+	 */
+	int get(long key) {
+		int slot = hash(key) & mask;
+		while (values[slot] != 0) {
+			if (keys[slot] == key) {
+				return values[slot] - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Maps the key to the value, unless the key is already mapped.
+	 *
+	 * @param value a non-negative value
+	 * @return the existing value mapped to the key, or -1 if the key was absent
+	 *         (and is now mapped to the given value)
+	 */
+	int putIfAbsent(long key, int value) {
+		int slot = hash(key) & mask;
+		while (values[slot] != 0) {
+			if (keys[slot] == key) {
+				return values[slot] - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value + 1;
+		if (++size > keys.length * LOAD_FACTOR) {
+			grow();
+		}
+		return -1;
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldValues.length * 2];
+		mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != 0) {
+				int slot = hash(oldKeys[i]) & mask;
+				while (values[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
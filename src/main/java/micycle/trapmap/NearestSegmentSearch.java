@@ -0,0 +1,153 @@
+package micycle.trapmap;
+
+import java.util.PriorityQueue;
+
+import micycle.trapmap.graph.Leaf;
+import micycle.trapmap.graph.Node;
+import micycle.trapmap.graph.XNode;
+import micycle.trapmap.graph.YNode;
+import processing.core.PVector;
+
+/**
+ * Finds the segment of a trapezoidal map nearest to a point, by a best-first
+ * search of the point location structure.
+ * <p>
+ * Every path from the root of the structure to a node defines a region of the
+ * plane: the set of points whose location follows that path. The region is a
+ * trapezoid (an x-range between an upper and a lower segment), narrowed by each
+ * node along the path, and the regions of sibling paths are disjoint. Paths are
+ * expanded in order of the distance from the query point to their region, so
+ * the leaves around the point are reached first, and the search stops once the
+ * nearest unexpanded region is farther than the nearest segment found so far.
+ * <p>
+ * Since a node may be reached by several paths (each covering part of its
+ * region), nodes are not marked as visited: each path is expanded on its own.
+ *
+ * @author Michael Carleton
+ */
+final class NearestSegmentSearch {
+
+	private final double x, y;
+	private final Segment boundsTop, boundsBottom;
+
+	/** The nearest segment (null if the map has no segments). */
+	Segment segment;
+	/** The squared distance to the nearest segment. */
+	double distanceSq = Double.POSITIVE_INFINITY;
+
+	NearestSegmentSearch(Node root, double minX, double maxX, Segment boundsTop, Segment boundsBottom, double x, double y) {
+		this.x = x;
+		this.y = y;
+		this.boundsTop = boundsTop;
+		this.boundsBottom = boundsBottom;
+
+		final PriorityQueue<Region> queue = new PriorityQueue<>();
+		queue.add(new Region(root, minX, Double.NEGATIVE_INFINITY, maxX, Double.POSITIVE_INFINITY, boundsTop, boundsBottom));
+		while (!queue.isEmpty()) {
+			final Region region = queue.poll();
+			if (region.distanceSq >= distanceSq) {
+				break; // every remaining region is at least as far as the nearest segment
+			}
+			final Node node = region.node;
+			if (node instanceof Leaf) {
+				final Trapezoid t = ((Leaf) node).getData();
+				test(t.getUpperBound());
+				test(t.getLowerBound());
+			} else if (node instanceof XNode) {
+				final PVector p = ((XNode) node).getData();
+				if (p.x < region.maxX || (p.x == region.maxX && p.y < region.maxY)) {
+					offer(queue, node.getLeftChildNode(), region.minX, region.minY, p.x, p.y, region.top, region.bottom);
+				} else {
+					offer(queue, node.getLeftChildNode(), region.minX, region.minY, region.maxX, region.maxY, region.top, region.bottom);
+				}
+				if (p.x > region.minX || (p.x == region.minX && p.y > region.minY)) {
+					offer(queue, node.getRightChildNode(), p.x, p.y, region.maxX, region.maxY, region.top, region.bottom);
+				} else {
+					offer(queue, node.getRightChildNode(), region.minX, region.minY, region.maxX, region.maxY, region.top, region.bottom);
+				}
+			} else {
+				final Segment s = ((YNode) node).getData();
+				if (s.getMinX() == s.getMaxX()) { // a vertical segment does not narrow the region
+					offer(queue, node.getLeftChildNode(), region.minX, region.minY, region.maxX, region.maxY, region.top, region.bottom);
+					offer(queue, node.getRightChildNode(), region.minX, region.minY, region.maxX, region.maxY, region.top, region.bottom);
+				} else {
+					offer(queue, node.getLeftChildNode(), region.minX, region.minY, region.maxX, region.maxY, region.top, s);
+					offer(queue, node.getRightChildNode(), region.minX, region.minY, region.maxX, region.maxY, s, region.bottom);
+				}
+			}
+		}
+	}
+
+	private void offer(PriorityQueue<Region> queue, Node node, double minX, double minY, double maxX, double maxY, Segment top,
+			Segment bottom) {
+		final Region region = new Region(node, minX, minY, maxX, maxY, top, bottom);
+		if (region.distanceSq < distanceSq) {
+			queue.add(region);
+		}
+	}
+
+	private void test(Segment s) {
+		if (s != segment && s != boundsTop && s != boundsBottom) {
+			final double d = s.distanceSq(x, y);
+			if (d < distanceSq) {
+				distanceSq = d;
+				segment = s;
+			}
+		}
+	}
+
+	/**
+	 * The trapezoidal region of a path to a node. Its left and right bounds are
+	 * points, compared lexicographically (as x-nodes compare points, to mimic a
+	 * shear): their y-coordinates only matter when the region has zero width.
+	 */
+	private final class Region implements Comparable<Region> {
+
+		final Node node;
+		final double minX, minY, maxX, maxY;
+		final Segment top, bottom;
+		final double distanceSq; // from the query point
+
+		Region(Node node, double minX, double minY, double maxX, double maxY, Segment top, Segment bottom) {
+			this.node = node;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.top = top;
+			this.bottom = bottom;
+			distanceSq = distanceSq();
+		}
+
+		private double distanceSq() {
+			if (minX > maxX) {
+				return Double.POSITIVE_INFINITY; // empty
+			}
+			if (minX == maxX) { // a vertical segment, between the bounds
+				final double lo = Math.max(minY, QueryRegion.yAt(bottom, minX));
+				final double hi = Math.min(maxY, QueryRegion.yAt(top, minX));
+				return lo > hi ? Double.POSITIVE_INFINITY : Segment.distanceSq(x, y, minX, lo, minX, hi);
+			}
+			final double topL = QueryRegion.yAt(top, minX);
+			final double topR = QueryRegion.yAt(top, maxX);
+			final double botL = QueryRegion.yAt(bottom, minX);
+			final double botR = QueryRegion.yAt(bottom, maxX);
+			if (x >= minX && x <= maxX) {
+				final double t = (maxX == minX) ? 0 : (x - minX) / (maxX - minX);
+				if (y <= topL + t * (topR - topL) && y >= botL + t * (botR - botL)) {
+					return 0; // inside
+				}
+			}
+			// otherwise the nearest point lies on an edge of the (convex) trapezoid
+			double d = Segment.distanceSq(x, y, minX, topL, maxX, topR);
+			d = Math.min(d, Segment.distanceSq(x, y, minX, botL, maxX, botR));
+			d = Math.min(d, Segment.distanceSq(x, y, minX, botL, minX, topL));
+			return Math.min(d, Segment.distanceSq(x, y, maxX, botR, maxX, topR));
+		}
+
+		@Override
+		public int compareTo(Region other) {
+			return Double.compare(distanceSq, other.distanceSq);
+		}
+	}
+}
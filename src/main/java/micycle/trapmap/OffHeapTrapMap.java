@@ -0,0 +1,379 @@
+package micycle.trapmap;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import processing.core.PVector;
+
+/**
+ * A compiled trapezoidal map held in direct (off-heap) memory, for maps too
+ * large to keep as millions of heap objects.
+ * <p>
+ * The search structure (as laid out by {@link CompiledTrapMap}), the segment
+ * coordinates, and each trapezoid's bounds, neighbors and face ID live in
+ * direct buffers; the heap holds only this object and a few buffer views,
+ * however large the map. Trapezoids and segments are referred to by index
+ * rather than by object.
+ * <p>
+ * Create with {@link CompiledTrapMap#toOffHeap()}; the source {@link TrapMap}
+ * and {@link CompiledTrapMap} can then be discarded. Direct memory is otherwise
+ * only reclaimed when the garbage collector notices the buffers are
+ * unreachable, so {@link #close()} the map to release it explicitly. Queries
+ * on a closed map throw an {@link IllegalStateException}.
+ * <p>
+ * Instances are safe for concurrent queries, but not concurrently with
+ * {@link #close()}.
+ *
+ * @author Michael Carleton
+ */
+public final class OffHeapTrapMap implements FaceLocator, AutoCloseable {
+
+	private static final int LEAF_STRIDE = 12; // ints per trapezoid record
+	private static final int FACE = 0;
+	private static final int UPPER = 1; // segment index
+	private static final int LOWER = 2; // segment index
+	private static final int BOUNDS = 3; // float bits: left x, left y, right x, right y
+	private static final int NEIGHBORS = 7; // trapezoid indices (-1 if none): UL, LL, UR, LR
+	private static final int SEGMENT_STRIDE = 4; // floats per segment: left x, left y, right x, right y
+
+	private ByteBuffer nodeMemory, leafMemory, segmentMemory;
+	private IntBuffer nodes; // node records, as in CompiledTrapMap
+	private IntBuffer leaves;
+	private FloatBuffer segments;
+	private final int root;
+	private final int trapezoidCount, segmentCount;
+
+	private final float minX, minY, maxX, maxY;
+
+	OffHeapTrapMap(int[] nodeRecords, int root, Trapezoid[] trapezoids, int[] faces, float minX, float minY, float maxX,
+			float maxY) {
+		this.root = root;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+
+		nodeMemory = allocate(nodeRecords.length);
+		nodes = nodeMemory.asIntBuffer();
+		nodes.put(nodeRecords);
+
+		final int[] neighbors = TrapezoidGraph.neighbors(trapezoids, TrapezoidGraph.index(trapezoids));
+		final Map<Segment, Integer> segmentIndex = new IdentityHashMap<>();
+		for (Trapezoid t : trapezoids) {
+			segmentIndex.putIfAbsent(t.getUpperBound(), segmentIndex.size());
+			segmentIndex.putIfAbsent(t.getLowerBound(), segmentIndex.size());
+		}
+		trapezoidCount = trapezoids.length;
+		segmentCount = segmentIndex.size();
+
+		leafMemory = allocate(Math.multiplyExact(trapezoids.length, LEAF_STRIDE));
+		leaves = leafMemory.asIntBuffer();
+		for (int i = 0; i < trapezoids.length; i++) {
+			final Trapezoid t = trapezoids[i];
+			final int o = i * LEAF_STRIDE;
+			leaves.put(o + FACE, faces[i]);
+			leaves.put(o + UPPER, segmentIndex.get(t.getUpperBound()));
+			leaves.put(o + LOWER, segmentIndex.get(t.getLowerBound()));
+			leaves.put(o + BOUNDS, Float.floatToRawIntBits(t.getLeftBound().x));
+			leaves.put(o + BOUNDS + 1, Float.floatToRawIntBits(t.getLeftBound().y));
+			leaves.put(o + BOUNDS + 2, Float.floatToRawIntBits(t.getRightBound().x));
+			leaves.put(o + BOUNDS + 3, Float.floatToRawIntBits(t.getRightBound().y));
+			for (int k = 0; k < 4; k++) {
+				leaves.put(o + NEIGHBORS + k, neighbors[4 * i + k]);
+			}
+		}
+
+		segmentMemory = allocate(Math.multiplyExact(segmentCount, SEGMENT_STRIDE));
+		segments = segmentMemory.asFloatBuffer();
+		for (Map.Entry<Segment, Integer> e : segmentIndex.entrySet()) {
+			final PVector l = e.getKey().getLeftPoint();
+			final PVector r = e.getKey().getRightPoint();
+			final int o = e.getValue() * SEGMENT_STRIDE;
+			segments.put(o, l.x);
+			segments.put(o + 1, l.y);
+			segments.put(o + 2, r.x);
+			segments.put(o + 3, r.y);
+		}
+	}
+
+	/**
+	 * Locates the face which contains the query point, returning its integer ID.
+	 *
+	 * @return ID of the face which contains the query point; otherwise -1 if no
+	 *         face contains the point
+	 * @see TrapMap#findContainingFace(double, double)
+	 */
+	@Override
+	public int findContainingFace(double x, double y) {
+		final int t = findContainingTrapezoid(x, y);
+		return t < 0 ? -1 : leaves.get(t * LEAF_STRIDE + FACE);
+	}
+
+	/**
+	 * Locates the faces containing each of a batch of points, in the order of a
+	 * Hilbert curve (for cache locality).
+	 *
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the ID of the face containing each point (-1 where no face contains
+	 *         it)
+	 * @see TrapMap#findContainingFaces(double[], boolean)
+	 */
+	@Override
+	public int[] findContainingFaces(double[] coords) {
+		checkOpen();
+		final int[] faces = new int[coords.length / 2];
+		for (int i : HilbertCurve.sort(coords, minX, minY, maxX, maxY)) {
+			faces[i] = findContainingFace(coords[2 * i], coords[2 * i + 1]);
+		}
+		return faces;
+	}
+
+	/**
+	 * Locates the trapezoid which contains the query point. If the point does not
+	 * lie inside any trapezoid, the nearest trapezoid to the point is returned.
+	 *
+	 * @return index of the trapezoid
+	 * @see TrapMap#findNearestTrapezoid(double, double)
+	 */
+	public int findNearestTrapezoid(double x, double y) {
+		checkOpen();
+		return locate(x, y);
+	}
+
+	/**
+	 * Locates the trapezoid which contains the query point.
+	 *
+	 * @return index of the trapezoid, or -1 if the point lies outside the map
+	 * @see TrapMap#findContainingTrapezoid(double, double)
+	 */
+	public int findContainingTrapezoid(double x, double y) {
+		checkOpen();
+		if (x < minX || x > maxX || y < minY || y > maxY) {
+			return -1;
+		}
+		return locate(x, y);
+	}
+
+	/**
+	 * @return the number of trapezoids (including point-like ones); trapezoid
+	 *         indices run from 0 to this number (exclusive)
+	 */
+	public int getTrapezoidCount() {
+		return trapezoidCount;
+	}
+
+	/**
+	 * @return the number of distinct segments bounding trapezoids above or below
+	 *         (including those bounding the map); segment indices run from 0 to
+	 *         this number (exclusive)
+	 */
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @param trapezoid index of a trapezoid
+	 * @return ID of the face containing the trapezoid, or -1 if none
+	 */
+	public int getFaceId(int trapezoid) {
+		checkOpen();
+		return leaves.get(trapezoid * LEAF_STRIDE + FACE);
+	}
+
+	/**
+	 * @param trapezoid index of a trapezoid
+	 * @return index of the segment bounding the trapezoid from above
+	 */
+	public int getUpperBound(int trapezoid) {
+		checkOpen();
+		return leaves.get(trapezoid * LEAF_STRIDE + UPPER);
+	}
+
+	/**
+	 * @param trapezoid index of a trapezoid
+	 * @return index of the segment bounding the trapezoid from below
+	 */
+	public int getLowerBound(int trapezoid) {
+		checkOpen();
+		return leaves.get(trapezoid * LEAF_STRIDE + LOWER);
+	}
+
+	/**
+	 * Reads the points bounding a trapezoid on the left and right.
+	 *
+	 * @param trapezoid index of a trapezoid
+	 * @param dest      receives the left x, left y, right x and right y
+	 *                  coordinates, from index 0
+	 */
+	public void getBounds(int trapezoid, float[] dest) {
+		checkOpen();
+		final int o = trapezoid * LEAF_STRIDE + BOUNDS;
+		for (int i = 0; i < 4; i++) {
+			dest[i] = Float.intBitsToFloat(leaves.get(o + i));
+		}
+	}
+
+	/**
+	 * @return index of the upper left neighbor of the trapezoid, or -1 if none
+	 * @see Trapezoid#getUpperLeftNeighbor()
+	 */
+	public int getUpperLeftNeighbor(int trapezoid) {
+		checkOpen();
+		return leaves.get(trapezoid * LEAF_STRIDE + NEIGHBORS);
+	}
+
+	/**
+	 * @return index of the lower left neighbor of the trapezoid, or -1 if none
+	 * @see Trapezoid#getLowerLeftNeighbor()
+	 */
+	public int getLowerLeftNeighbor(int trapezoid) {
+		checkOpen();
+		return leaves.get(trapezoid * LEAF_STRIDE + NEIGHBORS + 1);
+	}
+
+	/**
+	 * @return index of the upper right neighbor of the trapezoid, or -1 if none
+	 * @see Trapezoid#getUpperRightNeighbor()
+	 */
+	public int getUpperRightNeighbor(int trapezoid) {
+		checkOpen();
+		return leaves.get(trapezoid * LEAF_STRIDE + NEIGHBORS + 2);
+	}
+
+	/**
+	 * @return index of the lower right neighbor of the trapezoid, or -1 if none
+	 * @see Trapezoid#getLowerRightNeighbor()
+	 */
+	public int getLowerRightNeighbor(int trapezoid) {
+		checkOpen();
+		return leaves.get(trapezoid * LEAF_STRIDE + NEIGHBORS + 3);
+	}
+
+	/**
+	 * Reads the endpoints of a segment.
+	 *
+	 * @param segment index of a segment
+	 * @param dest    receives the left x, left y, right x and right y coordinates,
+	 *                from index 0
+	 */
+	public void getSegment(int segment, float[] dest) {
+		checkOpen();
+		final int o = segment * SEGMENT_STRIDE;
+		for (int i = 0; i < SEGMENT_STRIDE; i++) {
+			dest[i] = segments.get(o + i);
+		}
+	}
+
+	/**
+	 * @return the number of bytes of direct memory held (0 once closed)
+	 */
+	public long getMemoryUsage() {
+		if (nodeMemory == null) {
+			return 0;
+		}
+		return (long) nodeMemory.capacity() + leafMemory.capacity() + segmentMemory.capacity();
+	}
+
+	/**
+	 * Releases the direct memory held by this map. Closing an already closed map
+	 * has no effect.
+	 */
+	@Override
+	public void close() {
+		if (nodeMemory == null) {
+			return;
+		}
+		final ByteBuffer[] memory = { nodeMemory, leafMemory, segmentMemory };
+		nodeMemory = leafMemory = segmentMemory = null;
+		nodes = leaves = null;
+		segments = null;
+		for (ByteBuffer buffer : memory) {
+			free(buffer);
+		}
+	}
+
+	/**
+	 * @return whether the map has been closed
+	 */
+	public boolean isClosed() {
+		return nodeMemory == null;
+	}
+
+	/**
+	 * Descends the search structure, making exactly the comparisons that
+	 * {@link TrapMap#findNearestTrapezoid(double, double)} makes.
+	 *
+	 * @return index of the trapezoid reached
+	 */
+	private int locate(double x, double y) {
+		x = Math.min(Math.max(x, minX), maxX);
+		y = Math.min(Math.max(y, minY), maxY);
+		final IntBuffer nodes = this.nodes;
+		int ref = root;
+		while (ref >= 0) {
+			final int o = ref * CompiledTrapMap.STRIDE;
+			final boolean left;
+			if (nodes.get(o + CompiledTrapMap.KIND) == CompiledTrapMap.X_NODE) {
+				final float px = Float.intBitsToFloat(nodes.get(o + CompiledTrapMap.COORDS));
+				final float py = Float.intBitsToFloat(nodes.get(o + CompiledTrapMap.COORDS + 1));
+				left = x < px || (x == px && y < py);
+			} else {
+				final float lx = Float.intBitsToFloat(nodes.get(o + CompiledTrapMap.COORDS));
+				final float ly = Float.intBitsToFloat(nodes.get(o + CompiledTrapMap.COORDS + 1));
+				final float rx = Float.intBitsToFloat(nodes.get(o + CompiledTrapMap.COORDS + 2));
+				final float ry = Float.intBitsToFloat(nodes.get(o + CompiledTrapMap.COORDS + 3));
+				left = (x - lx) * ry + (rx - x) * ly < y * (rx - lx); // is the point above the segment?
+			}
+			ref = nodes.get(o + (left ? CompiledTrapMap.LEFT : CompiledTrapMap.RIGHT));
+		}
+		return ~ref;
+	}
+
+	private void checkOpen() {
+		if (nodeMemory == null) {
+			throw new IllegalStateException("The map has been closed");
+		}
+	}
+
+	/**
+	 * @param ints capacity of the buffer, in 4-byte values
+	 */
+	private static ByteBuffer allocate(int ints) {
+		return ByteBuffer.allocateDirect(Math.multiplyExact(ints, Integer.BYTES)).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Frees a direct buffer's memory now, rather than when the buffer is garbage
+	 * collected. There is no public API for this before Java 9's
+	 * <code>Unsafe.invokeCleaner()</code>; if neither it nor Java 8's buffer
+	 * cleaner is accessible, the memory is left to the garbage collector.
+	 */
+	private static void free(ByteBuffer buffer) {
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer); // Java 9+
+			return;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// fall through
+		}
+		try {
+			final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			final Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner); // Java 8
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// leave it to the garbage collector
+		}
+	}
+}
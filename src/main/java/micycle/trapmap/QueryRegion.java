@@ -0,0 +1,352 @@
+package micycle.trapmap;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import micycle.trapmap.graph.Leaf;
+import micycle.trapmap.graph.Node;
+import micycle.trapmap.graph.XNode;
+import micycle.trapmap.graph.YNode;
+import processing.core.PVector;
+
+/**
+ * A region of the plane (such as a rectangle or a line segment) whose
+ * intersecting trapezoids are found by descending the search structure.
+ * <p>
+ * The descent mirrors a point location, but follows every branch that some
+ * point of the region could take: both children of an x-node whose point lies
+ * within the region's x-range, and both children of a y-node whose segment
+ * passes through the region. Since the structure is a DAG, shared nodes are
+ * visited once. Time is roughly proportional to the number of trapezoids found,
+ * plus O(log n).
+ * <p>
+ * Branch tests are conservative (they include ties, and take both branches in
+ * degenerate cases), so no trapezoid is missed; each leaf is then tested
+ * exactly.
+ *
+ * @author Michael Carleton
+ */
+abstract class QueryRegion {
+
+	/**
+	 * Passes each trapezoid (including point-like ones) intersecting this region
+	 * to the consumer.
+	 */
+	final void descend(Node root, Consumer<Trapezoid> consumer) {
+		final Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Node current = stack.pop();
+			if (!visited.add(current)) {
+				continue;
+			}
+			if (current instanceof Leaf) {
+				final Trapezoid t = ((Leaf) current).getData();
+				if (intersects(t)) {
+					consumer.accept(t);
+				}
+				continue;
+			}
+			final boolean left; // left child is left of an x-node, or above a y-node
+			final boolean right;
+			if (current instanceof XNode) {
+				final PVector p = ((XNode) current).getData();
+				left = minX() <= p.x;
+				right = maxX() >= p.x;
+			} else {
+				final Segment s = ((YNode) current).getData();
+				if (s.getMinX() == s.getMaxX()) {
+					left = right = true;
+				} else {
+					left = reachesAbove(s);
+					right = reachesBelow(s);
+				}
+			}
+			if (right) {
+				stack.push(current.getRightChildNode());
+			}
+			if (left) {
+				stack.push(current.getLeftChildNode());
+			}
+		}
+	}
+
+	abstract double minX();
+
+	abstract double maxX();
+
+	/**
+	 * @return whether some point of the region lies on or above the (non-vertical)
+	 *         segment, or the region does not meet the segment's x-range
+	 */
+	abstract boolean reachesAbove(Segment s);
+
+	/**
+	 * @return whether some point of the region lies on or below the (non-vertical)
+	 *         segment, or the region does not meet the segment's x-range
+	 */
+	abstract boolean reachesBelow(Segment s);
+
+	/**
+	 * Determines whether a trapezoid intersects (or touches) the region. Point-like
+	 * trapezoids need only be tested conservatively.
+	 */
+	abstract boolean intersects(Trapezoid t);
+
+	/**
+	 * @return the y-coordinate of the segment's line at x, in double precision
+	 */
+	static double yAt(Segment s, double x) {
+		final PVector l = s.getLeftPoint();
+		final PVector r = s.getRightPoint();
+		if (l.x == r.x) {
+			return l.y;
+		}
+		return l.y + (x - l.x) * ((double) r.y - l.y) / ((double) r.x - l.x);
+	}
+
+	/**
+	 * An axis-aligned rectangle.
+	 */
+	static final class Rect extends QueryRegion {
+
+		private final double minX, minY, maxX, maxY;
+
+		Rect(double minX, double minY, double maxX, double maxY) {
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+
+		@Override
+		double minX() {
+			return minX;
+		}
+
+		@Override
+		double maxX() {
+			return maxX;
+		}
+
+		@Override
+		boolean reachesAbove(Segment s) {
+			final double a = Math.max(minX, s.getMinX());
+			final double b = Math.min(maxX, s.getMaxX());
+			return a > b || maxY >= Math.min(yAt(s, a), yAt(s, b));
+		}
+
+		@Override
+		boolean reachesBelow(Segment s) {
+			final double a = Math.max(minX, s.getMinX());
+			final double b = Math.min(maxX, s.getMaxX());
+			return a > b || minY <= Math.max(yAt(s, a), yAt(s, b));
+		}
+
+		@Override
+		boolean intersects(Trapezoid t) {
+			final double a = Math.max(t.getLeftBound().x, minX);
+			final double b = Math.min(t.getRightBound().x, maxX);
+			if (a > b) {
+				return false;
+			}
+			if (t.hasZeroWidth()) {
+				return true;
+			}
+			/*
+			 * Within [a, b], find the interval where the top segment is at or above minY
+			 * and the interval where the bottom segment is at or below maxY; the trapezoid
+			 * meets the rectangle iff these intervals overlap.
+			 */
+			final double ta = yAt(t.getUpperBound(), a);
+			final double tb = yAt(t.getUpperBound(), b);
+			double lo1 = a;
+			double hi1 = b;
+			if (ta < minY && tb < minY) {
+				return false;
+			} else if (ta < minY) {
+				lo1 = a + (b - a) * (minY - ta) / (tb - ta);
+			} else if (tb < minY) {
+				hi1 = a + (b - a) * (minY - ta) / (tb - ta);
+			}
+			final double ba = yAt(t.getLowerBound(), a);
+			final double bb = yAt(t.getLowerBound(), b);
+			double lo2 = a;
+			double hi2 = b;
+			if (ba > maxY && bb > maxY) {
+				return false;
+			} else if (ba > maxY) {
+				lo2 = a + (b - a) * (maxY - ba) / (bb - ba);
+			} else if (bb > maxY) {
+				hi2 = a + (b - a) * (maxY - ba) / (bb - ba);
+			}
+			return Math.max(lo1, lo2) <= Math.min(hi1, hi2);
+		}
+	}
+
+	/**
+	 * A line segment, parameterised as <code>(x0 + t * dx, y0 + t * dy)</code> for
+	 * t in [tMin, tMax]. The methods that clip the segment store the resulting
+	 * parameter interval in {@link #enter} and {@link #exit}.
+	 * <p>
+	 * Tests may be widened by a slack distance, so that trapezoids which the
+	 * segment only grazes (where rounding could otherwise exclude them) are
+	 * included.
+	 */
+	static final class Line extends QueryRegion {
+
+		private double x0, y0, dx, dy;
+		private final double tMin, tMax;
+		private final double slack;
+
+		double enter, exit; // parameter interval of the last clip
+
+		Line(double x0, double y0, double dx, double dy, double tMin, double tMax) {
+			this(x0, y0, dx, dy, tMin, tMax, 0);
+		}
+
+		Line(double x0, double y0, double dx, double dy, double tMin, double tMax, double slack) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.dx = dx;
+			this.dy = dy;
+			this.tMin = tMin;
+			this.tMax = tMax;
+			this.slack = slack;
+		}
+
+		/**
+		 * Moves this segment (keeping its parameter range), so that one instance can
+		 * be reused for many segments.
+		 */
+		void set(double x0, double y0, double dx, double dy) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.dx = dx;
+			this.dy = dy;
+		}
+
+		@Override
+		double minX() {
+			return x0 + (dx < 0 ? tMax : tMin) * dx - slack;
+		}
+
+		@Override
+		double maxX() {
+			return x0 + (dx < 0 ? tMin : tMax) * dx + slack;
+		}
+
+		@Override
+		boolean reachesAbove(Segment s) {
+			if (!clipX(s.getMinX(), s.getMaxX())) {
+				return true;
+			}
+			return Math.max(above(s, enter), above(s, exit)) >= -slack;
+		}
+
+		@Override
+		boolean reachesBelow(Segment s) {
+			if (!clipX(s.getMinX(), s.getMaxX())) {
+				return true;
+			}
+			return Math.min(above(s, enter), above(s, exit)) <= slack;
+		}
+
+		@Override
+		boolean intersects(Trapezoid t) {
+			if (!clipX(t.getLeftBound().x, t.getRightBound().x)) {
+				return false;
+			}
+			if (t.hasZeroWidth()) {
+				return true;
+			}
+			// keep the part of [enter, exit] that is on or below the top segment...
+			if (!clipNonNegative(slack - above(t.getUpperBound(), enter), slack - above(t.getUpperBound(), exit))) {
+				return false;
+			}
+			// ...and on or above the bottom segment
+			return clipNonNegative(slack + above(t.getLowerBound(), enter), slack + above(t.getLowerBound(), exit));
+		}
+
+		/**
+		 * Finds where this segment first meets a segment of the map. Slack extends
+		 * the segment beyond tMax only.
+		 *
+		 * @return the least parameter t at which the segments meet, or NaN if they do
+		 *         not
+		 */
+		double hit(Segment s) {
+			final PVector a = s.getLeftPoint();
+			final PVector b = s.getRightPoint();
+			final double ex = (double) b.x - a.x;
+			final double ey = (double) b.y - a.y;
+			final double wx = a.x - x0;
+			final double wy = a.y - y0;
+			final double denom = dx * ey - dy * ex;
+			final double tSlack = slack / Math.hypot(dx, dy);
+			if (denom != 0) {
+				final double t = (wx * ey - wy * ex) / denom;
+				final double u = (wx * dy - wy * dx) / denom;
+				return u >= 0 && u <= 1 && t >= tMin && t <= tMax + tSlack ? t : Double.NaN;
+			}
+			if (wx * dy - wy * dx != 0) {
+				return Double.NaN; // parallel
+			}
+			// collinear: project the segment's endpoints onto this one
+			final double dd = dx * dx + dy * dy;
+			final double ta = (wx * dx + wy * dy) / dd;
+			final double tb = ((b.x - x0) * dx + (b.y - y0) * dy) / dd;
+			final double lo = Math.max(Math.min(ta, tb), tMin);
+			return lo <= Math.min(Math.max(ta, tb), tMax + tSlack) ? lo : Double.NaN;
+		}
+
+		/**
+		 * @return the signed vertical distance of the point at parameter t above the
+		 *         segment's line
+		 */
+		private double above(Segment s, double t) {
+			return y0 + t * dy - yAt(s, x0 + t * dx);
+		}
+
+		/**
+		 * Clips [tMin, tMax] to where this segment lies within the given x-range.
+		 *
+		 * @return false if the clipped interval is empty
+		 */
+		private boolean clipX(double lo, double hi) {
+			lo -= slack;
+			hi += slack;
+			if (dx == 0) {
+				enter = tMin;
+				exit = tMax;
+				return x0 >= lo && x0 <= hi;
+			}
+			final double ta = (lo - x0) / dx;
+			final double tb = (hi - x0) / dx;
+			enter = Math.max(tMin, Math.min(ta, tb));
+			exit = Math.min(tMax, Math.max(ta, tb));
+			return enter <= exit;
+		}
+
+		/**
+		 * Clips [enter, exit] to where a linear function, taking the given values at
+		 * its ends, is non-negative.
+		 *
+		 * @return false if the clipped interval is empty
+		 */
+		private boolean clipNonNegative(double fEnter, double fExit) {
+			if (fEnter < 0 && fExit < 0) {
+				return false;
+			} else if (fEnter < 0) {
+				enter = enter + (exit - enter) * fEnter / (fEnter - fExit);
+			} else if (fExit < 0) {
+				exit = enter + (exit - enter) * fEnter / (fEnter - fExit);
+			}
+			return true;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package micycle.trapmap;
 
+import java.math.BigDecimal;
+
 import processing.core.PShape;
 import processing.core.PVector;
 
@@ -11,11 +13,19 @@ import processing.core.PVector;
  */
 public class Segment {
 
+	/**
+	 * Bound on the relative rounding error of a cross product of differences
+	 * evaluated in double precision (Shewchuk's ccwerrboundA).
+	 */
+	private static final double ORIENTATION_ERROR = (3 + 16 * 0x1p-53) * 0x1p-53;
+
 	private PVector lPoint;
 	private PVector rPoint;
 
 	PShape faceA; // segment will always have one face
 	PShape faceB; // possible (such as mesh)
+	int faceIdA = -1; // integer ID of faceA (-1 if none)
+	int faceIdB = -1; // integer ID of faceB (-1 if none)
 
 	public Segment(PVector one, PVector two) {
 		// we store the left, lower point as lpoint
@@ -35,9 +45,11 @@ public class Segment {
 	 * 
 	 * @param one
 	 * @param two
-	 * @param face
+	 * @param face   polygon shape of the face (may be null if the face was not
+	 *               given as a PShape)
+	 * @param faceId integer ID of the face
 	 */
-	Segment(PVector one, PVector two, PShape face) {
+	Segment(PVector one, PVector two, PShape face, int faceId) {
 		// we store the left, lower point as lpoint
 		// the other point is stored as rpoint
 		if (compareTo(one, two) <= 0) {
@@ -48,6 +60,7 @@ public class Segment {
 			rPoint = one;
 		}
 		faceA = face;
+		faceIdA = faceId;
 	}
 
 	public Segment(float p1X, float p1Y, float p2X, float p2Y) {
@@ -121,39 +134,64 @@ public class Segment {
 	 */
 	PVector intersect(float x) {
 		if (lPoint.x != rPoint.x) {
-			float ysum = (x - lPoint.x) * (rPoint.y) + (rPoint.x - x) * (lPoint.y);
-			float yval = ysum / (rPoint.x - lPoint.x);
-			return new PVector(x, yval);
+			return new PVector(x, yAt(x));
 		} else {
 			return new PVector(lPoint.x, lPoint.y);
 		}
 	}
 
 	/**
-	 * Calculates the slope of a non vertical segment. If the segment might be
-	 * vertical, isVertical should be checked first
+	 * Returns the y value of the segment's line at the given x value (or the y
+	 * value of the lower endpoint if the segment is vertical). Unlike
+	 * {@link #intersect(float)}, this does not allocate.
 	 *
-	 * @return the slope (if not vertical) or 0 if it is vertical
+	 * @param x The x-value to evaluate the line at
+	 * @return The y-value of the line at the given x-value
 	 */
-	private double getSlope() {
-		if (isVertical()) {
-			return 0;
+	float yAt(float x) {
+		if (lPoint.y == rPoint.y) {
+			return lPoint.y; // exactly, rather than as rounded by interpolation
+		} else if (lPoint.x != rPoint.x) {
+			float ysum = (x - lPoint.x) * (rPoint.y) + (rPoint.x - x) * (lPoint.y);
+			return ysum / (rPoint.x - lPoint.x);
+		} else {
+			return lPoint.y;
 		}
-		return (rPoint.y - lPoint.y) / (rPoint.x - lPoint.x);
 	}
 
 	/**
-	 * Checks if this segment is vertical
+	 * Returns the squared Euclidean distance from a point to the nearest point of
+	 * this segment.
 	 *
-	 * @return True if the segment is vertical
+	 * @param x x-coordinate of the point
+	 * @param y y-coordinate of the point
+	 * @return The squared distance
 	 */
-	private boolean isVertical() {
-		return (rPoint.x == lPoint.x);
+	double distanceSq(double x, double y) {
+		return distanceSq(x, y, lPoint.x, lPoint.y, rPoint.x, rPoint.y);
+	}
+
+	/**
+	 * Returns the squared Euclidean distance from the point (x, y) to the nearest
+	 * point of the segment from (ax, ay) to (bx, by).
+	 */
+	static double distanceSq(double x, double y, double ax, double ay, double bx, double by) {
+		final double dx = bx - ax;
+		final double dy = by - ay;
+		final double wx = x - ax;
+		final double wy = y - ay;
+		final double lengthSq = dx * dx + dy * dy;
+		// parameter of the projection of the point onto the segment, clamped to it
+		final double t = lengthSq == 0 ? 0 : Math.min(1, Math.max(0, (wx * dx + wy * dy) / lengthSq));
+		final double px = wx - t * dx;
+		final double py = wy - t * dy;
+		return px * px + py * py;
 	}
 
 	/**
 	 * Checks to see if this segment object crosses another properly (not a shared
-	 * endpoint)
+	 * endpoint). Segments cross if their interiors intersect, if an endpoint of one
+	 * lies in the interior of the other, or if they overlap collinearly.
 	 *
 	 * @param other The other segment to check against
 	 * @return True if the segments intersect at a point which is not a common
@@ -165,40 +203,30 @@ public class Segment {
 			return false;
 		}
 
-		// at this point, the x-ranges overlap
-		if (this.isVertical() && other.isVertical()) {// they must lie vertically aligned
-			if (this.getMaxY() <= other.getMinY() || this.getMinY() >= other.getMaxY()) {
-				return false;
-			}
-			return true;
-		} else if (this.isVertical()) {
-			PVector p = other.intersect(this.lPoint.x);
-			return (p.y > this.getMinY()) && (p.y < this.getMaxY());
-		} else { // neither segment is a vertical line
-			/*
-			 * We use a bounding box technique instead of directly computing the
-			 * intersection. It is quite possible we aren't saving any time with this
-			 * strategy.
-			 */
-
-			// must find the intersection points
-			double slope1 = this.getSlope();
-			double slope2 = other.getSlope();
-			// use slope1 to calculate 3 b's, same for slope2
-			double b00 = this.lPoint.y - this.lPoint.x * slope1;
-			double b01 = other.lPoint.y - other.lPoint.x * slope1;
-			double b02 = other.rPoint.y - other.rPoint.x * slope1;
-
-			double b10 = other.lPoint.y - other.lPoint.x * slope2;
-			double b11 = this.lPoint.y - this.lPoint.x * slope2;
-			double b12 = this.rPoint.y - this.rPoint.x * slope2;
-			if (((b01 <= b00 && b00 <= b02) || (b01 >= b00 && b00 >= b02)) && ((b11 <= b10 && b10 <= b12) || b11 >= b10 && b10 >= b12)) {
-				return this.equals(other) || !(this.lPoint.equals(other.lPoint) || this.lPoint.equals(other.rPoint)
-						|| this.rPoint.equals(other.lPoint) || this.rPoint.equals(other.rPoint));
-
-			}
+		/*
+		 * Orientation tests are exact (see orientation()), so touching configurations
+		 * (T-junctions, shared vertices) are classified consistently regardless of
+		 * rounding.
+		 */
+		final int o1 = orientation(this.lPoint, this.rPoint, other.lPoint);
+		final int o2 = orientation(this.lPoint, this.rPoint, other.rPoint);
+		if (o1 == 0 && o2 == 0) { // collinear: do the segments overlap beyond a point?
+			final PVector left = compareTo(this.lPoint, other.lPoint) >= 0 ? this.lPoint : other.lPoint;
+			final PVector right = compareTo(this.rPoint, other.rPoint) <= 0 ? this.rPoint : other.rPoint;
+			return compareTo(left, right) < 0;
+		}
+		final int o3 = orientation(other.lPoint, other.rPoint, this.lPoint);
+		final int o4 = orientation(other.lPoint, other.rPoint, this.rPoint);
+		if (o1 * o2 > 0 || o3 * o4 > 0) {
+			return false; // one segment lies strictly to one side of the other
 		}
-		return false;
+		// the segments meet at a single point, which must not be a shared vertex
+		return !sharesEndpoint(other);
+	}
+
+	private boolean sharesEndpoint(Segment other) {
+		return this.lPoint.equals(other.lPoint) || this.lPoint.equals(other.rPoint) || this.rPoint.equals(other.lPoint)
+				|| this.rPoint.equals(other.rPoint);
 	}
 
 	@Override
@@ -217,8 +245,38 @@ public class Segment {
 
 	@Override
 	public int hashCode() {
-		// + 1 in y points so (10,5) and (5,10) (for example) hash to different values
-		return Float.floatToIntBits(lPoint.x + rPoint.x) ^ Float.floatToIntBits(lPoint.y + rPoint.y + 1);
+		// hash each coordinate separately (rather than sums of coordinates), so that
+		// mirrored and translated segments don't collide; + 0f folds -0f into 0f
+		int h = Float.floatToIntBits(lPoint.x + 0f);
+		h = 31 * h + Float.floatToIntBits(lPoint.y + 0f);
+		h = 31 * h + Float.floatToIntBits(rPoint.x + 0f);
+		h = 31 * h + Float.floatToIntBits(rPoint.y + 0f);
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the sign of the cross product (b - a) x (c - a): 1 if c lies to the
+	 *         left of the directed line ab (counter-clockwise), -1 if to the right
+	 *         and 0 if collinear. Exact: the cross product is evaluated in double
+	 *         precision, and recomputed exactly only when it lies within the bound
+	 *         on its rounding error (as when the points are nearly collinear, or
+	 *         their coordinates differ greatly in magnitude).
+	 */
+	static int orientation(PVector a, PVector b, PVector c) {
+		final double left = ((double) b.x - a.x) * ((double) c.y - a.y);
+		final double right = ((double) b.y - a.y) * ((double) c.x - a.x);
+		final double cross = left - right;
+		final double bound = ORIENTATION_ERROR * (Math.abs(left) + Math.abs(right));
+		if (cross > bound || -cross > bound) {
+			return cross > 0 ? 1 : -1;
+		}
+		if (left == 0 && right == 0) {
+			return 0; // a difference of floats is zero only if they are equal
+		}
+		final BigDecimal ax = new BigDecimal(a.x);
+		final BigDecimal ay = new BigDecimal(a.y);
+		return new BigDecimal(b.x).subtract(ax).multiply(new BigDecimal(c.y).subtract(ay))
+				.subtract(new BigDecimal(b.y).subtract(ay).multiply(new BigDecimal(c.x).subtract(ax))).signum();
 	}
 
 	private static int compareTo(PVector a, PVector b) {
@@ -0,0 +1,261 @@
+package micycle.trapmap;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import processing.core.PShape;
+import processing.core.PVector;
+
+/**
+ * Accumulates the edges of polygon rings into a set of unique segments, ready
+ * for insertion into a trapezoidal map.
+ * <p>
+ * Each segment is labelled with the face(s) it bounds: an edge that is shared
+ * by two rings of different faces is stored once and twinned with both faces.
+ * <p>
+ * Ring coordinates are read as primitives. Vertices are interned: each distinct
+ * coordinate is materialised as a single PVector, shared by every segment that
+ * meets at it (about 6 in a typical mesh). Edges are then deduplicated by the
+ * (unordered) pair of their vertex indices, using primitive hash tables rather
+ * than hashing Segment objects.
+ * <p>
+ * With a snap tolerance, vertices within the tolerance of a vertex already seen
+ * (in each axis) are merged into it, so that rings whose shared vertices differ
+ * by rounding noise still share edges. Candidates are found by hashing vertices
+ * into a grid of cells as wide as the tolerance, and searching the 3 x 3 cells
+ * around each new vertex.
+ *
+ * @author Michael Carleton
+ */
+final class SegmentCollector {
+
+	private final LongIntHashMap vertexIndex; // packed coordinate bits -> vertex index
+	private final LongIntHashMap edgeIndex; // packed vertex index pair -> segment index
+	private final double snapTolerance; // 0 to intern exact coordinates only
+	private final LongIntHashMap cellIndex; // packed grid cell -> a vertex in the cell (when snapping)
+	private int[] nextInCell; // the next vertex in the same cell, or -1
+	private PVector[] vertices;
+	private int vertexCount;
+	private Segment[] segments;
+	private int segmentCount;
+
+	private float[] ring; // scratch buffer of ring coordinates: x0, y0, x1, y1...
+	private int[] ringVertices; // scratch buffer of interned ring vertex indices
+
+	SegmentCollector(int expectedSegments) {
+		this(expectedSegments, 0);
+	}
+
+	/**
+	 * @param snapTolerance the distance (in each axis) within which vertices are
+	 *                      merged; 0 merges only identical vertices
+	 */
+	SegmentCollector(int expectedSegments, double snapTolerance) {
+		if (!(snapTolerance >= 0) || Double.isInfinite(snapTolerance)) {
+			throw new IllegalArgumentException("Snap tolerance must be finite and non-negative: " + snapTolerance);
+		}
+		expectedSegments = Math.max(16, expectedSegments);
+		this.snapTolerance = snapTolerance;
+		vertexIndex = new LongIntHashMap(expectedSegments / 2);
+		edgeIndex = new LongIntHashMap(expectedSegments);
+		cellIndex = snapTolerance > 0 ? new LongIntHashMap(expectedSegments / 2) : null;
+		nextInCell = snapTolerance > 0 ? new int[expectedSegments / 2] : null;
+		vertices = new PVector[expectedSegments / 2];
+		segments = new Segment[expectedSegments];
+		ring = new float[64];
+		ringVertices = new int[32];
+	}
+
+	/**
+	 * Adds the outline of a polygonal shape as a ring of the given face.
+	 */
+	void addRing(PShape polygon, int faceId) {
+		final int n = polygon.getVertexCount();
+		final float[] xy = buffer(n);
+		for (int i = 0; i < n; i++) {
+			xy[2 * i] = polygon.getVertexX(i);
+			xy[2 * i + 1] = polygon.getVertexY(i);
+		}
+		addRing(n, polygon, faceId);
+	}
+
+	/**
+	 * Adds the rings of a flat coordinate array.
+	 *
+	 * @param coords      interleaved vertex coordinates: x0, y0, x1, y1...
+	 * @param ringOffsets index of the first vertex (not the first coordinate) of
+	 *                    each ring; each ring ends where the next begins
+	 * @param ringFaceIds face ID of each ring; may be null, in which case each
+	 *                    ring is its own face, whose ID is the ring's index
+	 */
+	void addRings(double[] coords, int[] ringOffsets, int[] ringFaceIds) {
+		final int vertices = coords.length / 2;
+		for (int r = 0; r < ringOffsets.length; r++) {
+			final int from = ringOffsets[r];
+			final int to = ringEnd(ringOffsets, r, vertices);
+			final float[] xy = buffer(to - from);
+			for (int i = 2 * from, j = 0; i < 2 * to; i++, j++) {
+				xy[j] = (float) coords[i];
+			}
+			addRing(to - from, null, ringFaceIds == null ? r : ringFaceIds[r]);
+		}
+	}
+
+	/**
+	 * Adds the rings of a flat coordinate buffer (read from its current position,
+	 * which is left unchanged).
+	 *
+	 * @see #addRings(double[], int[], int[])
+	 */
+	void addRings(FloatBuffer coords, int[] ringOffsets, int[] ringFaceIds) {
+		final int base = coords.position();
+		final int vertices = coords.remaining() / 2;
+		for (int r = 0; r < ringOffsets.length; r++) {
+			final int from = ringOffsets[r];
+			final int to = ringEnd(ringOffsets, r, vertices);
+			final float[] xy = buffer(to - from);
+			for (int i = 2 * from, j = 0; i < 2 * to; i++, j++) {
+				xy[j] = coords.get(base + i);
+			}
+			addRing(to - from, null, ringFaceIds == null ? r : ringFaceIds[r]);
+		}
+	}
+
+	/**
+	 * Returns the scratch ring buffer, grown to hold at least the given number of
+	 * vertices. Fill it and then call {@link #addRing(int, PShape, int)}.
+	 */
+	float[] buffer(int vertices) {
+		if (ring.length < vertices * 2) {
+			ring = new float[Math.max(vertices * 2, ring.length * 2)];
+		}
+		return ring;
+	}
+
+	/**
+	 * Adds the ring held in the first <code>n</code> vertices of the scratch
+	 * buffer. Rings are always treated as closed; a closing vertex that repeats
+	 * the first vertex is ignored, as are zero-length edges.
+	 */
+	void addRing(int n, PShape face, int faceId) {
+		if (ringVertices.length < n) {
+			ringVertices = new int[Math.max(n, ringVertices.length * 2)];
+		}
+		final int[] v = ringVertices;
+		for (int i = 0; i < n; i++) {
+			v[i] = internVertex(ring[2 * i], ring[2 * i + 1]);
+		}
+		if (n > 1 && v[0] == v[n - 1]) {
+			n--; // explicitly closed ring
+		}
+		if (n < 2) {
+			return;
+		}
+		for (int i = 1; i < n; i++) {
+			addEdge(v[i - 1], v[i], face, faceId);
+		}
+		if (n > 2) {
+			addEdge(v[n - 1], v[0], face, faceId); // close ring
+		}
+	}
+
+	Collection<Segment> segments() {
+		return Arrays.asList(Arrays.copyOf(segments, segmentCount));
+	}
+
+	/**
+	 * Returns the index of the vertex at the given coordinates, creating the vertex
+	 * if it has not been seen before.
+	 */
+	private int internVertex(float x, float y) {
+		// + 0f folds -0f into 0f, which are equal coordinates but have different bits
+		final long key = ((long) Float.floatToIntBits(x + 0f) << 32) | (Float.floatToIntBits(y + 0f) & 0xFFFFFFFFL);
+		if (snapTolerance > 0) {
+			final int existing = vertexIndex.get(key);
+			if (existing != -1) {
+				return existing;
+			}
+			final int near = snapVertex(x, y);
+			vertexIndex.putIfAbsent(key, near != -1 ? near : vertexCount); // these exact coordinates snap alike
+			if (near != -1) {
+				return near;
+			}
+		} else {
+			final int existing = vertexIndex.putIfAbsent(key, vertexCount);
+			if (existing != -1) {
+				return existing;
+			}
+		}
+		if (vertexCount == vertices.length) {
+			vertices = Arrays.copyOf(vertices, vertices.length * 2);
+		}
+		vertices[vertexCount] = new PVector(x, y);
+		return vertexCount++;
+	}
+
+	/**
+	 * Finds a vertex within the snap tolerance of the given coordinates; if there
+	 * is none, registers the vertex about to be created (at index
+	 * <code>vertexCount</code>) in its grid cell.
+	 *
+	 * @return the index of the nearby vertex, or -1 if there is none
+	 */
+	private int snapVertex(float x, float y) {
+		final long cx = (long) Math.floor(x / snapTolerance);
+		final long cy = (long) Math.floor(y / snapTolerance);
+		for (long i = cx - 1; i <= cx + 1; i++) {
+			for (long j = cy - 1; j <= cy + 1; j++) {
+				for (int v = cellIndex.get(cellKey(i, j)); v != -1; v = nextInCell[v]) {
+					if (Math.abs(vertices[v].x - x) <= snapTolerance && Math.abs(vertices[v].y - y) <= snapTolerance) {
+						return v;
+					}
+				}
+			}
+		}
+		if (vertexCount == nextInCell.length) {
+			nextInCell = Arrays.copyOf(nextInCell, nextInCell.length * 2);
+		}
+		final int head = cellIndex.putIfAbsent(cellKey(cx, cy), vertexCount);
+		if (head == -1) {
+			nextInCell[vertexCount] = -1;
+		} else { // link in after the head of the cell's list
+			nextInCell[vertexCount] = nextInCell[head];
+			nextInCell[head] = vertexCount;
+		}
+		return -1;
+	}
+
+	private static long cellKey(long cx, long cy) {
+		return (cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+
+	private void addEdge(int a, int b, PShape face, int faceId) {
+		if (a == b) {
+			return; // zero-length
+		}
+		final long key = a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+		final int existing = edgeIndex.putIfAbsent(key, segmentCount);
+		if (existing == -1) {
+			if (segmentCount == segments.length) {
+				segments = Arrays.copyOf(segments, segments.length * 2);
+			}
+			segments[segmentCount++] = new Segment(vertices[a], vertices[b], face, faceId);
+		} else {
+			final Segment other = segments[existing];
+			if (other.faceIdA != faceId) { // link the face twinned with this edge
+				other.faceB = face;
+				other.faceIdB = faceId;
+			}
+		}
+	}
+
+	private static int ringEnd(int[] ringOffsets, int ring, int vertices) {
+		final int from = ringOffsets[ring];
+		final int to = ring + 1 < ringOffsets.length ? ringOffsets[ring + 1] : vertices;
+		if (from < 0 || to < from || to > vertices) {
+			throw new IllegalArgumentException("Invalid ring offsets for ring " + ring + ": [" + from + ", " + to + ")");
+		}
+		return to;
+	}
+}
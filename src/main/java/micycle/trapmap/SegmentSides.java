@@ -0,0 +1,93 @@
+package micycle.trapmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import processing.core.PVector;
+
+/**
+ * The trapezoids lying along each side of each segment of a map, in order from
+ * the segment's left point to its right point.
+ * <p>
+ * Neighbor links connect trapezoids only across their walls, so a walk through
+ * the map that crosses a segment cannot follow a link to the trapezoid beyond
+ * it; this index finds that trapezoid by a binary search among those along the
+ * segment, without locating the point afresh from the root.
+ *
+ * @author Michael Carleton
+ */
+final class SegmentSides {
+
+	private static final Trapezoid[] NONE = new Trapezoid[0];
+
+	private final Map<Segment, Trapezoid[]> above; // trapezoids whose lower bound is the segment
+	private final Map<Segment, Trapezoid[]> below; // trapezoids whose upper bound is the segment
+
+	SegmentSides(Collection<Trapezoid> trapezoids) {
+		final Map<Segment, List<Trapezoid>> above = new IdentityHashMap<>();
+		final Map<Segment, List<Trapezoid>> below = new IdentityHashMap<>();
+		for (Trapezoid t : trapezoids) {
+			above.computeIfAbsent(t.getLowerBound(), s -> new ArrayList<>(2)).add(t);
+			below.computeIfAbsent(t.getUpperBound(), s -> new ArrayList<>(2)).add(t);
+		}
+		this.above = toSortedArrays(above);
+		this.below = toSortedArrays(below);
+	}
+
+	/**
+	 * @return the trapezoids lying above the segment (those it bounds from below),
+	 *         in order
+	 */
+	Trapezoid[] above(Segment s) {
+		return above.getOrDefault(s, NONE);
+	}
+
+	/**
+	 * @return the trapezoids lying below the segment (those it bounds from above),
+	 *         in order
+	 */
+	Trapezoid[] below(Segment s) {
+		return below.getOrDefault(s, NONE);
+	}
+
+	/**
+	 * Finds where a point lies along one side of a segment.
+	 *
+	 * @param side the trapezoids along one side of a segment, in order
+	 * @return the index of the first trapezoid whose right point is not before the
+	 *         point (ordering points by x, then y, as the map does), or the last
+	 *         index if there is none
+	 */
+	static int search(Trapezoid[] side, double x, double y) {
+		int lo = 0;
+		int hi = side.length - 1;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			final PVector r = side[mid].getRightBound();
+			if (r.x < x || (r.x == x && r.y < y)) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static Map<Segment, Trapezoid[]> toSortedArrays(Map<Segment, List<Trapezoid>> lists) {
+		final Comparator<Trapezoid> order = (a, b) -> {
+			final PVector p = a.getLeftBound();
+			final PVector q = b.getLeftBound();
+			return p.x != q.x ? Float.compare(p.x, q.x) : Float.compare(p.y, q.y);
+		};
+		final Map<Segment, Trapezoid[]> arrays = new IdentityHashMap<>(lists.size());
+		lists.forEach((s, list) -> {
+			list.sort(order);
+			arrays.put(s, list.toArray(NONE));
+		});
+		return arrays;
+	}
+}
@@ -1,12 +1,22 @@
 package micycle.trapmap;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import micycle.trapmap.graph.Leaf;
 import micycle.trapmap.graph.Node;
@@ -28,12 +38,20 @@ import processing.core.PVector;
  * @author Tyler Chenhall (core algorithm)
  * @author Michael Carleton (improvements)
  */
-public class TrapMap {
+public class TrapMap implements FaceLocator {
+
+	private static final long SHUFFLE_SEED = 0x7A7B_1E5EL; // seed for randomized incremental construction
+	static final int SPATIAL_SORT_THRESHOLD = 4096; // batches at least this big are spatially sorted by default
+	private static final int LEAF_BYTES = 32; // size of a Leaf object, with compressed references
 
 	private Node root; // root of trapezoid history graph
 	private List<Trapezoid> trapezoids; // all (leaf) trapezoids contained in the map
+	private FaceGraph faceGraph; // faces sharing boundary segments
+	private volatile SegmentSides segmentSides; // trapezoids along each segment, for walks (built on first use)
 
-	private PVector leftBound, rightBound; // coordinates of bounding box: lower left & upper right corners
+	private float minX, minY, maxX, maxY; // bounding box of the segments
+	private Segment boundsTop, boundsBottom; // synthetic segments bounding the box
+	private long trimmedBytes; // heap released after construction
 
 	/**
 	 * Builds a trapezoidal map from a collection of line segments (or a planar
@@ -53,14 +71,38 @@ public class TrapMap {
 	 * trapezoids that make a single face.
 	 *
 	 * @param segments a list of line segments from which to build a trapezoidal map
+	 * @see #TrapMap(Collection, boolean)
 	 */
 	public TrapMap(Collection<Segment> segments) {
+		this(segments, false);
+	}
+
+	/**
+	 * Builds a trapezoidal map from a collection of line segments (or a planar
+	 * straight-line graph), optionally checking first that no segments cross.
+	 * <p>
+	 * Crossing segments silently corrupt the map, so validate untrusted input (at
+	 * a cost of O((n+k) log n) for n segments with k crossings), or node it with
+	 * {@link #nodeSegments(Collection) nodeSegments()} beforehand.
+	 *
+	 * @param segments a list of line segments from which to build a trapezoidal map
+	 * @param validate whether to check the segments for crossings
+	 * @throws IllegalArgumentException if validating and any segments cross
+	 */
+	public TrapMap(Collection<Segment> segments, boolean validate) {
 		if (!(segments instanceof Set)) {
-			/*
-			 * Create as HashSet to both remove possible duplicates & shuffle the
-			 * collection. "Size of D and query time depend on insertion order".
-			 */
-			segments = new HashSet<>(segments);
+			segments = new HashSet<>(segments); // remove possible duplicates
+		}
+		if (validate) {
+			final List<Segment[]> crossings = findCrossings(segments);
+			if (!crossings.isEmpty()) {
+				final StringBuilder sb = new StringBuilder();
+				sb.append(crossings.size()).append(" pair(s) of segments cross, including:");
+				for (int i = 0; i < Math.min(3, crossings.size()); i++) {
+					sb.append(" [").append(crossings.get(i)[0]).append("] x [").append(crossings.get(i)[1]).append(']');
+				}
+				throw new IllegalArgumentException(sb.toString());
+			}
 		}
 		process(segments);
 	}
@@ -85,37 +127,224 @@ public class TrapMap {
 	 *                 (mesh-like, at most (if share edges)
 	 */
 	public TrapMap(List<PShape> polygons) {
-		final Map<Segment, Segment> segments = new HashMap<>(polygons.size() * 3);
+		this(polygons, 0);
+	}
+
+	/**
+	 * Builds a trapezoidal map from a collection of polygonal shapes, merging
+	 * vertices that lie within a tolerance of each other.
+	 * <p>
+	 * Neighboring polygons of real data often have shared vertices that differ by
+	 * rounding noise, so their common edges are not recognised as shared: each
+	 * face keeps its own copy of the edge, leaving slivers between them and
+	 * trapezoids with no face. Snapping merges each vertex into the first vertex
+	 * seen within the tolerance (in each axis), so such edges become one segment
+	 * bounding both faces. Keep the tolerance well below the size of the smallest
+	 * feature of the polygons: merging vertices that are meant to be distinct can
+	 * make edges cross.
+	 *
+	 * @param polygons      a list of disjoint polygonal shapes
+	 * @param snapTolerance the distance within which vertices are merged; 0 merges
+	 *                      only identical vertices
+	 * @see #TrapMap(List)
+	 */
+	public TrapMap(List<PShape> polygons, double snapTolerance) {
+		final SegmentCollector collector = new SegmentCollector(polygons.size() * 3, snapTolerance);
+		int faceId = 0;
 		for (PShape polygon : polygons) {
-			if (polygon.getFamily() == PShape.PRIMITIVE || polygon.getFamily() == PShape.GROUP) {
-				continue; // process polygonal shapes only
+			if (polygon.getFamily() != PShape.PRIMITIVE && polygon.getFamily() != PShape.GROUP) { // polygonal shapes only
+				collector.addRing(polygon, faceId);
 			}
-			for (int i = 0; i < polygon.getVertexCount(); i++) {
-				Segment s = null;
-				if (i < polygon.getVertexCount() - 1) {
-					s = new Segment(polygon.getVertex(i), polygon.getVertex(i + 1), polygon);
-				} else { // at last vertex
-					if (polygon.isClosed() || !polygon.getVertex(0).equals(polygon.getVertex(polygon.getVertexCount() - 1))) {
-						// create a segment between first and last vertices to close shape
-						s = new Segment(polygon.getVertex(polygon.getVertexCount() - 1), polygon.getVertex(0), polygon);
-					} else {
-						continue;
-					}
-				}
+			faceId++;
+		}
 
-				if (segments.putIfAbsent(s, s) != null) {
-					final Segment other = segments.get(s);
-					if (other.faceA != polygon) { // this should never be false
-						other.faceB = polygon; // link the polygon twinned with this edge
-					}
-				}
+		process(collector.segments());
+	}
+
+	/**
+	 * Builds a trapezoidal map from polygon rings given as a flat array of
+	 * coordinates, without the overhead of creating an intermediate PShape per
+	 * polygon.
+	 * <p>
+	 * Each ring becomes its own face, whose ID is the index of the ring; use
+	 * {@link #findContainingFace(double, double) findContainingFace()} to locate
+	 * faces. Rings are implicitly closed. As with {@link #TrapMap(List)}, rings may
+	 * share edges but their interiors cannot overlap.
+	 * 
+	 * @param coords      interleaved vertex coordinates of all rings: x0, y0, x1,
+	 *                    y1...
+	 * @param ringOffsets index of the first vertex (i.e. coordinate pair) of each
+	 *                    ring; each ring ends where the next ring begins (the last
+	 *                    ring ends at the end of <code>coords</code>)
+	 */
+	public TrapMap(double[] coords, int[] ringOffsets) {
+		this(coords, ringOffsets, null);
+	}
+
+	/**
+	 * Builds a trapezoidal map from polygon rings given as a flat array of
+	 * coordinates, assigning each ring to a face. Several rings may belong to the
+	 * same face (such as the shell and holes of a polygon).
+	 * 
+	 * @param coords      interleaved vertex coordinates of all rings: x0, y0, x1,
+	 *                    y1...
+	 * @param ringOffsets index of the first vertex (i.e. coordinate pair) of each
+	 *                    ring; each ring ends where the next ring begins (the last
+	 *                    ring ends at the end of <code>coords</code>)
+	 * @param ringFaceIds the (non-negative) face ID of each ring; if null, each
+	 *                    ring is its own face, whose ID is the ring's index
+	 * @see #TrapMap(double[], int[])
+	 */
+	public TrapMap(double[] coords, int[] ringOffsets, int[] ringFaceIds) {
+		this(coords, ringOffsets, ringFaceIds, 0);
+	}
+
+	/**
+	 * Builds a trapezoidal map from polygon rings given as a flat array of
+	 * coordinates, merging vertices that lie within a tolerance of each other (see
+	 * {@link #TrapMap(List, double)}).
+	 * 
+	 * @param coords        interleaved vertex coordinates of all rings: x0, y0, x1,
+	 *                      y1...
+	 * @param ringOffsets   index of the first vertex (i.e. coordinate pair) of each
+	 *                      ring
+	 * @param ringFaceIds   the (non-negative) face ID of each ring; if null, each
+	 *                      ring is its own face, whose ID is the ring's index
+	 * @param snapTolerance the distance within which vertices are merged; 0 merges
+	 *                      only identical vertices
+	 * @see #TrapMap(double[], int[], int[])
+	 */
+	public TrapMap(double[] coords, int[] ringOffsets, int[] ringFaceIds, double snapTolerance) {
+		final SegmentCollector collector = new SegmentCollector(coords.length / 2, snapTolerance);
+		collector.addRings(coords, ringOffsets, ringFaceIds);
+		process(collector.segments());
+	}
+
+	/**
+	 * Builds a trapezoidal map from polygon rings given as a buffer of
+	 * coordinates. The buffer is read from its current position to its limit; its
+	 * position is not modified.
+	 * 
+	 * @param coords      interleaved vertex coordinates of all rings: x0, y0, x1,
+	 *                    y1...
+	 * @param ringOffsets index of the first vertex (i.e. coordinate pair) of each
+	 *                    ring, relative to the buffer's position
+	 * @param ringFaceIds the (non-negative) face ID of each ring; if null, each
+	 *                    ring is its own face, whose ID is the ring's index
+	 * @see #TrapMap(double[], int[], int[])
+	 */
+	public TrapMap(FloatBuffer coords, int[] ringOffsets, int[] ringFaceIds) {
+		this(coords, ringOffsets, ringFaceIds, 0);
+	}
+
+	/**
+	 * Builds a trapezoidal map from polygon rings given as a buffer of
+	 * coordinates, merging vertices that lie within a tolerance of each other (see
+	 * {@link #TrapMap(List, double)}). The buffer's position is not modified.
+	 * 
+	 * @param coords        interleaved vertex coordinates of all rings: x0, y0, x1,
+	 *                      y1...
+	 * @param ringOffsets   index of the first vertex (i.e. coordinate pair) of each
+	 *                      ring, relative to the buffer's position
+	 * @param ringFaceIds   the (non-negative) face ID of each ring; if null, each
+	 *                      ring is its own face, whose ID is the ring's index
+	 * @param snapTolerance the distance within which vertices are merged; 0 merges
+	 *                      only identical vertices
+	 * @see #TrapMap(FloatBuffer, int[], int[])
+	 */
+	public TrapMap(FloatBuffer coords, int[] ringOffsets, int[] ringFaceIds, double snapTolerance) {
+		final SegmentCollector collector = new SegmentCollector(coords.remaining() / 2, snapTolerance);
+		collector.addRings(coords, ringOffsets, ringFaceIds);
+		process(collector.segments());
+	}
+
+	/**
+	 * Builds a trapezoidal map from a stream of polygonal geometries encoded as
+	 * Well-Known Binary (WKB). Geometries are read one after another until the end
+	 * of the stream; each geometry (a Polygon, MultiPolygon or a collection of
+	 * these) becomes one face, whose ID is the index of the geometry in the
+	 * stream. Z and M ordinates are ignored.
+	 * <p>
+	 * The stream is not closed by this method.
+	 * 
+	 * @param wkb stream of concatenated WKB geometries
+	 * @return the trapezoidal map of the geometries
+	 * @throws IOException if the stream cannot be read or contains an unsupported
+	 *                     geometry type
+	 */
+	public static TrapMap fromWKB(InputStream wkb) throws IOException {
+		return fromWKB(wkb, 0);
+	}
+
+	/**
+	 * Builds a trapezoidal map from a stream of WKB geometries, merging vertices
+	 * that lie within a tolerance of each other (see
+	 * {@link #TrapMap(List, double)}).
+	 * 
+	 * @param wkb           stream of concatenated WKB geometries
+	 * @param snapTolerance the distance within which vertices are merged; 0 merges
+	 *                      only identical vertices
+	 * @return the trapezoidal map of the geometries
+	 * @throws IOException if the stream cannot be read or contains an unsupported
+	 *                     geometry type
+	 * @see #fromWKB(InputStream)
+	 */
+	public static TrapMap fromWKB(InputStream wkb, double snapTolerance) throws IOException {
+		final SegmentCollector collector = new SegmentCollector(1024, snapTolerance);
+		new WKBReader(wkb).readAll(collector);
+		return new TrapMap(collector);
+	}
+
+	/**
+	 * Finds the pairs of segments that cross: segments whose interiors intersect,
+	 * or where an endpoint of one lies in the interior of the other (including
+	 * collinear overlaps). Segments that merely share an endpoint do not cross.
+	 * <p>
+	 * Uses a plane sweep, taking O((n+k) log n) time for n segments with k
+	 * crossing pairs.
+	 *
+	 * @param segments segments to check
+	 * @return list of crossing pairs, each given as a two-element array (empty if
+	 *         the segments are valid input for a TrapMap)
+	 */
+	public static List<Segment[]> findCrossings(Collection<Segment> segments) {
+		return CrossingSweep.findCrossings(segments);
+	}
+
+	/**
+	 * Splits crossing segments at their points of intersection, so that the
+	 * resulting segments meet only at endpoints (and can be used to build a
+	 * TrapMap). Collinear overlapping segments are merged into common pieces.
+	 * Intersection points are rounded to float precision.
+	 *
+	 * @param segments segments to node
+	 * @return noded segments (the input collection itself if no segments cross)
+	 */
+	public static Collection<Segment> nodeSegments(Collection<Segment> segments) {
+		return CrossingSweep.node(segments);
+	}
+
+	/**
+	 * @return the segments of the maps, without their face labels (which refer to
+	 *         the maps), noded so that they meet only at endpoints
+	 */
+	static Collection<Segment> nodedUnion(Iterable<? extends TrapMap> maps) {
+		final Set<Segment> segments = new LinkedHashSet<>();
+		for (TrapMap map : maps) {
+			for (Segment s : map.getSegments()) {
+				segments.add(new Segment(s.getLeftPoint(), s.getRightPoint()));
 			}
 		}
+		return CrossingSweep.node(segments);
+	}
 
-		process(segments.values());
+	private TrapMap(SegmentCollector collector) {
+		process(collector.segments());
 	}
 
 	private void process(Collection<Segment> segments) {
+		faceGraph = new FaceGraph(segments);
+
 		// 1. Determine a bounding box for the segments
 		Trapezoid bounds = computeBounds(segments);
 		Leaf f = new Leaf(bounds);
@@ -123,6 +352,7 @@ public class TrapMap {
 		root = f;
 
 		Segment[] segs = segments.toArray(new Segment[segments.size()]); // relabel array
+		shuffle(segs); // "Size of D and query time depend on insertion order"
 
 		// 2. Incrementally construct trapezoidal (using randomized segment set)
 		for (Segment seg : segs) {
@@ -149,7 +379,15 @@ public class TrapMap {
 				top.setLeaf(topN);
 				Leaf bottomN = new Leaf(bottom);
 				bottom.setLeaf(bottomN);
-				if (!(lefty.hasZeroWidth() || righty.hasZeroWidth())) {
+				/*
+				 * Lefty (righty) vanishes only if the segment shares its endpoint with the
+				 * bounding vertex of the old trapezoid. Merely sharing an x-coordinate is not
+				 * enough: under the symbolic shear used to order points with equal x, such a
+				 * trapezoid is a proper (if geometrically zero-width) trapezoid.
+				 */
+				final boolean leftVanishes = old.getLeftBound().equals(seg.getLeftPoint());
+				final boolean rightVanishes = old.getRightBound().equals(seg.getRightPoint());
+				if (!(leftVanishes || rightVanishes)) {
 
 					// link all the nodes for the trapezoids
 					ll.setLeftChildNode(leftyN);
@@ -184,7 +422,7 @@ public class TrapMap {
 					lowerLink(bottom, righty);
 					upperLink(righty, old.getUpperRightNeighbor());
 					upperLink(top, righty);
-				} else if (lefty.hasZeroWidth() && !righty.hasZeroWidth()) {// only left has zero width
+				} else if (leftVanishes && !rightVanishes) {// only left has zero width
 					// link all the nodes for the trapezoids
 					rr.setLeftChildNode(ss);
 					rr.setRightChildNode(rightyN);
@@ -214,7 +452,7 @@ public class TrapMap {
 					lowerLink(bottom, righty);
 					upperLink(righty, old.getUpperRightNeighbor());
 					upperLink(top, righty);
-				} else if (righty.hasZeroWidth() && !lefty.hasZeroWidth()) { // only right has zero width
+				} else if (rightVanishes && !leftVanishes) { // only right has zero width
 					// link all the nodes for the trapezoids
 					ll.setLeftChildNode(leftyN);
 					ll.setRightChildNode(ss);
@@ -455,19 +693,19 @@ public class TrapMap {
 
 					lowerLink(leftmost, botArr[0]);
 					upperLink(leftmost, topArr[0]);
-				} else // link top & bot arr with appropriate left links of oldLeft
-				if (oldLeft.getUpperBound().getLeftPoint().equals(oldLeft.getLowerBound().getLeftPoint())) {
-					// triangles, so no neighbors to worry about
-				} else if (oldLeft.getUpperBound().getLeftPoint().equals(oldLeft.getLeftBound())) {
-					// upper half degenerates to a triangle
-					lowerLink(oldLeft.getLowerLeftNeighbor(), botArr[0]);
-				} else if (oldLeft.getLowerBound().getLeftPoint().equals(oldLeft.getLeftBound())) {
-					// lower half degenerates to a triangle
-					upperLink(oldLeft.getUpperLeftNeighbor(), topArr[0]);
-				} else {
-					// neither degenerates to a triangle
-					lowerLink(oldLeft.getLowerLeftNeighbor(), botArr[0]);
-					upperLink(oldLeft.getUpperLeftNeighbor(), topArr[0]);
+				} else { // link top & bot arr with appropriate left links of oldLeft
+					/*
+					 * A half degenerates to a triangle (and has no left neighbor) when its
+					 * bounding segment starts at the left bound. The upper and lower segments
+					 * sharing a left endpoint is not enough: they may meet further left (at a
+					 * vertex on the bounding box, say).
+					 */
+					if (!oldLeft.getUpperBound().getLeftPoint().equals(oldLeft.getLeftBound())) {
+						upperLink(oldLeft.getUpperLeftNeighbor(), topArr[0]);
+					}
+					if (!oldLeft.getLowerBound().getLeftPoint().equals(oldLeft.getLeftBound())) {
+						lowerLink(oldLeft.getLowerLeftNeighbor(), botArr[0]);
+					}
 				}
 				if (rightmost != null) {
 					lowerLink(rightmost, oldRight.getLowerRightNeighbor());
@@ -475,19 +713,14 @@ public class TrapMap {
 
 					lowerLink(botArr[botArr.length - 1], rightmost);
 					upperLink(topArr[topArr.length - 1], rightmost);
-				} else // link the top & bot arr with the appropriate right links of oldRight
-				if (oldRight.getUpperBound().getRightPoint().equals(oldRight.getLowerBound().getRightPoint())) {
-					// triangles, hence no right neighbors
-				} else if (oldRight.getUpperBound().getRightPoint().equals(oldRight.getRightBound())) {
-					// upper half degenerates to a triangle
-					lowerLink(botArr[botArr.length - 1], oldRight.getLowerRightNeighbor());
-				} else if (oldRight.getLowerBound().getRightPoint().equals(oldRight.getRightBound())) {
-					// lower half degenerates to a triangle
-					upperLink(topArr[topArr.length - 1], oldRight.getUpperRightNeighbor());
-				} else {
-					// neither degenerates to a triangle
-					lowerLink(botArr[botArr.length - 1], oldRight.getLowerRightNeighbor());
-					upperLink(topArr[topArr.length - 1], oldRight.getUpperRightNeighbor());
+				} else { // link the top & bot arr with the appropriate right links of oldRight
+					// likewise, a half is a triangle only if its segment ends at the right bound
+					if (!oldRight.getUpperBound().getRightPoint().equals(oldRight.getRightBound())) {
+						upperLink(topArr[topArr.length - 1], oldRight.getUpperRightNeighbor());
+					}
+					if (!oldRight.getLowerBound().getRightPoint().equals(oldRight.getRightBound())) {
+						lowerLink(botArr[botArr.length - 1], oldRight.getLowerRightNeighbor());
+					}
 				}
 
 				// create leaf structures ahead of time to deal with the duplication problem
@@ -557,6 +790,130 @@ public class TrapMap {
 					}
 				}
 			}
+			for (Leaf replaced : list) {
+				unlinkReplaced(replaced.getData());
+			}
+		}
+
+		// 3. Release the state needed only to rewire the history graph
+		trimmedBytes = trim(segs.length);
+	}
+
+	/**
+	 * Clears the neighbor links that still lead to a trapezoid once a segment has
+	 * replaced it. Such links remain on point-like trapezoids whose replaced
+	 * neighbor was split by a segment starting (or ending) at the point, leaving
+	 * them touching the new trapezoids only at that point; followed, they would
+	 * lead out of the map.
+	 */
+	private static void unlinkReplaced(Trapezoid old) {
+		unlink(old.getUpperLeftNeighbor(), old);
+		unlink(old.getLowerLeftNeighbor(), old);
+		unlink(old.getUpperRightNeighbor(), old);
+		unlink(old.getLowerRightNeighbor(), old);
+	}
+
+	private static void unlink(Trapezoid t, Trapezoid old) {
+		if (t == null) {
+			return;
+		}
+		if (t.getUpperLeftNeighbor() == old) {
+			t.setUpperLeftNeighbor(null);
+		}
+		if (t.getLowerLeftNeighbor() == old) {
+			t.setLowerLeftNeighbor(null);
+		}
+		if (t.getUpperRightNeighbor() == old) {
+			t.setUpperRightNeighbor(null);
+		}
+		if (t.getLowerRightNeighbor() == old) {
+			t.setLowerRightNeighbor(null);
+		}
+	}
+
+	/**
+	 * Releases construction-only state from the history graph, in one traversal:
+	 * the parent lists of its nodes and the leaf back-pointers of its trapezoids.
+	 * Leaves holding the same trapezoid are merged.
+	 * 
+	 * @param segmentCount the number of segments inserted (a map of n segments has
+	 *                     at most 3n + 1 trapezoids)
+	 * @return an estimate of the heap bytes released (assuming compressed object
+	 *         references)
+	 */
+	private long trim(int segmentCount) {
+		long bytes = 0;
+		final Map<Trapezoid, Leaf> leaves = new IdentityHashMap<>(3 * segmentCount + 1);
+		final Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>(4 * segmentCount + 1));
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		if (root instanceof Leaf) {
+			leaves.put(((Leaf) root).getData(), (Leaf) root);
+		} else {
+			stack.push(root);
+		}
+		while (!stack.isEmpty()) {
+			final Node node = stack.pop();
+			if (!visited.add(node)) {
+				continue;
+			}
+			bytes += parentListBytes(node.clearParentNodes());
+			for (int side = 0; side < 2; side++) {
+				final Node child = side == 0 ? node.getLeftChildNode() : node.getRightChildNode();
+				if (!(child instanceof Leaf)) {
+					stack.push(child);
+					continue;
+				}
+				final Leaf leaf = leaves.putIfAbsent(((Leaf) child).getData(), (Leaf) child);
+				final int parents = child.clearParentNodes(); // 0 once cleared
+				if (leaf == null) {
+					bytes += parentListBytes(parents);
+				} else if (leaf != child) { // a duplicate: relink the node to the first leaf met
+					if (side == 0) {
+						node.setLeftChildNode(leaf);
+					} else {
+						node.setRightChildNode(leaf);
+					}
+					if (parents > 0) { // counted when first met
+						bytes += LEAF_BYTES + parentListBytes(parents);
+					}
+				}
+			}
+		}
+		for (Leaf leaf : leaves.values()) {
+			leaf.clearParentNodes(); // recorded again by relinking
+			leaf.getData().setLeaf(null);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the size of a node's parent list (an ArrayList of initial capacity
+	 *         2), including its backing array
+	 */
+	private static long parentListBytes(int size) {
+		if (size == 0) {
+			return 0;
+		}
+		int capacity = 2;
+		while (capacity < size) {
+			capacity += capacity >> 1; // ArrayList growth
+		}
+		return 24 + ((16 + 4 * capacity + 7) & ~7);
+	}
+
+	/**
+	 * Shuffles the segments into a random insertion order (which gives the expected
+	 * O(n) size and O(log n) query time of the search structure). Input order is
+	 * often spatially coherent (such as the rings of a mesh), which is close to
+	 * the worst case. A fixed seed keeps construction reproducible.
+	 */
+	private static void shuffle(Segment[] segments) {
+		final Random random = new Random(SHUFFLE_SEED);
+		for (int i = segments.length - 1; i > 0; i--) {
+			final int j = random.nextInt(i + 1);
+			final Segment temp = segments[i];
+			segments[i] = segments[j];
+			segments[j] = temp;
 		}
 	}
 
@@ -578,10 +935,13 @@ public class TrapMap {
 			}
 		}
 		// create a trapezoid using the bounding box
-		leftBound = new PVector(minx, miny);
-		rightBound = new PVector(maxx, maxy);
-		return new Trapezoid(leftBound, rightBound, new Segment(new PVector(minx, maxy), new PVector(maxx, maxy)),
-				new Segment(new PVector(minx, miny), new PVector(maxx, miny)));
+		minX = minx;
+		minY = miny;
+		maxX = maxx;
+		maxY = maxy;
+		boundsTop = new Segment(new PVector(minx, maxy), new PVector(maxx, maxy));
+		boundsBottom = new Segment(new PVector(minx, miny), new PVector(maxx, miny));
+		return new Trapezoid(new PVector(minx, miny), new PVector(maxx, maxy), boundsTop, boundsBottom);
 	}
 
 	/**
@@ -680,6 +1040,10 @@ public class TrapMap {
 	 *         if none contain the point)
 	 */
 	public Trapezoid findNearestTrapezoid(double x, double y) {
+		// clamp the query to the bounding box, so that points outside it resolve to
+		// the trapezoid nearest to them
+		x = Math.min(Math.max(x, minX), maxX);
+		y = Math.min(Math.max(y, minY), maxY);
 		Node current = root;
 		while (!(current instanceof Leaf)) {
 			if (current instanceof XNode) { // point query: does p lie to the left or the right of a given point?
@@ -714,12 +1078,68 @@ public class TrapMap {
 	 *         the point)
 	 */
 	public Trapezoid findContainingTrapezoid(double x, double y) {
-		if ((x < leftBound.x || x > rightBound.x || y < leftBound.y || y > rightBound.y)) {
+		if (!inBounds(x, y)) {
 			return null;
 		}
 		return findNearestTrapezoid(x, y);
 	}
 
+	/**
+	 * Locates the trapezoid that a point moving from (x, y) in the direction (dx,
+	 * dy) enters: a point location in which a point lying on the vertical line of
+	 * an x-node, or on the segment of a y-node, takes the branch on the side it is
+	 * moving towards.
+	 *
+	 * @param crossed a segment that the point is known to lie on (such as one that
+	 *                a path crosses at the point, where rounding could put the
+	 *                point on either side of it), or null
+	 * @return the trapezoid entered (the nearest one, if the point lies outside the
+	 *         map)
+	 */
+	Trapezoid findTrapezoidAlong(double x, double y, double dx, double dy, Segment crossed) {
+		Node current = root;
+		while (!(current instanceof Leaf)) {
+			final boolean left; // left of an x-node, or above a y-node
+			if (current instanceof XNode) {
+				final PVector p = ((XNode) current).getData();
+				if (x != p.x) {
+					left = x < p.x;
+				} else if (dx != 0) {
+					left = dx < 0;
+				} else {
+					left = y < p.y || (y == p.y && dy < 0);
+				}
+			} else {
+				final Segment s = ((YNode) current).getData();
+				final double ex = (double) s.getRightPoint().x - s.getLeftPoint().x;
+				final double ey = (double) s.getRightPoint().y - s.getLeftPoint().y;
+				double side = s == crossed ? 0 : ex * (y - s.getLeftPoint().y) - ey * (x - s.getLeftPoint().x);
+				if (side == 0) {
+					side = ex * dy - ey * dx;
+				}
+				left = side > 0;
+			}
+			current = left ? current.getLeftChildNode() : current.getRightChildNode();
+		}
+		return ((Leaf) current).getData();
+	}
+
+	/**
+	 * @return the trapezoids lying along each side of each segment, by which a walk
+	 *         through the map crosses segments (built on first use)
+	 */
+	SegmentSides getSegmentSides() {
+		SegmentSides sides = segmentSides;
+		if (sides == null) {
+			final Set<Leaf> leaves = new HashSet<>();
+			recurseChildNodes(root, leaves);
+			final List<Trapezoid> all = new ArrayList<>(leaves.size());
+			leaves.forEach(l -> all.add(l.getData()));
+			segmentSides = sides = new SegmentSides(all);
+		}
+		return sides;
+	}
+
 	/**
 	 * Finds the group of trapezoids that make up the face that contains the query
 	 * point.
@@ -754,12 +1174,541 @@ public class TrapMap {
 	 *         contains the point
 	 */
 	public PShape findContainingPolygon(double x, double y) {
+		if (!inBounds(x, y)) {
+			return null;
+		}
 		return findNearestTrapezoid(x, y).getFace();
 	}
 
 	/**
-	 * Returns all the trapezoids contained in the trapezoid map.
+	 * Locates the face which contains the query point, returning its integer ID.
+	 * <p>
+	 * Face IDs are available whenever the TrapMap is constructed from polygons:
+	 * for {@link #TrapMap(List) PShapes}, the ID is the index of the shape in the
+	 * input list; for rings of coordinates, it is the ID assigned to the ring (by
+	 * default the ring's index).
+	 * 
+	 * @param x x-coordinate of query point
+	 * @param y y-coordinate of query point
+	 * @return ID of the face which contains the query point; otherwise -1 if no
+	 *         face contains the point
+	 */
+	@Override
+	public int findContainingFace(double x, double y) {
+		if (!inBounds(x, y)) {
+			return -1;
+		}
+		return findNearestTrapezoid(x, y).getFaceId();
+	}
+
+	/**
+	 * Locates the faces containing each of a batch of points.
+	 * <p>
+	 * Large batches are located in the order of a Hilbert curve over the map's
+	 * bounding box: consecutive queries then descend through mostly the same nodes
+	 * of the search structure, which stay in the CPU cache.
+	 * 
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the ID of the face containing each point (-1 where no face contains
+	 *         it)
+	 * @see #findContainingFace(double, double)
+	 */
+	@Override
+	public int[] findContainingFaces(double[] coords) {
+		return findContainingFaces(coords, coords.length / 2 >= SPATIAL_SORT_THRESHOLD);
+	}
+
+	/**
+	 * Locates the faces containing each of a batch of points, optionally reordering
+	 * the queries for cache locality.
+	 * 
+	 * @param coords      interleaved point coordinates: x0, y0, x1, y1...
+	 * @param spatialSort whether to locate the points in the order of a Hilbert
+	 *                    curve (rather than in the given order); the results are
+	 *                    in the given order either way
+	 * @return the ID of the face containing each point (-1 where no face contains
+	 *         it)
+	 * @see #findContainingFaces(double[])
+	 */
+	public int[] findContainingFaces(double[] coords, boolean spatialSort) {
+		final int[] faces = new int[coords.length / 2];
+		if (spatialSort) {
+			for (int i : HilbertCurve.sort(coords, minX, minY, maxX, maxY)) {
+				faces[i] = findContainingFace(coords[2 * i], coords[2 * i + 1]);
+			}
+		} else {
+			for (int i = 0; i < faces.length; i++) {
+				faces[i] = findContainingFace(coords[2 * i], coords[2 * i + 1]);
+			}
+		}
+		return faces;
+	}
+
+	/**
+	 * Compiles the search structure into a compact, array-based form for fast
+	 * point location, with nodes in a cache-oblivious layout.
+	 *
+	 * @return the compiled search structure
+	 * @see #compile(CompiledTrapMap.Layout)
+	 */
+	public CompiledTrapMap compile() {
+		return compile(CompiledTrapMap.Layout.VAN_EMDE_BOAS);
+	}
+
+	/**
+	 * Compiles the search structure into a compact, array-based form for fast
+	 * point location, with nodes laid out in memory in the given order.
+	 *
+	 * @param layout the order of nodes in memory
+	 * @return the compiled search structure
+	 */
+	public CompiledTrapMap compile(CompiledTrapMap.Layout layout) {
+		return new CompiledTrapMap(root, minX, minY, maxX, maxY, layout);
+	}
+
+	/**
+	 * Finds the segment of the map directly above a point (shooting a vertical ray
+	 * upwards from it). A segment passing through the point counts as above it.
+	 * 
+	 * @param x x-coordinate of query point
+	 * @param y y-coordinate of query point
+	 * @return the nearest segment above the point, or null if there is none
+	 * @see #segmentBelow(double, double)
+	 */
+	public Segment segmentAbove(double x, double y) {
+		if (x < minX || x > maxX || y > maxY) {
+			return null;
+		}
+		// a point on a segment is located below it
+		final Segment s = findNearestTrapezoid(x, y).getUpperBound();
+		return s == boundsTop ? null : s;
+	}
+
+	/**
+	 * Finds the segment of the map directly below a point (shooting a vertical ray
+	 * downwards from it). A segment passing through the point counts as below it.
 	 * 
+	 * @param x x-coordinate of query point
+	 * @param y y-coordinate of query point
+	 * @return the nearest segment below the point, or null if there is none
+	 * @see #segmentAbove(double, double)
+	 */
+	public Segment segmentBelow(double x, double y) {
+		if (x < minX || x > maxX || y < minY) {
+			return null;
+		}
+		final Trapezoid t = findNearestTrapezoid(x, y);
+		// the point lies on the upper bound (or above it, if clamped to the box)
+		if (t.getUpperBound() != boundsTop && QueryRegion.yAt(t.getUpperBound(), x) <= y) {
+			return t.getUpperBound();
+		}
+		return t.getLowerBound() == boundsBottom ? null : t.getLowerBound();
+	}
+
+	/**
+	 * Finds the segment of the map nearest to a point (for snapping, say), which
+	 * may lie inside or outside the map.
+	 * <p>
+	 * The search is best-first, through the regions of the point location
+	 * structure in order of their distance from the point, and stops once the
+	 * nearest region is farther than the nearest segment found so far. Typically
+	 * only the trapezoids around the point are examined.
+	 * 
+	 * @param x x-coordinate of query point
+	 * @param y y-coordinate of query point
+	 * @return the nearest segment to the point
+	 * @see #distanceToBoundary(double, double)
+	 */
+	public Segment nearestSegment(double x, double y) {
+		return new NearestSegmentSearch(root, minX, maxX, boundsTop, boundsBottom, x, y).segment;
+	}
+
+	/**
+	 * Finds the distance from a point to the nearest segment of the map (the
+	 * boundary of the face containing the point, when the map is a planar
+	 * subdivision).
+	 * 
+	 * @param x x-coordinate of query point
+	 * @param y y-coordinate of query point
+	 * @return the Euclidean distance from the point to the nearest segment
+	 * @see #nearestSegment(double, double)
+	 */
+	public double distanceToBoundary(double x, double y) {
+		return Math.sqrt(new NearestSegmentSearch(root, minX, maxX, boundsTop, boundsBottom, x, y).distanceSq);
+	}
+
+	/**
+	 * Finds the segment directly above each of a batch of points.
+	 * 
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the nearest segment above each point (null where there is none)
+	 * @see #segmentAbove(double, double)
+	 */
+	public Segment[] segmentsAbove(double[] coords) {
+		final Segment[] segments = new Segment[coords.length / 2];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = segmentAbove(coords[2 * i], coords[2 * i + 1]);
+		}
+		return segments;
+	}
+
+	/**
+	 * Finds the segment directly below each of a batch of points.
+	 * 
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the nearest segment below each point (null where there is none)
+	 * @see #segmentBelow(double, double)
+	 */
+	public Segment[] segmentsBelow(double[] coords) {
+		final Segment[] segments = new Segment[coords.length / 2];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = segmentBelow(coords[2 * i], coords[2 * i + 1]);
+		}
+		return segments;
+	}
+
+	/**
+	 * Finds all trapezoids that intersect an axis-aligned rectangle (a viewport,
+	 * say).
+	 * <p>
+	 * Rather than testing every trapezoid, this descends the point location
+	 * structure along every path that a point of the rectangle could take, so
+	 * time is roughly proportional to the number of trapezoids found (plus O(log
+	 * n)), rather than to the size of the map.
+	 * 
+	 * @param minX minimum x-coordinate of the rectangle
+	 * @param minY minimum y-coordinate of the rectangle
+	 * @param maxX maximum x-coordinate of the rectangle
+	 * @param maxY maximum y-coordinate of the rectangle
+	 * @return trapezoids intersecting the rectangle (including those touching its
+	 *         boundary); empty if the rectangle lies outside the map
+	 */
+	public List<Trapezoid> findTrapezoidsInRect(double minX, double minY, double maxX, double maxY) {
+		final List<Trapezoid> found = new ArrayList<>();
+		walkRect(minX, minY, maxX, maxY, found::add);
+		return found;
+	}
+
+	/**
+	 * Finds the faces that intersect an axis-aligned rectangle (a viewport, say),
+	 * returning their integer IDs.
+	 * 
+	 * @param minX minimum x-coordinate of the rectangle
+	 * @param minY minimum y-coordinate of the rectangle
+	 * @param maxX maximum x-coordinate of the rectangle
+	 * @param maxY maximum y-coordinate of the rectangle
+	 * @return distinct IDs of the faces intersecting the rectangle, in no
+	 *         particular order
+	 * @see #findTrapezoidsInRect(double, double, double, double)
+	 * @see #findContainingFace(double, double)
+	 */
+	public int[] findFacesInRect(double minX, double minY, double maxX, double maxY) {
+		final LongIntHashMap seen = new LongIntHashMap(16);
+		int[] faces = new int[16];
+		int count = 0;
+		for (Trapezoid t : findTrapezoidsInRect(minX, minY, maxX, maxY)) {
+			final int faceId = t.getFaceId();
+			if (faceId != -1 && seen.putIfAbsent(faceId, 0) == -1) {
+				if (count == faces.length) {
+					faces = Arrays.copyOf(faces, count * 2);
+				}
+				faces[count++] = faceId;
+			}
+		}
+		return Arrays.copyOf(faces, count);
+	}
+
+	/**
+	 * Finds the trapezoids crossed by a line segment (a line of sight or a route,
+	 * say), in order from the segment's first endpoint to its second.
+	 * <p>
+	 * Time is roughly proportional to the number of trapezoids found (plus O(log
+	 * n)), rather than to the size of the map.
+	 * 
+	 * @param x1 x-coordinate of the first endpoint
+	 * @param y1 y-coordinate of the first endpoint
+	 * @param x2 x-coordinate of the second endpoint
+	 * @param y2 y-coordinate of the second endpoint
+	 * @return trapezoids intersecting (or touching) the segment, ordered by where
+	 *         the segment enters them; empty if the segment lies outside the map
+	 */
+	public List<Trapezoid> findTrapezoidsAlongSegment(double x1, double y1, double x2, double y2) {
+		if (Math.max(x1, x2) < minX || Math.min(x1, x2) > maxX || Math.max(y1, y2) < minY || Math.min(y1, y2) > maxY) {
+			return new ArrayList<>();
+		}
+		final SegmentCrossings crossings = new SegmentCrossings(new QueryRegion.Line(x1, y1, x2 - x1, y2 - y1, 0, 1));
+		crossings.line.descend(root, crossings);
+		return crossings.inOrder();
+	}
+
+	/**
+	 * Collects the proper trapezoids crossed by a line segment, with the parameter
+	 * interval over which the segment crosses each (clipped once, as the
+	 * trapezoid is found).
+	 */
+	private static final class SegmentCrossings implements Consumer<Trapezoid> {
+
+		private final QueryRegion.Line line;
+		private final List<Trapezoid> trapezoids = new ArrayList<>();
+		private double[] enter = new double[16];
+		private double[] exit = new double[16];
+
+		SegmentCrossings(QueryRegion.Line line) {
+			this.line = line;
+		}
+
+		@Override
+		public void accept(Trapezoid trapezoid) {
+			if (!isProper(trapezoid)) {
+				return;
+			}
+			final int i = trapezoids.size();
+			if (i == enter.length) {
+				enter = Arrays.copyOf(enter, 2 * i);
+				exit = Arrays.copyOf(exit, 2 * i);
+			}
+			enter[i] = line.enter; // the interval of the clip that accepted the trapezoid
+			exit[i] = line.exit;
+			trapezoids.add(trapezoid);
+		}
+
+		/**
+		 * @return the trapezoids ordered by where the segment enters them, then by
+		 *         where it leaves them
+		 */
+		List<Trapezoid> inOrder() {
+			final Integer[] order = new Integer[trapezoids.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> enter[a] != enter[b] ? Double.compare(enter[a], enter[b]) : Double.compare(exit[a], exit[b]));
+			final List<Trapezoid> sorted = new ArrayList<>(order.length);
+			for (int i : order) {
+				sorted.add(trapezoids.get(i));
+			}
+			return sorted;
+		}
+	}
+
+	/**
+	 * Shoots a ray from a point and finds the first segment of the map that it
+	 * hits.
+	 * <p>
+	 * Only the trapezoids that the ray crosses before leaving the map's bounding
+	 * box are examined, so this is much faster than testing every segment.
+	 * 
+	 * @param x  x-coordinate of the ray's origin (which may lie outside the map)
+	 * @param y  y-coordinate of the ray's origin
+	 * @param dx x-component of the ray's direction
+	 * @param dy y-component of the ray's direction
+	 * @return the first segment hit by the ray (a segment passing through the
+	 *         origin is hit immediately), or null if the ray hits no segment
+	 * @throws IllegalArgumentException if the direction is zero
+	 */
+	public Segment firstHit(double x, double y, double dx, double dy) {
+		if (dx == 0 && dy == 0) {
+			throw new IllegalArgumentException("Ray direction must be non-zero");
+		}
+		// clip the ray to the bounding box
+		double tMin = 0;
+		double tMax = Double.POSITIVE_INFINITY;
+		if (dx != 0) {
+			final double ta = (minX - x) / dx;
+			final double tb = (maxX - x) / dx;
+			tMin = Math.max(tMin, Math.min(ta, tb));
+			tMax = Math.min(tMax, Math.max(ta, tb));
+		} else if (x < minX || x > maxX) {
+			return null;
+		}
+		if (dy != 0) {
+			final double ta = (minY - y) / dy;
+			final double tb = (maxY - y) / dy;
+			tMin = Math.max(tMin, Math.min(ta, tb));
+			tMax = Math.min(tMax, Math.max(ta, tb));
+		} else if (y < minY || y > maxY) {
+			return null;
+		}
+		if (tMin > tMax) {
+			return null;
+		}
+
+		/*
+		 * A segment hit by the ray bounds (from above or below) a trapezoid that the
+		 * ray crosses. Tests are widened slightly, so that a segment which the ray
+		 * only grazes where it enters or leaves the bounding box is not rounded away.
+		 */
+		final double slack = 1e-9 * Math.max(1, Math.max(Math.max(Math.abs(minX), Math.abs(maxX)), Math.max(Math.abs(minY), Math.abs(maxY))));
+		final RayHit hit = new RayHit(new QueryRegion.Line(x, y, dx, dy, 0, tMax, slack));
+		hit.ray.descend(root, hit);
+		return hit.segment;
+	}
+
+	/**
+	 * Finds the nearest segment hit by a ray, among the upper and lower bounds of
+	 * the trapezoids it is given.
+	 */
+	private final class RayHit implements Consumer<Trapezoid> {
+
+		private final QueryRegion.Line ray;
+		private Segment segment;
+		private double t = Double.POSITIVE_INFINITY;
+
+		RayHit(QueryRegion.Line ray) {
+			this.ray = ray;
+		}
+
+		@Override
+		public void accept(Trapezoid trapezoid) {
+			test(trapezoid.getUpperBound());
+			test(trapezoid.getLowerBound());
+		}
+
+		private void test(Segment s) {
+			if (s != segment && s != boundsTop && s != boundsBottom) {
+				final double hit = ray.hit(s);
+				if (hit < t) { // false for NaN (a miss)
+					t = hit;
+					segment = s;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the structural invariants of the map, for testing (it takes
+	 * O(n log n) time):
+	 * <ul>
+	 * <li>every node of the search structure has two children;</li>
+	 * <li>neighbor links are symmetric, join trapezoids that share a vertical wall,
+	 * and lead only to trapezoids of the map (leaves reachable from the
+	 * root);</li>
+	 * <li>trapezoids do not overlap: an interior point of each locates back to
+	 * it;</li>
+	 * <li>the trapezoids cover the bounding box: their areas sum to its area.</li>
+	 * </ul>
+	 *
+	 * @return descriptions of the violated invariants (empty if the map is valid)
+	 */
+	public List<String> validate() {
+		final List<String> problems = new ArrayList<>();
+		final Set<Trapezoid> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+		final Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Node node = stack.pop();
+			if (!visited.add(node)) {
+				continue;
+			}
+			if (node instanceof Leaf) {
+				reachable.add(((Leaf) node).getData());
+			} else if (node.getLeftChildNode() == null || node.getRightChildNode() == null) {
+				problems.add("node " + node + " is missing a child");
+			} else {
+				stack.push(node.getRightChildNode());
+				stack.push(node.getLeftChildNode());
+			}
+		}
+
+		double area = 0;
+		for (Trapezoid t : reachable) {
+			checkNeighbor(t, t.getUpperRightNeighbor(), true, reachable, problems);
+			checkNeighbor(t, t.getLowerRightNeighbor(), true, reachable, problems);
+			checkNeighbor(t, t.getUpperLeftNeighbor(), false, reachable, problems);
+			checkNeighbor(t, t.getLowerLeftNeighbor(), false, reachable, problems);
+			if (!isProper(t)) {
+				continue;
+			}
+			final double left = t.getLeftBound().x;
+			final double right = t.getRightBound().x;
+			final double topLeft = QueryRegion.yAt(t.getUpperBound(), left);
+			final double topRight = QueryRegion.yAt(t.getUpperBound(), right);
+			final double bottomLeft = QueryRegion.yAt(t.getLowerBound(), left);
+			final double bottomRight = QueryRegion.yAt(t.getLowerBound(), right);
+			area += (right - left) * (topLeft - bottomLeft + topRight - bottomRight) / 2;
+			final Trapezoid located = findNearestTrapezoid(t.interiorX(), t.interiorY());
+			if (located != t) {
+				problems.add("trapezoid " + t + " overlaps " + located);
+			}
+		}
+		final double boxArea = ((double) maxX - minX) * ((double) maxY - minY);
+		if (Math.abs(area - boxArea) > 1e-6 * Math.max(1, boxArea)) {
+			problems.add("trapezoids cover an area of " + area + ", but the bounding box has area " + boxArea);
+		}
+		return problems;
+	}
+
+	/**
+	 * Checks that a neighbor link of a trapezoid is reciprocated, and that the
+	 * neighbor is in the map and shares the trapezoid's wall.
+	 *
+	 * @param right whether the neighbor is on the right of the trapezoid
+	 */
+	private static void checkNeighbor(Trapezoid t, Trapezoid neighbor, boolean right, Set<Trapezoid> reachable,
+			List<String> problems) {
+		if (neighbor == null) {
+			return;
+		}
+		if (!reachable.contains(neighbor)) {
+			problems.add("trapezoid " + t + " links to " + neighbor + ", which is not in the map");
+		}
+		final boolean reciprocated = right ? neighbor.getUpperLeftNeighbor() == t || neighbor.getLowerLeftNeighbor() == t
+				: neighbor.getUpperRightNeighbor() == t || neighbor.getLowerRightNeighbor() == t;
+		if (!reciprocated) {
+			problems.add("trapezoid " + t + " links to " + neighbor + ", which does not link back");
+		}
+		final float wall = right ? t.getRightBound().x : t.getLeftBound().x;
+		final float neighborWall = right ? neighbor.getLeftBound().x : neighbor.getRightBound().x;
+		if (wall != neighborWall) {
+			problems.add("trapezoid " + t + " and its neighbor " + neighbor + " do not share a wall");
+		}
+	}
+
+	/**
+	 * @return the root of the search structure
+	 */
+	Node getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns an estimate of the heap memory released once the map was built. The
+	 * parent links of the history graph's nodes (and the leaf back-pointers of
+	 * trapezoids) are needed only while segments are inserted, so they are dropped
+	 * after construction, and leaves holding the same trapezoid are merged.
+	 *
+	 * @return estimated bytes released (assuming compressed object references)
+	 */
+	public long getTrimmedBytes() {
+		return trimmedBytes;
+	}
+
+	/**
+	 * @return the segments of the map (held by the y-nodes of the search
+	 *         structure), excluding the bounding box
+	 */
+	List<Segment> getSegments() {
+		final Set<Segment> segments = Collections.newSetFromMap(new IdentityHashMap<>());
+		final Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Node node = stack.pop();
+			if (node instanceof Leaf || !visited.add(node)) {
+				continue;
+			}
+			if (node instanceof YNode) {
+				segments.add(((YNode) node).getData());
+			}
+			stack.push(node.getRightChildNode());
+			stack.push(node.getLeftChildNode());
+		}
+		return new ArrayList<>(segments);
+	}
+
+	/**
+	 * Returns all the trapezoids contained in the trapezoid map.
+	 *
 	 * @return list of all trapezoids
 	 */
 	public List<Trapezoid> getAllTrapezoids() {
@@ -770,8 +1719,7 @@ public class TrapMap {
 			trapezoids = new ArrayList<>(leaves.size());
 			leaves.forEach(l -> {
 				final Trapezoid t = l.getData();
-				// filter out point-like trapezoids (caused by axis-aligned segments)
-				if (!t.hasZeroWidth() && !t.hasZeroHeight()) {
+				if (isProper(t)) {
 					trapezoids.add(t);
 				}
 			});
@@ -779,6 +1727,120 @@ public class TrapMap {
 		return trapezoids;
 	}
 
+	/**
+	 * Exports the corners of all the trapezoids in the map into one flat array,
+	 * without creating any per-trapezoid objects.
+	 * 
+	 * @return 8 coordinates per trapezoid (see
+	 *         {@link Trapezoid#getCorners(float[], int)}), for the trapezoids in the
+	 *         order of {@link #getAllTrapezoids()}
+	 */
+	public float[] getTrapezoidCorners() {
+		final List<Trapezoid> all = getAllTrapezoids();
+		final float[] corners = new float[8 * all.size()];
+		for (int i = 0; i < all.size(); i++) {
+			all.get(i).getCorners(corners, 8 * i);
+		}
+		return corners;
+	}
+
+	/**
+	 * Exports the corners of all the trapezoids in the map into a buffer (such as a
+	 * direct buffer to upload for rendering), starting at its position.
+	 * 
+	 * @param dest buffer with room for 8 coordinates per trapezoid (see
+	 *             {@link Trapezoid#getCorners(float[], int)}), which receives the
+	 *             trapezoids in the order of {@link #getAllTrapezoids()}; its
+	 *             position is advanced past them
+	 * @throws BufferOverflowException if the buffer has too little room
+	 */
+	public void getTrapezoidCorners(FloatBuffer dest) {
+		final List<Trapezoid> all = getAllTrapezoids();
+		if (dest.remaining() < 8L * all.size()) {
+			throw new BufferOverflowException();
+		}
+		final float[] corners = new float[8];
+		for (Trapezoid t : all) {
+			t.getCorners(corners, 0);
+			dest.put(corners);
+		}
+	}
+
+	/**
+	 * Exports the trapezoidal decomposition as an indexed triangle mesh, with
+	 * deduplicated vertices and the face ID of each triangle, for rendering.
+	 * 
+	 * @return the mesh of all the trapezoids in the map
+	 * @see TrapezoidMesh#writeTo(java.nio.channels.WritableByteChannel)
+	 */
+	public TrapezoidMesh toMesh() {
+		return new TrapezoidMesh(getAllTrapezoids());
+	}
+
+	/**
+	 * Exports the adjacency graph of the trapezoids, numbering them and holding
+	 * their neighbor links as indices in one array, for graph algorithms.
+	 *
+	 * @return the trapezoid adjacency graph of the map
+	 */
+	public TrapezoidGraph toGraph() {
+		final List<Trapezoid> pointLike = new ArrayList<>();
+		final Set<Trapezoid> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+		final Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Node node = stack.pop();
+			if (!visited.add(node)) {
+				continue;
+			}
+			if (node instanceof Leaf) {
+				final Trapezoid t = ((Leaf) node).getData();
+				if (!isProper(t) && seen.add(t)) {
+					pointLike.add(t);
+				}
+			} else {
+				stack.push(node.getRightChildNode());
+				stack.push(node.getLeftChildNode());
+			}
+		}
+		return new TrapezoidGraph(getAllTrapezoids(), pointLike);
+	}
+
+	/**
+	 * Returns the adjacency graph of the map's faces: which faces share boundary
+	 * segments, and the length of boundary each pair shares. The graph is built
+	 * along with the map.
+	 *
+	 * @return the face adjacency graph, in compressed sparse row form
+	 */
+	public FaceGraph getFaceGraph() {
+		return faceGraph;
+	}
+
+	/**
+	 * Walks the trapezoids intersecting a rectangle, passing each proper one to the
+	 * consumer.
+	 */
+	private void walkRect(double minX, double minY, double maxX, double maxY, Consumer<Trapezoid> consumer) {
+		if (minX > maxX || minY > maxY || maxX < this.minX || minX > this.maxX || maxY < this.minY || minY > this.maxY) {
+			return;
+		}
+		new QueryRegion.Rect(minX, minY, maxX, maxY).descend(root, t -> {
+			if (isProper(t)) {
+				consumer.accept(t);
+			}
+		});
+	}
+
+	/**
+	 * @return false for point-like trapezoids (caused by axis-aligned segments),
+	 *         which are omitted from query results
+	 */
+	private static boolean isProper(Trapezoid t) {
+		return !t.hasZeroWidth() && !t.hasZeroHeight();
+	}
+
 	private static void recursePolygon(Trapezoid t, Set<Trapezoid> pp) {
 		if (t != null && !pp.contains(t)) {
 			pp.add(t);
@@ -789,9 +1851,18 @@ public class TrapMap {
 		}
 	}
 
+	/**
+	 * @return whether the point lies within the bounding box of the map (points
+	 *         outside cannot lie in any face)
+	 */
+	private boolean inBounds(double x, double y) {
+		return x >= minX && x <= maxX && y >= minY && y <= maxY;
+	}
+
 	private static boolean isPointAboveLine(PVector p, Segment s) {
-		return (p.x - s.getLeftPoint().x) * s.getRightPoint().y + (s.getRightPoint().x - p.x) * s.getLeftPoint().y < p.y
-				* (s.getRightPoint().x - s.getLeftPoint().x);
+		// evaluated exactly (see Segment.orientation), so that the construction sees
+		// consistent answers for vertices lying on, or very near, a segment
+		return Segment.orientation(s.getLeftPoint(), s.getRightPoint(), p) > 0;
 	}
 
 	/**
@@ -825,14 +1896,7 @@ public class TrapMap {
 		// endpoint
 		if (p.equals(old.getLeftPoint())) {
 			// compare slopes
-			float x1 = p.x;
-			float x2 = old.getRightPoint().x;
-			float x3 = pseg.getRightPoint().x;
-			float y1 = p.y;
-			float y2 = old.getRightPoint().y;
-			float y3 = pseg.getRightPoint().y;
-			float result = (x2 - x1) * (y3 - y1) - (x3 - x1) * (y2 - y1);
-			return result > 0;
+			return Segment.orientation(p, old.getRightPoint(), pseg.getRightPoint()) > 0;
 		}
 		// if not, call isPointAboveLine
 		return isPointAboveLine(p, old);
@@ -0,0 +1,344 @@
+package micycle.trapmap;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import processing.core.PShape;
+
+/**
+ * Holds the current map of a partition that is rebuilt from time to time (such
+ * as from fresh data every night), answering queries while the next map is
+ * built.
+ * <p>
+ * {@link #rebuild()} builds a new map from the holder's source on a background
+ * thread, {@link TrapMap#validate() validates} it and, if valid, publishes it
+ * atomically: queries made through the holder use either the previous map or
+ * the new one, never a mix. A map that fails to build or validate is discarded
+ * and the previous map stays published.
+ * <p>
+ * The form in which maps are published bounds the memory a rebuild needs. A
+ * {@link Form#MAP} keeps the whole object graph of each map on the heap, so a
+ * rebuild briefly needs two of them. A {@link Form#COMPILED} map flattens the
+ * search structure into an array before it is published, releasing the nodes
+ * of the graph (but keeping its trapezoids); an {@link Form#OFF_HEAP} map moves
+ * the whole map out of the heap, so that only the map being built occupies the
+ * heap. An off-heap map is closed once it has been replaced and no query is
+ * using it.
+ * <p>
+ * Since the holder is itself a {@link FaceLocator}, it can be given to anything
+ * that queries a map (such as a server), which then follows every rebuild.
+ *
+ * @author Michael Carleton
+ */
+public final class TrapMapHolder implements FaceLocator, AutoCloseable {
+
+	/**
+	 * The form in which a holder publishes each map it builds.
+	 */
+	public enum Form {
+		/** The {@link TrapMap} itself (for queries beyond face location). */
+		MAP,
+		/** A {@link CompiledTrapMap}, releasing the nodes of the search structure. */
+		COMPILED,
+		/** An {@link OffHeapTrapMap}, holding the map out of the heap. */
+		OFF_HEAP
+	}
+
+	private final Supplier<? extends TrapMap> source;
+	private final Form form;
+	private final ExecutorService builder;
+
+	private volatile Published current;
+	private volatile boolean closed;
+
+	private volatile int buildCount, failedBuildCount;
+	private volatile long lastBuildNanos;
+	private volatile int trapezoidCount;
+	private volatile long trimmedBytes;
+	private volatile Throwable lastFailure;
+
+	/**
+	 * Creates a holder of maps built by a function. No map is published until the
+	 * first {@link #rebuild()} completes.
+	 *
+	 * @param source builds a new map each time it is called (on the holder's
+	 *               background thread)
+	 * @param form   the form in which to publish maps
+	 */
+	public TrapMapHolder(Supplier<? extends TrapMap> source, Form form) {
+		this.source = source;
+		this.form = form;
+		builder = Executors.newSingleThreadExecutor(r -> {
+			final Thread thread = new Thread(r, "trapmap-rebuild");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Creates a holder of maps built from line segments, which are checked for
+	 * crossings on each rebuild (see {@link TrapMap#TrapMap(Collection, boolean)}).
+	 *
+	 * @param segments supplies the segments of a new map each time it is called
+	 * @param form     the form in which to publish maps
+	 * @return a holder with no map yet
+	 */
+	public static TrapMapHolder ofSegments(Supplier<? extends Collection<Segment>> segments, Form form) {
+		return new TrapMapHolder(() -> new TrapMap(segments.get(), true), form);
+	}
+
+	/**
+	 * Creates a holder of maps built from polygons (see
+	 * {@link TrapMap#TrapMap(List)}).
+	 *
+	 * @param polygons supplies the polygons of a new map each time it is called
+	 * @param form     the form in which to publish maps
+	 * @return a holder with no map yet
+	 */
+	public static TrapMapHolder ofPolygons(Supplier<? extends List<PShape>> polygons, Form form) {
+		return new TrapMapHolder(() -> new TrapMap(polygons.get()), form);
+	}
+
+	/**
+	 * Builds a new map on the background thread and publishes it if it is valid.
+	 * Rebuilds requested while one is running are made one after another.
+	 *
+	 * @return a future completing with the newly published map, or exceptionally
+	 *         (with an {@link IllegalStateException} if the new map is invalid)
+	 *         if no map was published
+	 * @throws IllegalStateException if the holder is closed
+	 */
+	public CompletableFuture<FaceLocator> rebuild() {
+		try {
+			return CompletableFuture.supplyAsync(this::build, builder);
+		} catch (RejectedExecutionException e) {
+			throw new IllegalStateException("The holder is closed", e);
+		}
+	}
+
+	/**
+	 * Returns the currently published map. Prefer querying through the holder: an
+	 * off-heap map returned here is closed once a later rebuild replaces it.
+	 *
+	 * @return the current map, or null if none has been published yet
+	 */
+	public FaceLocator get() {
+		final Published published = current;
+		return published == null ? null : published.map;
+	}
+
+	@Override
+	public int findContainingFace(double x, double y) {
+		final Published published = acquire();
+		try {
+			return published.map.findContainingFace(x, y);
+		} finally {
+			published.release();
+		}
+	}
+
+	@Override
+	public int[] findContainingFaces(double[] coords) {
+		final Published published = acquire();
+		try {
+			return published.map.findContainingFaces(coords);
+		} finally {
+			published.release();
+		}
+	}
+
+	/**
+	 * Stops rebuilding (a rebuild under way completes, but is not published, and
+	 * rebuilds waiting behind it fail without building) and releases the current
+	 * map, closing it if it is off-heap. Queries through the holder then fail.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		builder.shutdown(); // not shutdownNow(): the futures of waiting rebuilds must complete
+		try {
+			builder.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final Published published = current;
+		current = null;
+		if (published != null) {
+			published.retire();
+		}
+	}
+
+	/**
+	 * @return the number of maps published so far
+	 */
+	public int getBuildCount() {
+		return buildCount;
+	}
+
+	/**
+	 * @return the number of rebuilds whose map failed to build or validate
+	 */
+	public int getFailedBuildCount() {
+		return failedBuildCount;
+	}
+
+	/**
+	 * @return the cause of the most recent failed rebuild, or null if none failed
+	 */
+	public Throwable getLastFailure() {
+		return lastFailure;
+	}
+
+	/**
+	 * @return the time taken to build, validate and compile the current map, in
+	 *         nanoseconds (0 if none has been published)
+	 */
+	public long getLastBuildNanos() {
+		return lastBuildNanos;
+	}
+
+	/**
+	 * @return the number of trapezoids of the current map (0 if none has been
+	 *         published)
+	 */
+	public int getTrapezoidCount() {
+		return trapezoidCount;
+	}
+
+	/**
+	 * @return the heap memory released by the current map once it was built (see
+	 *         {@link TrapMap#getTrimmedBytes()})
+	 */
+	public long getTrimmedBytes() {
+		return trimmedBytes;
+	}
+
+	/**
+	 * @return the direct memory held by the current map, if it is off-heap (see
+	 *         {@link OffHeapTrapMap#getMemoryUsage()}); otherwise 0
+	 */
+	public long getOffHeapBytes() {
+		final Published published = current;
+		return published != null && published.map instanceof OffHeapTrapMap ? ((OffHeapTrapMap) published.map).getMemoryUsage()
+				: 0;
+	}
+
+	/**
+	 * Builds, validates and publishes a map, on the background thread.
+	 */
+	private FaceLocator build() {
+		if (closed) {
+			throw new CompletionException(new IllegalStateException("The holder was closed before the rebuild"));
+		}
+		final long start = System.nanoTime();
+		final FaceLocator map;
+		final int trapezoids;
+		final long trimmed;
+		try {
+			TrapMap trapMap = source.get();
+			final List<String> problems = trapMap.validate();
+			if (!problems.isEmpty()) {
+				throw new IllegalStateException("The rebuilt map is invalid: " + problems.size() + " problem(s), including: "
+						+ problems.get(0));
+			}
+			trapezoids = trapMap.getAllTrapezoids().size();
+			trimmed = trapMap.getTrimmedBytes();
+			switch (form) {
+				case COMPILED :
+					map = trapMap.compile();
+					break;
+				case OFF_HEAP :
+					final CompiledTrapMap compiled = trapMap.compile();
+					trapMap = null; // let the object graph be collected while copying
+					map = compiled.toOffHeap();
+					break;
+				default :
+					map = trapMap;
+			}
+		} catch (Throwable e) { // including an OutOfMemoryError from a large rebuild
+			failedBuildCount++; // only the background thread writes
+			lastFailure = e;
+			throw new CompletionException(e);
+		}
+		if (closed) {
+			new Published(map).retire();
+			throw new CompletionException(new IllegalStateException("The holder was closed during the rebuild"));
+		}
+		final Published previous = current;
+		current = new Published(map);
+		lastBuildNanos = System.nanoTime() - start;
+		trapezoidCount = trapezoids;
+		trimmedBytes = trimmed;
+		buildCount++;
+		if (previous != null) {
+			previous.retire();
+		}
+		return map;
+	}
+
+	/**
+	 * @return the current map, registered as in use if it must be closed when
+	 *         retired
+	 */
+	private Published acquire() {
+		while (true) {
+			final Published published = current;
+			if (published == null) {
+				throw new IllegalStateException(closed ? "The holder is closed" : "No map has been built yet");
+			}
+			if (published.readers == null) {
+				return published;
+			}
+			published.readers.incrementAndGet();
+			if (current == published) {
+				return published;
+			}
+			published.readers.decrementAndGet(); // replaced meanwhile (and perhaps closed): retry
+		}
+	}
+
+	/**
+	 * A published map, with a count of the queries using it if it is closed on
+	 * retirement. A query registers before checking that the map is still current,
+	 * and the map is closed only after it is no longer current and no query is
+	 * registered, so no query uses a closed map.
+	 */
+	private static final class Published {
+
+		final FaceLocator map;
+		final AtomicInteger readers;
+
+		Published(FaceLocator map) {
+			this.map = map;
+			readers = map instanceof OffHeapTrapMap ? new AtomicInteger() : null;
+		}
+
+		void release() {
+			if (readers != null) {
+				readers.decrementAndGet();
+			}
+		}
+
+		/**
+		 * Closes the map (once unused), after it has been replaced.
+		 */
+		void retire() {
+			if (readers == null) {
+				return;
+			}
+			while (readers.get() != 0) {
+				LockSupport.parkNanos(100_000);
+			}
+			((OffHeapTrapMap) map).close();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package micycle.trapmap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The overlay (common refinement) of two trapezoidal maps: a map whose faces
+ * are the non-empty intersections of the faces of the two inputs, such as
+ * zoning districts overlaid with flood zones.
+ * <p>
+ * Each face of the overlay carries the pair of input faces it lies in,
+ * available from {@link #getFaceA(int)} and {@link #getFaceB(int)}; a region
+ * lying in a face of only one input carries -1 for the other. Regions outside
+ * the faces of both inputs belong to no face. A pair of input faces whose
+ * intersection is in several pieces forms one (multi-part) overlay face.
+ * <p>
+ * The overlay is built from the union of the segments of both inputs, noded
+ * where they cross with a plane sweep (see
+ * {@link TrapMap#nodeSegments(Collection) nodeSegments()}). Every trapezoid of
+ * the result then lies within a single face of each input, so its face pair is
+ * found with one point location in each input's search structure, rather than
+ * by intersecting polygons.
+ * <p>
+ * The segments of the overlay carry no face labels of their own, so its
+ * {@link #getFaceGraph() face graph} is derived from its faces once they are
+ * known.
+ *
+ * @author Michael Carleton
+ */
+public final class TrapMapOverlay extends TrapMap {
+
+	private final LongIntHashMap faceIndex; // packed (face A, face B) -> overlay face ID
+	private int[] facesA; // input faces of each overlay face
+	private int[] facesB;
+	private int faceCount;
+	private final FaceGraph faceGraph;
+
+	/**
+	 * Builds the overlay of two maps.
+	 *
+	 * @param a the first map (typically built from polygons, so that its faces are
+	 *          defined)
+	 * @param b the second map
+	 */
+	public TrapMapOverlay(TrapMap a, TrapMap b) {
+		super(nodedUnion(Arrays.asList(a, b)));
+		faceIndex = new LongIntHashMap(64);
+		facesA = new int[16];
+		facesB = new int[16];
+
+		for (Trapezoid t : getAllTrapezoids()) {
+			final double x = t.interiorX();
+			final double y = t.interiorY();
+			final int faceA = a.findContainingFace(x, y);
+			final int faceB = b.findContainingFace(x, y);
+			t.setFace(null, faceA == -1 && faceB == -1 ? -1 : faceId(faceA, faceB, true));
+		}
+		facesA = Arrays.copyOf(facesA, faceCount);
+		facesB = Arrays.copyOf(facesB, faceCount);
+		faceGraph = buildFaceGraph();
+	}
+
+	/**
+	 * Returns the adjacency graph of the overlay's faces: which overlay faces
+	 * share boundary segments, and the length of boundary each pair shares. It is
+	 * built along with the overlay.
+	 *
+	 * @return the face adjacency graph, in compressed sparse row form
+	 */
+	@Override
+	public FaceGraph getFaceGraph() {
+		return faceGraph;
+	}
+
+	/**
+	 * @return the number of faces of the overlay (overlay face IDs run from 0 to
+	 *         this number, exclusive)
+	 */
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	/**
+	 * @param faceId ID of a face of the overlay
+	 * @return the ID of the face of the first map in which the overlay face lies
+	 *         (-1 if none)
+	 */
+	public int getFaceA(int faceId) {
+		return facesA[faceId];
+	}
+
+	/**
+	 * @param faceId ID of a face of the overlay
+	 * @return the ID of the face of the second map in which the overlay face lies
+	 *         (-1 if none)
+	 */
+	public int getFaceB(int faceId) {
+		return facesB[faceId];
+	}
+
+	/**
+	 * Finds the face of the overlay formed by the intersection of two input faces.
+	 *
+	 * @param faceA ID of a face of the first map (or -1)
+	 * @param faceB ID of a face of the second map (or -1)
+	 * @return the ID of the overlay face, or -1 if the faces do not intersect
+	 */
+	public int findFace(int faceA, int faceB) {
+		return faceId(faceA, faceB, false);
+	}
+
+	private int faceId(int faceA, int faceB, boolean create) {
+		final long key = ((long) faceA << 32) | (faceB & 0xFFFFFFFFL);
+		if (!create) {
+			return faceIndex.get(key);
+		}
+		final int existing = faceIndex.putIfAbsent(key, faceCount);
+		if (existing != -1) {
+			return existing;
+		}
+		if (faceCount == facesA.length) {
+			facesA = Arrays.copyOf(facesA, faceCount * 2);
+			facesB = Arrays.copyOf(facesB, faceCount * 2);
+		}
+		facesA[faceCount] = faceA;
+		facesB[faceCount] = faceB;
+		return faceCount++;
+	}
+
+	/**
+	 * Labels each segment of the overlay with the overlay faces on either side of
+	 * it. The face below a trapezoid's upper segment, and above its lower segment,
+	 * is the trapezoid's own; vertical segments, which bound no trapezoid from
+	 * above or below, are located from their midpoint on either side.
+	 */
+	private FaceGraph buildFaceGraph() {
+		final Map<Segment, Segment> labelled = new IdentityHashMap<>();
+		for (Trapezoid t : getAllTrapezoids()) {
+			label(labelled, t.getUpperBound(), t.getFaceId(), false);
+			label(labelled, t.getLowerBound(), t.getFaceId(), true);
+		}
+		for (Segment s : getSegments()) {
+			if (s.getLeftPoint().x == s.getRightPoint().x) {
+				final double x = s.getLeftPoint().x;
+				final double y = (s.getLeftPoint().y + (double) s.getRightPoint().y) / 2;
+				// the left of a vertical segment is above it
+				label(labelled, s, findTrapezoidAlong(x, y, -1, 0, s).getFaceId(), true);
+				label(labelled, s, findTrapezoidAlong(x, y, 1, 0, s).getFaceId(), false);
+			}
+		}
+		return new FaceGraph(labelled.values());
+	}
+
+	/**
+	 * Records the face on one side of a segment, on a copy of the segment (the
+	 * segment itself keeps no labels).
+	 */
+	private static void label(Map<Segment, Segment> labelled, Segment segment, int faceId, boolean above) {
+		final Segment copy = labelled.computeIfAbsent(segment, s -> new Segment(s.getLeftPoint(), s.getRightPoint()));
+		if (above) {
+			copy.faceIdA = faceId;
+		} else {
+			copy.faceIdB = faceId;
+		}
+	}
+}
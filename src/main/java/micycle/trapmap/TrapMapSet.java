@@ -0,0 +1,157 @@
+package micycle.trapmap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A set of independent partitions of the plane (layers, such as zoning, tax
+ * districts and flood zones), each located with one call.
+ * <p>
+ * Layers may be any {@link FaceLocator}: a {@link TrapMap}, or one of its
+ * compiled forms. Bulk queries are reordered once, along a Hilbert curve over
+ * the query points, and that order is then swept through each layer in turn,
+ * so that each layer's search structure stays in the CPU cache for its whole
+ * sweep.
+ *
+ * @author Michael Carleton
+ */
+public final class TrapMapSet {
+
+	private final FaceLocator[] layers;
+
+	/**
+	 * Creates a set of layers.
+	 *
+	 * @param layers the layers, in the order their faces are reported
+	 */
+	public TrapMapSet(List<? extends FaceLocator> layers) {
+		this(layers.toArray(new FaceLocator[0]));
+	}
+
+	/**
+	 * Creates a set of layers.
+	 *
+	 * @param layers the layers, in the order their faces are reported
+	 */
+	public TrapMapSet(FaceLocator... layers) {
+		this.layers = layers.clone();
+		for (FaceLocator layer : this.layers) {
+			if (layer == null) {
+				throw new IllegalArgumentException("Layers cannot be null");
+			}
+		}
+	}
+
+	/**
+	 * @return the number of layers
+	 */
+	public int size() {
+		return layers.length;
+	}
+
+	/**
+	 * @param layer index of a layer
+	 * @return the layer
+	 */
+	public FaceLocator getLayer(int layer) {
+		return layers[layer];
+	}
+
+	/**
+	 * Builds the overlay of two layers, for a combination of layers that is often
+	 * queried together: one location in the overlay replaces one in each layer.
+	 * The overlay is not added to this set.
+	 *
+	 * @param layerA index of the first layer
+	 * @param layerB index of the second layer
+	 * @return the overlay of the layers, whose faces carry the pair of layer faces
+	 *         they lie in
+	 * @throws IllegalArgumentException if either layer is not a {@link TrapMap}
+	 */
+	public TrapMapOverlay overlay(int layerA, int layerB) {
+		if (!(layers[layerA] instanceof TrapMap) || !(layers[layerB] instanceof TrapMap)) {
+			throw new IllegalArgumentException("Only layers that are TrapMaps can be overlaid");
+		}
+		return new TrapMapOverlay((TrapMap) layers[layerA], (TrapMap) layers[layerB]);
+	}
+
+	/**
+	 * Locates the face containing a point in every layer.
+	 *
+	 * @param x          x-coordinate of query point
+	 * @param y          y-coordinate of query point
+	 * @param outFaceIds array receiving the ID of the face containing the point in
+	 *                   each layer (-1 where no face contains it), with room for
+	 *                   {@link #size()} values; if null, a new array is allocated
+	 * @return the array of face IDs
+	 */
+	public int[] locateAll(double x, double y, int[] outFaceIds) {
+		if (outFaceIds == null) {
+			outFaceIds = new int[layers.length];
+		}
+		for (int k = 0; k < layers.length; k++) {
+			outFaceIds[k] = layers[k].findContainingFace(x, y);
+		}
+		return outFaceIds;
+	}
+
+	/**
+	 * Locates the faces containing each of a batch of points, in every layer.
+	 *
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1...
+	 * @return the ID of the face containing point <i>i</i> in layer <i>k</i> (-1
+	 *         where no face contains it) at index <code>i * size() + k</code>
+	 */
+	public int[] locateAll(double[] coords) {
+		return locateAll(coords, null);
+	}
+
+	/**
+	 * Locates the faces containing each of a batch of points, in every layer.
+	 *
+	 * @param coords     interleaved point coordinates: x0, y0, x1, y1...
+	 * @param outFaceIds array receiving the ID of the face containing point
+	 *                   <i>i</i> in layer <i>k</i> (-1 where no face contains it)
+	 *                   at index <code>i * size() + k</code>; if null, a new array
+	 *                   is allocated
+	 * @return the array of face IDs
+	 */
+	public int[] locateAll(double[] coords, int[] outFaceIds) {
+		final int n = coords.length / 2;
+		if (outFaceIds == null) {
+			outFaceIds = new int[n * layers.length];
+		}
+		final int[] order = n >= TrapMap.SPATIAL_SORT_THRESHOLD ? spatialOrder(coords) : null;
+		for (int k = 0; k < layers.length; k++) {
+			final FaceLocator layer = layers[k];
+			for (int j = 0; j < n; j++) {
+				final int i = order == null ? j : order[j];
+				outFaceIds[i * layers.length + k] = layer.findContainingFace(coords[2 * i], coords[2 * i + 1]);
+			}
+		}
+		return outFaceIds;
+	}
+
+	/**
+	 * @return the indices of the points in the order of a Hilbert curve over their
+	 *         bounding box (which suits every layer, whatever its own bounds)
+	 */
+	private static int[] spatialOrder(double[] coords) {
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < coords.length - 1; i += 2) {
+			minX = Math.min(minX, coords[i]);
+			maxX = Math.max(maxX, coords[i]);
+			minY = Math.min(minY, coords[i + 1]);
+			maxY = Math.max(maxY, coords[i + 1]);
+		}
+		return HilbertCurve.sort(coords, minX, minY, maxX, maxY);
+	}
+
+	@Override
+	public String toString() {
+		return "TrapMapSet" + Arrays.toString(layers);
+	}
+}
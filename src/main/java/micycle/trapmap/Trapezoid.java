@@ -35,8 +35,6 @@ public final class Trapezoid {
 	private PVector rightP;
 	private Segment topSeg;
 	private Segment botSeg;
-	private PShape poly; // polygonal representation of trapezoid
-	private List<PVector> polyVertices;
 
 	/**
 	 * Boolean flag that indicates whether the mapping to the polygonal face this
@@ -49,6 +47,11 @@ public final class Trapezoid {
 	 * only).
 	 */
 	private PShape face = null;
+	/**
+	 * The integer ID of the face this trapezoid belongs to (computed lazily
+	 * alongside {@link #face}). -1 if the trapezoid does not belong to any face.
+	 */
+	private int faceId = -1;
 
 	/**
 	 * Constructs a trapezoid object based on the x boundaries and bounding
@@ -177,94 +180,154 @@ public final class Trapezoid {
 	 */
 	public PShape getFace() {
 		if (!computedFace) {
-			final PShape f1 = topSeg.faceA;
-			final PShape f2 = topSeg.faceB;
-			final PShape f3 = botSeg.faceA;
-			final PShape f4 = botSeg.faceB;
-
-			/*
-			 * If the trapezoid is mapped to a face, then the polygonal face in which the
-			 * trapezoid lies can be computed by first retrieving the enclosing segments,
-			 * and then finding the face that is shared by two of these segments (this is
-			 * the face that is properly enclosed by the trapezoid's top and bottom
-			 * segments). NOTE doesn't always work on very concave shapes.
-			 */
-			if (f1 != null) {
-				if (f1 == f2 || f1 == f3 || f1 == f4) {
-					face = f1;
-					computedFace = true;
-					return face;
-				}
-			}
-			if (f2 != null) {
-				if (f2 == f3 || f2 == f4) {
-					face = f2;
-					computedFace = true;
-					return face;
-				}
-			}
-			if (f3 != null) {
-				if (f3 == f4) {
-					face = f3;
-					computedFace = true;
-					return face;
-				}
-			}
+			computeFace();
 		}
-
 		return face;
 	}
 
 	/**
-	 * Return the boundary polygon for this trapezoid
+	 * Gets the integer ID of the polygonal face that this trapezoid is a part of.
+	 * When the TrapMap was built from a list of PShapes, the ID is the index of the
+	 * face's shape in that list; when it was built from rings of coordinates, the
+	 * ID is the one assigned to the face's ring(s).
 	 * 
-	 * @return The boundary Polygon
+	 * @return -1 if trapezoid lies outside polygons, or no polygons were set up.
 	 */
-	public PShape getBoundaryPolygon() {
-		if (poly == null) {
-			poly = getPrivateBoundaryPolygon(leftP, rightP, topSeg, botSeg);
+	public int getFaceId() {
+		if (!computedFace) {
+			computeFace();
 		}
-		return poly;
+		return faceId;
 	}
 
 	/**
-	 * Gets the four coordinates that make up this trapezoid (from top left
-	 * clockwise).
-	 * 
-	 * @return
+	 * Assigns the face of this trapezoid directly, rather than deriving it from the
+	 * faces of its bounding segments.
 	 */
-	public List<PVector> getBoundaryVertices() {
-		if (poly == null) {
-			poly = getPrivateBoundaryPolygon(leftP, rightP, topSeg, botSeg);
+	void setFace(PShape face, int faceId) {
+		this.face = face;
+		this.faceId = faceId;
+		computedFace = true;
+	}
+
+	private void computeFace() {
+		final int f1 = topSeg.faceIdA;
+		final int f2 = topSeg.faceIdB;
+		final int f3 = botSeg.faceIdA;
+		final int f4 = botSeg.faceIdB;
+
+		/*
+		 * If the trapezoid is mapped to a face, then the polygonal face in which the
+		 * trapezoid lies can be computed by first retrieving the enclosing segments,
+		 * and then finding the face that is shared by two of these segments (this is
+		 * the face that is properly enclosed by the trapezoid's top and bottom
+		 * segments). NOTE doesn't always work on very concave shapes.
+		 */
+		if (f1 != -1 && (f1 == f2 || f1 == f3 || f1 == f4)) {
+			faceId = f1;
+			face = topSeg.faceA;
+		} else if (f2 != -1 && (f2 == f3 || f2 == f4)) {
+			faceId = f2;
+			face = topSeg.faceB;
+		} else if (f3 != -1 && f3 == f4) {
+			faceId = f3;
+			face = botSeg.faceA;
 		}
-		return polyVertices;
+		computedFace = true;
 	}
 
 	/**
-	 * Returns the boundary of the trapezoid as a Polygon object for easy display.
-	 *
-	 * @return The polygon object representing the boundary of the Trapezoid
+	 * Creates a polygon of the boundary of this trapezoid (its corners from top
+	 * left clockwise), for display. A new shape is created on each call; for bulk
+	 * export, prefer {@link #getCorners(float[], int) getCorners()}.
+	 * 
+	 * @return The boundary Polygon
 	 */
-	private PShape getPrivateBoundaryPolygon(PVector left, PVector right, Segment top, Segment bottom) {
-		final PVector tl = top.intersect(left.x);
-		final PVector tr = top.intersect(right.x);
-		final PVector bl = bottom.intersect(left.x);
-		final PVector br = bottom.intersect(right.x);
-		polyVertices = Arrays.asList(tl, tr, br, bl);
-
+	public PShape getBoundaryPolygon() {
+		final float[] corners = new float[8];
+		getCorners(corners, 0);
 		final PShape polygon = new PShape();
 		polygon.setFamily(PShape.PATH);
 		polygon.setFill(true);
 		polygon.setFill(-255);
 		polygon.beginShape();
-		polygon.vertex((int) tl.x, (int) tl.y);
-		polygon.vertex((int) tr.x, (int) tr.y);
-		polygon.vertex((int) br.x, (int) br.y);
-		polygon.vertex((int) bl.x, (int) bl.y);
+		for (int i = 0; i < 8; i += 2) {
+			polygon.vertex(corners[i], corners[i + 1]);
+		}
 		polygon.endShape(PConstants.CLOSE);
 		return polygon;
 	}
 
+	/**
+	 * Gets the four coordinates that make up this trapezoid (from top left
+	 * clockwise). A new list is created on each call.
+	 * 
+	 * @return The corners of the trapezoid
+	 * @see #getCorners(float[], int)
+	 */
+	public List<PVector> getBoundaryVertices() {
+		final float[] corners = new float[8];
+		getCorners(corners, 0);
+		return Arrays.asList(new PVector(corners[0], corners[1]), new PVector(corners[2], corners[3]),
+				new PVector(corners[4], corners[5]), new PVector(corners[6], corners[7]));
+	}
+
+	/**
+	 * Writes the coordinates of the four corners of this trapezoid (from top left
+	 * clockwise) into an array, without allocating: x and y of the top left, top
+	 * right, bottom right and bottom left corners.
+	 * 
+	 * @param dest   the array to write the 8 coordinates into
+	 * @param offset the index at which to write the first coordinate
+	 */
+	public void getCorners(float[] dest, int offset) {
+		dest[offset] = leftP.x;
+		dest[offset + 1] = topSeg.yAt(leftP.x);
+		dest[offset + 2] = rightP.x;
+		dest[offset + 3] = topSeg.yAt(rightP.x);
+		dest[offset + 4] = rightP.x;
+		dest[offset + 5] = botSeg.yAt(rightP.x);
+		dest[offset + 6] = leftP.x;
+		dest[offset + 7] = botSeg.yAt(leftP.x);
+	}
+
+	/**
+	 * Writes the coordinates of the four corners of this trapezoid (from top left
+	 * clockwise) into an array, without allocating. Corners on sloping segments
+	 * are computed in double precision.
+	 * 
+	 * @param dest   the array to write the 8 coordinates into
+	 * @param offset the index at which to write the first coordinate
+	 * @see #getCorners(float[], int)
+	 */
+	public void getCorners(double[] dest, int offset) {
+		dest[offset] = leftP.x;
+		dest[offset + 1] = QueryRegion.yAt(topSeg, leftP.x);
+		dest[offset + 2] = rightP.x;
+		dest[offset + 3] = QueryRegion.yAt(topSeg, rightP.x);
+		dest[offset + 4] = rightP.x;
+		dest[offset + 5] = QueryRegion.yAt(botSeg, rightP.x);
+		dest[offset + 6] = leftP.x;
+		dest[offset + 7] = QueryRegion.yAt(botSeg, leftP.x);
+	}
+
+	/**
+	 * @return the x-coordinate of a point interior to this trapezoid (the centroid
+	 *         of its middle cross-section), if it is proper
+	 */
+	double interiorX() {
+		return ((double) leftP.x + rightP.x) / 2;
+	}
+
+	/**
+	 * @return the y-coordinate of a point interior to this trapezoid
+	 * @see #interiorX()
+	 */
+	double interiorY() {
+		return (QueryRegion.yAt(topSeg, leftP.x) + QueryRegion.yAt(botSeg, leftP.x) + QueryRegion.yAt(topSeg, rightP.x)
+				+ QueryRegion.yAt(botSeg, rightP.x)) / 4;
+	}
+
 	/**
 	 * Return true if this trapezoid has zero width
 	 * 
@@ -274,17 +337,23 @@ public final class Trapezoid {
 		return leftP.x == rightP.x;
 	}
 
+	/**
+	 * Return true if this trapezoid has zero height: its top and bottom segments
+	 * coincide (as happens between a horizontal segment and the bounding box edge
+	 * that it lies on). Note that the left and right points of a trapezoid with
+	 * area may well have the same y-coordinate.
+	 * 
+	 * @return True if the trapezoid is a sliver with zero height
+	 */
 	boolean hasZeroHeight() {
-		return leftP.y == rightP.y;
+		return topSeg.yAt(leftP.x) <= botSeg.yAt(leftP.x) && topSeg.yAt(rightP.x) <= botSeg.yAt(rightP.x);
 	}
 
 	@Override
 	public String toString() {
-		final PVector tl = topSeg.intersect(leftP.x);
-		final PVector tr = topSeg.intersect(rightP.x);
-		final PVector bl = botSeg.intersect(leftP.x);
-		final PVector br = botSeg.intersect(rightP.x);
-		return String.join(", ", tl.toString(), tr.toString(), br.toString(), bl.toString());
+		// corners from top left clockwise
+		return "[" + leftP.x + ", " + topSeg.yAt(leftP.x) + "], [" + rightP.x + ", " + topSeg.yAt(rightP.x) + "], [" + rightP.x
+				+ ", " + botSeg.yAt(rightP.x) + "], [" + leftP.x + ", " + botSeg.yAt(leftP.x) + "]";
 	}
 
 	@Override
@@ -0,0 +1,158 @@
+package micycle.trapmap;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The adjacency graph of a map's trapezoids, with trapezoids numbered and
+ * neighbor links held as indices in one int array, for graph algorithms (flood
+ * fills, walks, routing) that would otherwise chase the references of each
+ * {@link Trapezoid}.
+ * <p>
+ * Trapezoid <i>i</i> has its four neighbors (upper left, lower left, upper
+ * right, lower right) at <code>4i</code> to <code>4i + 3</code> of
+ * {@link #getNeighbors()}, each -1 where there is no such neighbor. The first
+ * {@link #getProperCount()} trapezoids are those of
+ * {@link TrapMap#getAllTrapezoids()}, in the same order; the point-like
+ * trapezoids (with no area) that some links pass through follow them.
+ * <p>
+ * Neighbor links only cross the vertical walls between trapezoids, never a
+ * segment, so the trapezoids reachable from one make up a face of a map built
+ * from segments (as {@link TrapMap#findFaceTrapezoids(double, double)
+ * findFaceTrapezoids()} finds).
+ *
+ * @author Michael Carleton
+ * @see TrapMap#toGraph()
+ */
+public final class TrapezoidGraph {
+
+	private final Trapezoid[] trapezoids;
+	private final int properCount;
+	private final int[] neighbors;
+	private final int[] faceIds;
+	private final Map<Trapezoid, Integer> index;
+
+	TrapezoidGraph(List<Trapezoid> proper, List<Trapezoid> pointLike) {
+		trapezoids = new Trapezoid[proper.size() + pointLike.size()];
+		properCount = proper.size();
+		for (int i = 0; i < trapezoids.length; i++) {
+			trapezoids[i] = i < properCount ? proper.get(i) : pointLike.get(i - properCount);
+		}
+		index = index(trapezoids);
+		neighbors = neighbors(trapezoids, index);
+		faceIds = new int[trapezoids.length];
+		for (int i = 0; i < trapezoids.length; i++) {
+			faceIds[i] = trapezoids[i].getFaceId();
+		}
+	}
+
+	/**
+	 * @return the number of trapezoids (including point-like ones)
+	 */
+	public int getTrapezoidCount() {
+		return trapezoids.length;
+	}
+
+	/**
+	 * @return the number of trapezoids with area, which are numbered first
+	 */
+	public int getProperCount() {
+		return properCount;
+	}
+
+	/**
+	 * @param trapezoid the index of a trapezoid
+	 * @return the trapezoid
+	 */
+	public Trapezoid getTrapezoid(int trapezoid) {
+		return trapezoids[trapezoid];
+	}
+
+	/**
+	 * @param trapezoid a trapezoid of the map
+	 * @return the index of the trapezoid, or -1 if it is not in the graph
+	 */
+	public int indexOf(Trapezoid trapezoid) {
+		return indexOf(trapezoid, index);
+	}
+
+	/**
+	 * @return the indices of the upper left, lower left, upper right and lower
+	 *         right neighbors of each trapezoid, or -1 where there is none (the
+	 *         array is not copied)
+	 */
+	public int[] getNeighbors() {
+		return neighbors;
+	}
+
+	/**
+	 * @return the face ID of each trapezoid, or -1 where it lies in no face (the
+	 *         array is not copied)
+	 */
+	public int[] getFaceIds() {
+		return faceIds;
+	}
+
+	/**
+	 * Finds the trapezoids reachable from one through neighbor links (see the
+	 * class description).
+	 *
+	 * @param trapezoid the index of the trapezoid to start from
+	 * @return the indices of the trapezoids reached, including the first, in
+	 *         breadth-first order
+	 */
+	public int[] floodFill(int trapezoid) {
+		final boolean[] visited = new boolean[trapezoids.length];
+		int[] queue = new int[16];
+		queue[0] = trapezoid;
+		visited[trapezoid] = true;
+		int head = 0;
+		int tail = 1;
+		while (head < tail) {
+			final int t = queue[head++];
+			for (int k = 4 * t; k < 4 * t + 4; k++) {
+				final int n = neighbors[k];
+				if (n != -1 && !visited[n]) {
+					visited[n] = true;
+					if (tail == queue.length) {
+						queue = Arrays.copyOf(queue, 2 * tail);
+					}
+					queue[tail++] = n;
+				}
+			}
+		}
+		return Arrays.copyOf(queue, tail);
+	}
+
+	static Map<Trapezoid, Integer> index(Trapezoid[] trapezoids) {
+		final Map<Trapezoid, Integer> index = new IdentityHashMap<>(trapezoids.length);
+		for (Trapezoid t : trapezoids) {
+			index.put(t, index.size());
+		}
+		return index;
+	}
+
+	/**
+	 * @return the indices of the four neighbors of each trapezoid (upper left,
+	 *         lower left, upper right, lower right), -1 where a trapezoid has no
+	 *         such neighbor or it is not indexed
+	 */
+	static int[] neighbors(Trapezoid[] trapezoids, Map<Trapezoid, Integer> index) {
+		final int[] neighbors = new int[4 * trapezoids.length];
+		for (int i = 0; i < trapezoids.length; i++) {
+			final Trapezoid t = trapezoids[i];
+			neighbors[4 * i] = indexOf(t.getUpperLeftNeighbor(), index);
+			neighbors[4 * i + 1] = indexOf(t.getLowerLeftNeighbor(), index);
+			neighbors[4 * i + 2] = indexOf(t.getUpperRightNeighbor(), index);
+			neighbors[4 * i + 3] = indexOf(t.getLowerRightNeighbor(), index);
+		}
+		return neighbors;
+	}
+
+	private static int indexOf(Trapezoid t, Map<Trapezoid, Integer> index) {
+		final Integer i = t == null ? null : index.get(t);
+		return i == null ? -1 : i;
+	}
+}
@@ -0,0 +1,160 @@
+package micycle.trapmap;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The trapezoidal decomposition of a map as an indexed triangle mesh (for GPU
+ * rendering): a shared vertex buffer, an index buffer of triangles, and the
+ * face ID of each triangle.
+ * <p>
+ * Trapezoid corners shared by adjacent trapezoids are stored once. Each
+ * trapezoid becomes two triangles, or one if it is a triangle (two of its
+ * corners coincide); trapezoids with no area are omitted. Triangles keep the
+ * winding of {@link Trapezoid#getCorners(float[], int)} (clockwise when y
+ * points up).
+ * <p>
+ * Note that a corner of one trapezoid may lie in the middle of an edge of its
+ * neighbor (a T-junction), so the mesh is not watertight in the strict sense.
+ *
+ * @author Michael Carleton
+ * @see TrapMap#toMesh()
+ */
+public final class TrapezoidMesh {
+
+	private static final int CHUNK_BYTES = 1 << 16;
+
+	private final float[] vertices;
+	private final int[] indices;
+	private final int[] faceIds;
+
+	TrapezoidMesh(List<Trapezoid> trapezoids) {
+		final LongIntHashMap vertexIndex = new LongIntHashMap(2 * trapezoids.size());
+		float[] vertices = new float[8 * trapezoids.size()];
+		int[] indices = new int[6 * trapezoids.size()];
+		int[] faceIds = new int[2 * trapezoids.size()];
+		int vertexCount = 0;
+		int triangleCount = 0;
+
+		final float[] corners = new float[8];
+		final int[] corner = new int[4]; // vertex index of each corner
+		for (Trapezoid t : trapezoids) {
+			t.getCorners(corners, 0);
+			for (int c = 0; c < 4; c++) {
+				final float x = corners[2 * c];
+				final float y = corners[2 * c + 1];
+				final long key = ((long) Float.floatToIntBits(x + 0f) << 32) | (Float.floatToIntBits(y + 0f) & 0xFFFFFFFFL);
+				final int existing = vertexIndex.putIfAbsent(key, vertexCount);
+				if (existing < 0) {
+					vertices[2 * vertexCount] = x;
+					vertices[2 * vertexCount + 1] = y;
+					corner[c] = vertexCount++;
+				} else {
+					corner[c] = existing;
+				}
+			}
+			// split along the diagonal from the top left corner; a triangle with two
+			// coinciding corners (where the trapezoid is pinched) has no area
+			final int faceId = t.getFaceId();
+			for (int c = 1; c <= 2; c++) {
+				final int a = corner[0];
+				final int b = corner[c];
+				final int d = corner[c + 1];
+				if (a != b && b != d && d != a) {
+					indices[3 * triangleCount] = a;
+					indices[3 * triangleCount + 1] = b;
+					indices[3 * triangleCount + 2] = d;
+					faceIds[triangleCount++] = faceId;
+				}
+			}
+		}
+		this.vertices = Arrays.copyOf(vertices, 2 * vertexCount);
+		this.indices = Arrays.copyOf(indices, 3 * triangleCount);
+		this.faceIds = Arrays.copyOf(faceIds, triangleCount);
+	}
+
+	/**
+	 * @return the number of distinct vertices
+	 */
+	public int getVertexCount() {
+		return vertices.length / 2;
+	}
+
+	/**
+	 * @return the number of triangles
+	 */
+	public int getTriangleCount() {
+		return faceIds.length;
+	}
+
+	/**
+	 * @return the vertex coordinates: x0, y0, x1, y1... (the array is not copied)
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * @return three vertex indices per triangle (the array is not copied)
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * @return the face ID of each triangle, or -1 where the triangle lies in no
+	 *         face (the array is not copied)
+	 */
+	public int[] getFaceIds() {
+		return faceIds;
+	}
+
+	/**
+	 * Writes the mesh to a channel (such as a file), in little-endian binary:
+	 * <ol>
+	 * <li>the vertex count and the triangle count (int32 each)</li>
+	 * <li>the vertex coordinates (2 x float32 per vertex)</li>
+	 * <li>the triangle indices (3 x int32 per triangle)</li>
+	 * <li>the face IDs (int32 per triangle)</li>
+	 * </ol>
+	 * The mesh is written through a fixed-size buffer, so large meshes are not
+	 * copied in full. The channel is not closed.
+	 *
+	 * @param channel the channel to write to
+	 * @throws IOException if writing fails
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(getVertexCount()).putInt(getTriangleCount());
+		for (float v : vertices) {
+			if (!buffer.hasRemaining()) {
+				drain(buffer, channel);
+			}
+			buffer.putFloat(v);
+		}
+		for (int[] values : new int[][] { indices, faceIds }) {
+			for (int v : values) {
+				if (!buffer.hasRemaining()) {
+					drain(buffer, channel);
+				}
+				buffer.putInt(v);
+			}
+		}
+		drain(buffer, channel);
+	}
+
+	private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+		// called through Buffer: the ByteBuffer overrides added in Java 9 are missing
+		// from a Java 8 runtime
+		((Buffer) buffer).flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		((Buffer) buffer).clear();
+	}
+}
@@ -0,0 +1,239 @@
+package micycle.trapmap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A sequence of versions of a partition of the plane (such as boundaries that
+ * change over time), answering which face contained a point in any version.
+ * <p>
+ * Storing one {@link TrapMap} per version wastes memory when consecutive
+ * versions differ by a handful of segments. Instead, the versions share a
+ * single search structure: the trapezoidal map of the segments of every
+ * version, noded where segments of different versions cross. Each trapezoid
+ * of this map lies within one face of each version, so its faces over time
+ * form a history: a short list of (version, face) changes. Trapezoids whose
+ * faces change in unison share one history, so that histories take space
+ * in proportion to the edits between versions rather than to the number of
+ * versions.
+ * <p>
+ * Histories are shared only where faces keep their IDs from one version to the
+ * next, so give each face a stable ID (such as one derived from a persistent
+ * key of the region), rather than numbering the faces of each version afresh:
+ * renumbered faces change the history of every trapezoid they cover.
+ * <p>
+ * Locating a point in a version costs one point location in the shared map,
+ * plus a binary search of the point's history.
+ *
+ * @author Michael Carleton
+ */
+public final class VersionedTrapMap {
+
+	private final TrapMap map; // map of the segments of all versions, whose face IDs index histories
+	private final int versionCount;
+	private final int[] historyOffsets; // start of each history's changes (one extra entry marks the end)
+	private final int[] changeVersions; // the version at which each change takes effect
+	private final int[] changeFaces; // the face from that version on
+
+	/**
+	 * Builds the versioned map of a sequence of versions, all held in memory (see
+	 * {@link #VersionedTrapMap(int, IntFunction)} to build the versions one at a
+	 * time).
+	 * <p>
+	 * The version maps are only read during construction (each is queried once per
+	 * trapezoid of the shared map), and need not be kept afterwards.
+	 *
+	 * @param versions the map of each version, in order: version <i>i</i> is
+	 *                 <code>versions.get(i)</code>
+	 */
+	public VersionedTrapMap(List<? extends TrapMap> versions) {
+		this(versions.size(), versions::get);
+	}
+
+	/**
+	 * Builds the versioned map of a sequence of versions, from a function that
+	 * builds the map of any version (from its segments or rings, say). Each version
+	 * is built twice, once to collect its segments and once to locate the shared
+	 * map's trapezoids in it, and dropped in between, so that only one version is
+	 * held in memory at a time.
+	 *
+	 * @param versionCount the number of versions
+	 * @param versions     builds the map of version <i>i</i> (for <i>i</i> from 0
+	 *                     to versionCount, exclusive), with the same faces and
+	 *                     face IDs each time it is called
+	 */
+	public VersionedTrapMap(int versionCount, IntFunction<? extends TrapMap> versions) {
+		if (versionCount < 1) {
+			throw new IllegalArgumentException("At least one version is required");
+		}
+		this.versionCount = versionCount;
+		map = new TrapMap(TrapMap.nodedUnion(() -> IntStream.range(0, versionCount).<TrapMap>mapToObj(versions).iterator()));
+		final List<Trapezoid> trapezoids = map.getAllTrapezoids();
+		final int n = trapezoids.size();
+		final double[] xy = new double[2 * n];
+		for (int i = 0; i < n; i++) {
+			xy[2 * i] = trapezoids.get(i).interiorX();
+			xy[2 * i + 1] = trapezoids.get(i).interiorY();
+		}
+
+		/*
+		 * Histories are built as a trie of changes, each change pointing to the
+		 * change before it. At each version, every trapezoid whose face differs from
+		 * its current change moves to the child change (version, face); trapezoids
+		 * with the same history move to the same (interned) child.
+		 */
+		final int[] current = new int[n];
+		Arrays.fill(current, -1);
+		int[] parents = new int[Math.max(16, n)];
+		int[] versionOf = new int[parents.length];
+		int[] faceOf = new int[parents.length];
+		int changes = 0;
+		final int[] faces = new int[n];
+		for (int v = 0; v < versionCount; v++) {
+			final LongIntHashMap children = new LongIntHashMap(64);
+			final TrapMap version = versions.apply(v);
+			for (int i = 0; i < n; i++) {
+				faces[i] = version.findContainingFace(xy[2 * i], xy[2 * i + 1]);
+			}
+			for (int i = 0; i < n; i++) {
+				final int change = current[i];
+				if (change != -1 && faceOf[change] == faces[i]) {
+					continue;
+				}
+				final long key = ((long) change << 32) | (faces[i] & 0xFFFFFFFFL);
+				final int existing = children.putIfAbsent(key, changes);
+				if (existing != -1) {
+					current[i] = existing;
+					continue;
+				}
+				if (changes == parents.length) {
+					parents = Arrays.copyOf(parents, changes * 2);
+					versionOf = Arrays.copyOf(versionOf, changes * 2);
+					faceOf = Arrays.copyOf(faceOf, changes * 2);
+				}
+				parents[changes] = change;
+				versionOf[changes] = v;
+				faceOf[changes] = faces[i];
+				current[i] = changes++;
+			}
+		}
+
+		// flatten the history ending at each distinct final change into an array
+		final LongIntHashMap historyIndex = new LongIntHashMap(64);
+		int[] offsets = new int[16];
+		int[] historyVersions = new int[Math.max(16, changes)];
+		int[] historyFaces = new int[historyVersions.length];
+		int histories = 0;
+		int length = 0;
+		for (int i = 0; i < n; i++) {
+			int history = historyIndex.putIfAbsent(current[i], histories);
+			if (history == -1) {
+				history = histories++;
+				int depth = 0;
+				for (int c = current[i]; c != -1; c = parents[c]) {
+					depth++;
+				}
+				if (length + depth > historyVersions.length) {
+					historyVersions = Arrays.copyOf(historyVersions, Math.max(length + depth, 2 * historyVersions.length));
+					historyFaces = Arrays.copyOf(historyFaces, historyVersions.length);
+				}
+				if (histories >= offsets.length) {
+					offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				}
+				length += depth;
+				offsets[histories] = length;
+				for (int c = current[i], j = length - 1; c != -1; c = parents[c], j--) {
+					historyVersions[j] = versionOf[c];
+					historyFaces[j] = faceOf[c];
+				}
+			}
+			trapezoids.get(i).setFace(null, history);
+		}
+		historyOffsets = Arrays.copyOf(offsets, histories + 1);
+		changeVersions = Arrays.copyOf(historyVersions, length);
+		changeFaces = Arrays.copyOf(historyFaces, length);
+	}
+
+	/**
+	 * @return the number of versions
+	 */
+	public int getVersionCount() {
+		return versionCount;
+	}
+
+	/**
+	 * @return the number of distinct face histories shared by the trapezoids of the
+	 *         map
+	 */
+	public int getHistoryCount() {
+		return historyOffsets.length - 1;
+	}
+
+	/**
+	 * @return the number of face changes stored over all histories
+	 */
+	public int getChangeCount() {
+		return changeVersions.length;
+	}
+
+	/**
+	 * Locates the face that contained a point in a version.
+	 *
+	 * @param x       x-coordinate of query point
+	 * @param y       y-coordinate of query point
+	 * @param version the version (from 0 to {@link #getVersionCount()}, exclusive)
+	 * @return the ID of the face containing the point in the version, or -1 if no
+	 *         face contained it
+	 */
+	public int locate(double x, double y, int version) {
+		if (version < 0 || version >= versionCount) {
+			throw new IllegalArgumentException("Version " + version + " is not in [0, " + versionCount + ")");
+		}
+		final int history = map.findContainingFace(x, y);
+		if (history == -1) {
+			return -1;
+		}
+		// the last change taking effect at or before the version
+		int lo = historyOffsets[history];
+		int hi = historyOffsets[history + 1] - 1; // every history starts at version 0
+		while (lo < hi) {
+			final int mid = (lo + hi + 1) >>> 1;
+			if (changeVersions[mid] <= version) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return changeFaces[lo];
+	}
+
+	/**
+	 * Returns a view of one version, for use wherever a {@link FaceLocator} is
+	 * expected (such as a layer of a {@link TrapMapSet}).
+	 *
+	 * @param version the version (from 0 to {@link #getVersionCount()}, exclusive)
+	 * @return a locator of faces in the version
+	 */
+	public FaceLocator atVersion(int version) {
+		if (version < 0 || version >= versionCount) {
+			throw new IllegalArgumentException("Version " + version + " is not in [0, " + versionCount + ")");
+		}
+		return new FaceLocator() {
+			@Override
+			public int findContainingFace(double x, double y) {
+				return locate(x, y, version);
+			}
+
+			@Override
+			public int[] findContainingFaces(double[] coords) {
+				final int[] faces = new int[coords.length / 2];
+				for (int i = 0; i < faces.length; i++) {
+					faces[i] = locate(coords[2 * i], coords[2 * i + 1], version);
+				}
+				return faces;
+			}
+		};
+	}
+}
@@ -0,0 +1,131 @@
+package micycle.trapmap;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streams polygon rings from a sequence of concatenated Well-Known Binary (WKB)
+ * geometries straight into a {@link SegmentCollector}.
+ * <p>
+ * Polygon, MultiPolygon and GeometryCollection (of polygonal geometries) are
+ * supported, in either byte order, with or without Z/M ordinates (ISO and
+ * PostGIS EWKB flavours, including an embedded SRID). Z and M values are
+ * skipped. Each top-level geometry becomes one face, whose ID is the index of
+ * the geometry in the stream; all rings of the geometry (shells and holes)
+ * belong to that face.
+ *
+ * @author Michael Carleton
+ */
+final class WKBReader {
+
+	private static final int POLYGON = 3;
+	private static final int MULTI_POLYGON = 6;
+	private static final int GEOMETRY_COLLECTION = 7;
+
+	private static final int EWKB_Z = 0x80000000;
+	private static final int EWKB_M = 0x40000000;
+	private static final int EWKB_SRID = 0x20000000;
+
+	private final DataInputStream in;
+	private boolean littleEndian;
+
+	WKBReader(InputStream in) {
+		this.in = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in));
+	}
+
+	/**
+	 * Reads every geometry until the end of the stream.
+	 *
+	 * @return the number of geometries (faces) read
+	 */
+	int readAll(SegmentCollector collector) throws IOException {
+		int face = 0;
+		while (readGeometry(collector, face, true)) {
+			face++;
+		}
+		return face;
+	}
+
+	private boolean readGeometry(SegmentCollector collector, int faceId, boolean allowEOF) throws IOException {
+		final int order = in.read();
+		if (order < 0) {
+			if (allowEOF) {
+				return false;
+			}
+			throw new EOFException("Truncated WKB geometry");
+		}
+		littleEndian = order == 1;
+
+		int type = readInt();
+		int dimensions = 2;
+		if ((type & EWKB_Z) != 0) {
+			dimensions++;
+		}
+		if ((type & EWKB_M) != 0) {
+			dimensions++;
+		}
+		if ((type & EWKB_SRID) != 0) {
+			readInt(); // SRID (ignored)
+		}
+		type &= 0x0FFFFFFF;
+		switch (type / 1000) { // ISO dimension codes
+			case 1: // Z
+			case 2: // M
+				dimensions++;
+				break;
+			case 3: // ZM
+				dimensions += 2;
+				break;
+			default:
+				break;
+		}
+
+		switch (type % 1000) {
+			case POLYGON:
+				readPolygon(collector, faceId, dimensions);
+				break;
+			case MULTI_POLYGON:
+			case GEOMETRY_COLLECTION:
+				final int parts = readInt();
+				for (int i = 0; i < parts; i++) {
+					readGeometry(collector, faceId, false);
+				}
+				break;
+			default:
+				throw new IOException("Unsupported WKB geometry type: " + type);
+		}
+		return true;
+	}
+
+	private void readPolygon(SegmentCollector collector, int faceId, int dimensions) throws IOException {
+		final int rings = readInt();
+		for (int r = 0; r < rings; r++) {
+			final int n = readInt();
+			if (n < 0) {
+				throw new IOException("Invalid WKB ring size: " + n);
+			}
+			final float[] xy = collector.buffer(n);
+			for (int i = 0; i < n; i++) {
+				xy[2 * i] = (float) readDouble();
+				xy[2 * i + 1] = (float) readDouble();
+				for (int d = 2; d < dimensions; d++) {
+					readDouble();
+				}
+			}
+			collector.addRing(n, null, faceId);
+		}
+	}
+
+	private int readInt() throws IOException {
+		final int v = in.readInt();
+		return littleEndian ? Integer.reverseBytes(v) : v;
+	}
+
+	private double readDouble() throws IOException {
+		final long v = in.readLong();
+		return Double.longBitsToDouble(littleEndian ? Long.reverseBytes(v) : v);
+	}
+}
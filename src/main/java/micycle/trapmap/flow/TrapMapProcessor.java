@@ -0,0 +1,307 @@
+package micycle.trapmap.flow;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import micycle.trapmap.FaceLocator;
+
+/**
+ * A reactive stream stage ({@link Flow.Processor}) that locates batches of
+ * points in a map: it consumes batches of interleaved point coordinates (x0,
+ * y0, x1, y1...) and emits, for each batch and in the same order, the IDs of
+ * the faces containing its points (see
+ * {@link FaceLocator#findContainingFaces(double[]) findContainingFaces()}).
+ * <p>
+ * Batches are located on a fixed pool of worker threads; batches larger than
+ * the batch size are split into parts located in parallel. Backpressure is
+ * kept end to end: at most two batches per worker are requested from upstream
+ * ahead of those emitted, and a batch is emitted only when the subscriber has
+ * requested it, so a slow subscriber slows the intake of batches. No call
+ * blocks.
+ * <p>
+ * The processor has a single subscriber. Located batches are held until it
+ * subscribes. The worker threads stop when the stream completes, fails or is
+ * cancelled.
+ *
+ * @author Michael Carleton
+ */
+public final class TrapMapProcessor implements Flow.Processor<double[], int[]>, AutoCloseable {
+
+	/** The default maximum number of points located by a worker at a time. */
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+
+	private final FaceLocator map;
+	private final int batchSize;
+	private final int window; // batches requested from upstream ahead of those emitted
+	private final ThreadPoolExecutor workers;
+
+	private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<>();
+	private final AtomicReference<Flow.Subscriber<? super int[]>> downstream = new AtomicReference<>();
+	private final ConcurrentHashMap<Long, int[]> located = new ConcurrentHashMap<>(); // by sequence number
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong emitted = new AtomicLong(); // only incremented while draining
+	private final AtomicLong demand = new AtomicLong();
+	private final AtomicInteger drains = new AtomicInteger(); // serializes signals to the subscriber
+	private volatile boolean upstreamDone;
+	private volatile boolean cancelled;
+	private volatile boolean terminated; // the subscriber has been completed or failed
+	private volatile Throwable error;
+
+	/**
+	 * Creates a processor with one worker per available processor and the
+	 * {@link #DEFAULT_BATCH_SIZE default batch size}.
+	 *
+	 * @param map the map in which to locate points
+	 */
+	public TrapMapProcessor(FaceLocator map) {
+		this(map, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates a processor.
+	 *
+	 * @param map         the map in which to locate points (which must support
+	 *                    concurrent queries, as all maps of this library do)
+	 * @param concurrency the number of worker threads
+	 * @param batchSize   the maximum number of points located by a worker at a
+	 *                    time; larger batches are split
+	 */
+	public TrapMapProcessor(FaceLocator map, int concurrency, int batchSize) {
+		if (concurrency < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Concurrency and batch size must be positive");
+		}
+		this.map = map;
+		this.batchSize = batchSize;
+		this.window = 2 * concurrency;
+		final AtomicInteger threads = new AtomicInteger();
+		workers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+			final Thread thread = new Thread(r, "trapmap-worker-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super int[]> subscriber) {
+		if (!downstream.compareAndSet(null, subscriber)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("TrapMapProcessor supports a single subscriber"));
+			return;
+		}
+		subscriber.onSubscribe(new Flow.Subscription() {
+			@Override
+			public void request(long n) {
+				if (n <= 0) {
+					fail(new IllegalArgumentException("Requested " + n + " batches; requests must be positive"));
+					return;
+				}
+				demand.getAndAccumulate(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+				drain();
+			}
+
+			@Override
+			public void cancel() {
+				close();
+			}
+		});
+		drain();
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (!upstream.compareAndSet(null, subscription)) {
+			subscription.cancel(); // already subscribed
+			return;
+		}
+		subscription.request(window);
+	}
+
+	@Override
+	public void onNext(double[] coords) {
+		final long sequence = received.getAndIncrement();
+		final int n = coords.length / 2;
+		if (n <= batchSize) {
+			execute(() -> emit(sequence, map.findContainingFaces(coords)));
+			return;
+		}
+		final int[] faces = new int[n];
+		final int parts = (n + batchSize - 1) / batchSize;
+		final AtomicInteger remaining = new AtomicInteger(parts);
+		for (int p = 0; p < parts; p++) {
+			final int from = p * batchSize;
+			final int to = Math.min(n, from + batchSize);
+			execute(() -> {
+				final int[] part = map.findContainingFaces(Arrays.copyOfRange(coords, 2 * from, 2 * to));
+				System.arraycopy(part, 0, faces, from, part.length);
+				if (remaining.decrementAndGet() == 0) {
+					emit(sequence, faces);
+				}
+			});
+		}
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		upstreamDone = true;
+		error = throwable;
+		drain();
+	}
+
+	@Override
+	public void onComplete() {
+		upstreamDone = true;
+		drain();
+	}
+
+	/**
+	 * Cancels the stream: cancels the upstream subscription and stops the workers;
+	 * batches not yet emitted are dropped and the subscriber receives no further
+	 * signals.
+	 */
+	@Override
+	public void close() {
+		cancelled = true;
+		final Flow.Subscription subscription = upstream.get();
+		if (subscription != null) {
+			subscription.cancel();
+		}
+		workers.shutdownNow();
+		located.clear();
+	}
+
+	/**
+	 * @return the number of batches received but not yet emitted (being located,
+	 *         or located and waiting for demand or for an earlier batch)
+	 */
+	public long getQueueDepth() {
+		return received.get() - emitted.get();
+	}
+
+	/**
+	 * @return the number of batches located but not yet emitted
+	 */
+	public int getLocatedBatches() {
+		return located.size();
+	}
+
+	/**
+	 * @return the number of location tasks (batches or parts of batches) waiting
+	 *         for a worker
+	 */
+	public int getQueuedTasks() {
+		return workers.getQueue().size();
+	}
+
+	/**
+	 * @return the number of workers currently locating points
+	 */
+	public int getActiveWorkers() {
+		return workers.getActiveCount();
+	}
+
+	/**
+	 * @return the number of batches requested by the subscriber and not yet
+	 *         emitted
+	 */
+	public long getDemand() {
+		return demand.get();
+	}
+
+	/**
+	 * @return the number of batches emitted so far
+	 */
+	public long getEmittedCount() {
+		return emitted.get();
+	}
+
+	private void execute(Runnable task) {
+		try {
+			workers.execute(() -> {
+				if (cancelled || error != null) {
+					return;
+				}
+				try {
+					task.run();
+				} catch (Throwable e) { // an error too, or the stream would never terminate
+					fail(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// cancelled: the batch is dropped
+		}
+	}
+
+	private void emit(long sequence, int[] faces) {
+		located.put(sequence, faces);
+		drain();
+	}
+
+	/**
+	 * Fails the stream from within (a failed location, or an invalid request).
+	 */
+	private void fail(Throwable throwable) {
+		error = throwable;
+		final Flow.Subscription subscription = upstream.get();
+		if (subscription != null) {
+			subscription.cancel();
+		}
+		drain();
+	}
+
+	/**
+	 * Emits located batches in order while the subscriber has demand for them,
+	 * replenishing upstream demand by one batch for each emitted, and signals
+	 * termination once all batches are emitted. Only one thread drains at a time;
+	 * a thread arriving while another drains makes it drain again.
+	 */
+	private void drain() {
+		if (drains.getAndIncrement() != 0) {
+			return;
+		}
+		int missed = 1;
+		do {
+			final Flow.Subscriber<? super int[]> subscriber = downstream.get();
+			if (subscriber != null && !terminated && !cancelled) {
+				if (error != null) {
+					terminated = true;
+					located.clear();
+					subscriber.onError(error);
+				} else {
+					int[] next;
+					while (demand.get() > 0 && !cancelled && (next = located.remove(emitted.get())) != null) {
+						emitted.incrementAndGet();
+						if (demand.get() != Long.MAX_VALUE) {
+							demand.decrementAndGet();
+						}
+						subscriber.onNext(next);
+						upstream.get().request(1);
+					}
+					if (upstreamDone && !cancelled && emitted.get() == received.get()) {
+						terminated = true;
+						subscriber.onComplete();
+					}
+				}
+				if (terminated) {
+					workers.shutdown();
+				}
+			}
+			missed = drains.addAndGet(-missed);
+		} while (missed != 0);
+	}
+}
@@ -0,0 +1,12 @@
+/**
+ * <h3>Package</h3>
+ * 
+ * Adapters for locating points within reactive streams
+ * ({@link java.util.concurrent.Flow}), such as
+ * {@link micycle.trapmap.flow.TrapMapProcessor}.
+ * 
+ * <p>
+ * This package requires Java 9 or later; it is left out of builds on Java 8
+ * (see the <code>jdk8</code> profile of the POM).
+ */
+package micycle.trapmap.flow;
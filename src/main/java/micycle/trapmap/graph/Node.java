@@ -1,6 +1,7 @@
 package micycle.trapmap.graph;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -15,10 +16,9 @@ public abstract class Node {
 	private Node parent = null;
 	private Node leftChild = null;
 	private Node rightChild = null;
-	private List<Node> parents;
+	private List<Node> parents; // allocated on first use
 
 	protected Node() {
-		parents = new ArrayList<>(2);
 	}
 
 	/**
@@ -38,7 +38,7 @@ public abstract class Node {
 	 * @return The ArrayList containing all parent nodes
 	 */
 	public List<Node> getParentNodes() {
-		return parents;
+		return parents == null ? Collections.emptyList() : parents;
 	}
 
 	/**
@@ -48,9 +48,25 @@ public abstract class Node {
 	 */
 	public void setParentNode(Node newParent) {
 		parent = newParent;
+		if (parents == null) {
+			parents = new ArrayList<>(2);
+		}
 		parents.add(newParent);
 	}
 
+	/**
+	 * Releases the references to this Node's parents, which are needed only while
+	 * the graph is being built (to rewire it).
+	 * 
+	 * @return The number of parent references released
+	 */
+	public int clearParentNodes() {
+		final int count = parents == null ? 0 : parents.size();
+		parent = null;
+		parents = null;
+		return count;
+	}
+
 	/**
 	 * Get the left child node of this Node
 	 * 
@@ -0,0 +1,159 @@
+package micycle.trapmap.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.SplittableRandom;
+
+/**
+ * A blocking client of a {@link TrapMapServer}, which locates batches of points
+ * over one connection; also a simple load generator for the server (see
+ * {@link #main(String[])}).
+ * <p>
+ * A client is not thread-safe: use one client (connection) per thread.
+ *
+ * @author Michael Carleton
+ */
+public final class TrapMapClient implements AutoCloseable {
+
+	private final SocketChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Connects to a server.
+	 *
+	 * @param address the address of the server
+	 * @throws IOException if the connection fails
+	 */
+	public TrapMapClient(InetSocketAddress address) throws IOException {
+		channel = SocketChannel.open(address);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
+
+	/**
+	 * Locates a batch of points.
+	 *
+	 * @param coords interleaved point coordinates: x0, y0, x1, y1... (at most
+	 *               {@link TrapMapServer#MAX_POINTS_PER_FRAME} points)
+	 * @return the ID of the face containing each point, or -1 where no face
+	 *         contains it
+	 * @throws IOException if the connection fails
+	 */
+	public int[] locate(double[] coords) throws IOException {
+		final int n = coords.length / 2;
+		if (n > TrapMapServer.MAX_POINTS_PER_FRAME) {
+			throw new IllegalArgumentException("A batch may hold at most " + TrapMapServer.MAX_POINTS_PER_FRAME + " points");
+		}
+		ensureCapacity(4 + 16 * n);
+		((Buffer) buffer).clear(); // as Buffer, so that Java 8 runtimes link it
+		buffer.putInt(n);
+		for (int i = 0; i < 2 * n; i++) {
+			buffer.putDouble(coords[i]);
+		}
+		((Buffer) buffer).flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+
+		readFully(4);
+		final int count = buffer.getInt();
+		final int[] faces = new int[count];
+		ensureCapacity(4 * count);
+		readFully(4 * count);
+		for (int i = 0; i < count; i++) {
+			faces[i] = buffer.getInt();
+		}
+		return faces;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads the given number of bytes into the (flipped) buffer.
+	 */
+	private void readFully(int bytes) throws IOException {
+		((Buffer) buffer).clear();
+		((Buffer) buffer).limit(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Connection closed by the server");
+			}
+		}
+		((Buffer) buffer).flip();
+	}
+
+	private void ensureCapacity(int bytes) {
+		if (buffer.capacity() < bytes) {
+			buffer = ByteBuffer.allocateDirect(Math.max(bytes, 2 * buffer.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Generates load against a server: several clients, each on its own thread,
+	 * locate batches of random points in a rectangle for a while, and the overall
+	 * throughput is printed.
+	 * <p>
+	 * Arguments: host, port, clients, points per batch, seconds, and the rectangle
+	 * (minX, minY, maxX, maxY).
+	 *
+	 * @param args the arguments
+	 * @throws Exception if a client fails
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 9) {
+			System.err.println("Arguments: host port clients batchSize seconds minX minY maxX maxY");
+			return;
+		}
+		final InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+		final int clients = Integer.parseInt(args[2]);
+		final int batchSize = Integer.parseInt(args[3]);
+		final long end = System.nanoTime() + (long) (Double.parseDouble(args[4]) * 1e9);
+		final double minX = Double.parseDouble(args[5]);
+		final double minY = Double.parseDouble(args[6]);
+		final double maxX = Double.parseDouble(args[7]);
+		final double maxY = Double.parseDouble(args[8]);
+
+		final long start = System.nanoTime();
+		final long[] points = new long[clients];
+		final Thread[] threads = new Thread[clients];
+		final Exception[] failures = new Exception[clients];
+		for (int c = 0; c < clients; c++) {
+			final int client = c;
+			threads[c] = new Thread(() -> {
+				final SplittableRandom random = new SplittableRandom(client);
+				final double[] coords = new double[2 * batchSize];
+				try (TrapMapClient connection = new TrapMapClient(address)) {
+					while (System.nanoTime() < end) {
+						for (int i = 0; i < coords.length; i += 2) {
+							coords[i] = minX + random.nextDouble() * (maxX - minX);
+							coords[i + 1] = minY + random.nextDouble() * (maxY - minY);
+						}
+						connection.locate(coords);
+						points[client] += batchSize;
+					}
+				} catch (IOException e) {
+					failures[client] = e;
+				}
+			});
+			threads[c].start();
+		}
+		long total = 0;
+		for (int c = 0; c < clients; c++) {
+			threads[c].join();
+			if (failures[c] != null) {
+				throw failures[c];
+			}
+			total += points[c];
+		}
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d points in %.1f s: %.0f points/s over %d clients%n", total, seconds, total / seconds, clients);
+	}
+}
@@ -0,0 +1,417 @@
+package micycle.trapmap.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import micycle.trapmap.FaceLocator;
+
+/**
+ * A small TCP server that answers point location queries against a map, for
+ * clients outside the JVM.
+ * <p>
+ * The protocol is binary and little-endian. A client sends frames, each a batch
+ * of points:
+ * <ul>
+ * <li>the number of points <i>n</i> (int32, at most
+ * {@link #MAX_POINTS_PER_FRAME})</li>
+ * <li>the coordinates of the points: x0, y0, x1, y1... (2<i>n</i> x
+ * float64)</li>
+ * </ul>
+ * and the server replies to each frame, in order, with:
+ * <ul>
+ * <li>the number of points <i>n</i> (int32)</li>
+ * <li>the ID of the face containing each point, or -1 (<i>n</i> x int32)</li>
+ * </ul>
+ * Clients may send several frames before reading the replies. A malformed frame
+ * closes the connection.
+ * <p>
+ * One thread serves all connections with non-blocking I/O, handing each frame
+ * to a fixed pool of worker threads that locate it with the map's bulk query, so
+ * that large frames do not hold up other connections; each connection's
+ * replies are written in the order of its frames. A connection with
+ * {@value #MAX_PENDING_FRAMES} frames being located or waiting for their
+ * replies to be read is not read from, until its replies drain. The map can be
+ * replaced while the server runs (see {@link #swap(FaceLocator)}).
+ *
+ * @author Michael Carleton
+ * @see TrapMapClient
+ */
+public final class TrapMapServer implements AutoCloseable {
+
+	/** The largest number of points a frame may hold. */
+	public static final int MAX_POINTS_PER_FRAME = 1 << 20;
+
+	/**
+	 * The most frames of a connection that are located, or whose replies wait to
+	 * be written, at once; the connection is not read while it has this many.
+	 */
+	public static final int MAX_PENDING_FRAMES = 4;
+
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final Thread thread;
+	private final ExecutorService workers;
+	private final Queue<SelectionKey> located = new ConcurrentLinkedQueue<>(); // connections with newly located frames
+	private final ReadWriteLock swapLock = new ReentrantReadWriteLock(); // read while locating, written by swaps
+	private FaceLocator map; // guarded by swapLock
+	private volatile boolean running = true;
+
+	/**
+	 * Starts a server on the loopback interface, with a worker thread per
+	 * processor.
+	 *
+	 * @param map  the map to serve
+	 * @param port the port to listen on (0 for any free port; see
+	 *             {@link #getAddress()})
+	 * @throws IOException if the server cannot listen on the port
+	 */
+	public TrapMapServer(FaceLocator map, int port) throws IOException {
+		this(map, new InetSocketAddress("localhost", port));
+	}
+
+	/**
+	 * Starts a server, with a worker thread per processor.
+	 *
+	 * @param map     the map to serve
+	 * @param address the address to listen on
+	 * @throws IOException if the server cannot listen on the address
+	 */
+	public TrapMapServer(FaceLocator map, InetSocketAddress address) throws IOException {
+		this(map, address, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Starts a server.
+	 *
+	 * @param map     the map to serve
+	 * @param address the address to listen on
+	 * @param workers the number of threads locating frames
+	 * @throws IOException if the server cannot listen on the address
+	 */
+	public TrapMapServer(FaceLocator map, InetSocketAddress address, int workers) throws IOException {
+		if (workers < 1) {
+			throw new IllegalArgumentException("At least one worker is needed");
+		}
+		this.map = map;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try {
+			server.bind(address);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+		this.workers = Executors.newFixedThreadPool(workers, r -> {
+			final Thread worker = new Thread(r, "trapmap-server-worker");
+			worker.setDaemon(true);
+			return worker;
+		});
+		thread = new Thread(this::serve, "trapmap-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the address the server listens on
+	 */
+	public InetSocketAddress getAddress() {
+		try {
+			return (InetSocketAddress) server.getLocalAddress();
+		} catch (IOException e) {
+			throw new IllegalStateException("Server is closed", e);
+		}
+	}
+
+	/**
+	 * Replaces the map that the server answers queries with. Frames located after
+	 * this method returns use the new map; this method waits for the frames being
+	 * located with the previous map, so no frame uses it after it returns, and it
+	 * may then be closed.
+	 *
+	 * @param map the map to serve from now on
+	 * @return the map served until now
+	 * @throws IllegalStateException if the server is closed
+	 */
+	public FaceLocator swap(FaceLocator map) {
+		if (!running) {
+			throw new IllegalStateException("Server is closed");
+		}
+		swapLock.writeLock().lock();
+		try {
+			final FaceLocator previous = this.map;
+			this.map = map;
+			return previous;
+		} finally {
+			swapLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops the server, closing all connections once the frames being located
+	 * are done.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join();
+			workers.shutdownNow(); // frames of closed connections need not be located
+			workers.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void serve() {
+		try {
+			while (running) {
+				selector.select();
+				SelectionKey key;
+				while ((key = located.poll()) != null) {
+					if (key.isValid()) {
+						try {
+							write(key);
+						} catch (IOException | RuntimeException e) {
+							drop(key);
+						}
+					}
+				}
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					key = keys.next();
+					keys.remove();
+					if (key.isAcceptable()) {
+						accept(); // never closes the listening channel
+						continue;
+					}
+					try {
+						if (key.isReadable()) {
+							read(key);
+						}
+						if (key.isValid() && key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException | RuntimeException e) {
+						drop(key); // drop the connection, not the server
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the selector failed; stop serving
+		} finally {
+			running = false;
+			workers.shutdownNow();
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Accepts a connection. A failure closes only the accepted channel (if any).
+	 */
+	private void accept() {
+		final SocketChannel channel;
+		try {
+			channel = server.accept();
+		} catch (IOException e) {
+			return; // (such as too many open files) retried on the next selection
+		}
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			channel.register(selector, SelectionKey.OP_READ, new Connection());
+		} catch (IOException | RuntimeException e) {
+			try {
+				channel.close();
+			} catch (IOException suppressed) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection.
+	 */
+	private static void drop(SelectionKey key) {
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * Reads from a connection and hands every complete frame read to the workers.
+	 */
+	private void read(SelectionKey key) throws IOException {
+		final Connection connection = (Connection) key.attachment();
+		final SocketChannel channel = (SocketChannel) key.channel();
+		if (channel.read(connection.in) < 0) {
+			channel.close();
+			return;
+		}
+		submitFrames(key);
+		write(key);
+	}
+
+	/**
+	 * Hands the complete frames read from a connection to the workers, while it
+	 * has fewer than {@value #MAX_PENDING_FRAMES} pending.
+	 */
+	private void submitFrames(SelectionKey key) throws IOException {
+		final Connection connection = (Connection) key.attachment();
+		final ByteBuffer in = connection.in;
+		((Buffer) in).flip(); // Buffer methods (ByteBuffer overrides them only from Java 9)
+		int needed = 0; // bytes of the next incomplete frame
+		while (connection.frames.size() < MAX_PENDING_FRAMES && in.remaining() >= 4) {
+			final int n = in.getInt(in.position());
+			if (n < 0 || n > MAX_POINTS_PER_FRAME) {
+				throw new IOException("Invalid frame of " + n + " points");
+			}
+			needed = 4 + 16 * n;
+			if (in.remaining() < needed) {
+				break;
+			}
+			in.getInt();
+			final double[] coords = new double[2 * n];
+			for (int i = 0; i < coords.length; i++) {
+				coords[i] = in.getDouble();
+			}
+			submit(key, coords);
+			needed = 0;
+		}
+		in.compact();
+		if (needed > in.capacity()) {
+			connection.in = resize(in, Math.max(needed, 2 * in.capacity()));
+		} else if (in.capacity() > BUFFER_BYTES && in.position() <= BUFFER_BYTES && needed <= BUFFER_BYTES) {
+			connection.in = resize(in, BUFFER_BYTES); // release the space of a large frame
+		}
+	}
+
+	/**
+	 * Locates a frame on a worker thread, then has its reply written.
+	 */
+	private void submit(SelectionKey key, double[] coords) {
+		final Frame frame = new Frame();
+		((Connection) key.attachment()).frames.add(frame);
+		workers.execute(() -> {
+			try {
+				final int[] faces;
+				swapLock.readLock().lock();
+				try {
+					faces = map.findContainingFaces(coords);
+				} finally {
+					swapLock.readLock().unlock();
+				}
+				final ByteBuffer reply = ByteBuffer.allocate(4 + 4 * faces.length).order(ByteOrder.LITTLE_ENDIAN);
+				reply.putInt(faces.length);
+				for (int face : faces) {
+					reply.putInt(face);
+				}
+				((Buffer) reply).flip();
+				frame.reply = reply;
+			} catch (Throwable e) {
+				frame.failure = e;
+			}
+			located.add(key);
+			selector.wakeup();
+		});
+	}
+
+	/**
+	 * Writes the replies of a connection's located frames, in order, then reads
+	 * any frames held back while too many were pending.
+	 */
+	private void write(SelectionKey key) throws IOException {
+		final Connection connection = (Connection) key.attachment();
+		final SocketChannel channel = (SocketChannel) key.channel();
+		Frame frame;
+		while ((frame = connection.frames.peek()) != null && frame.isDone()) {
+			if (frame.failure != null) {
+				throw new IOException("Failed to locate a frame", frame.failure);
+			}
+			channel.write(frame.reply);
+			if (frame.reply.hasRemaining()) {
+				break; // the client is not reading
+			}
+			connection.frames.poll();
+			if (connection.in.position() > 0) {
+				submitFrames(key);
+			}
+		}
+		frame = connection.frames.peek();
+		final boolean unwritten = frame != null && frame.reply != null;
+		key.interestOps((connection.frames.size() < MAX_PENDING_FRAMES ? SelectionKey.OP_READ : 0)
+				| (unwritten ? SelectionKey.OP_WRITE : 0));
+	}
+
+	/**
+	 * @return a buffer of the given capacity (in fill mode) holding the contents
+	 *         of a buffer in fill mode
+	 */
+	private static ByteBuffer resize(ByteBuffer buffer, int capacity) {
+		final ByteBuffer resized = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+		((Buffer) buffer).flip();
+		resized.put(buffer);
+		return resized;
+	}
+
+	/**
+	 * The input buffer (in fill mode) of a connection, and its frames that are
+	 * being located or whose replies are not yet written, in order.
+	 */
+	private static final class Connection {
+
+		ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		final Queue<Frame> frames = new ArrayDeque<>(MAX_PENDING_FRAMES); // only used on the server thread
+	}
+
+	/**
+	 * A frame handed to the workers: done once its reply is encoded (or its
+	 * location failed).
+	 */
+	private static final class Frame {
+
+		volatile ByteBuffer reply; // in drain mode
+		volatile Throwable failure;
+
+		boolean isDone() {
+			return reply != null || failure != null;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package micycle.trapmap;
+
+import java.util.Random;
+
+/**
+ * Maps and query points shared by the tests (and benchmarks) of several
+ * packages.
+ *
+ * @author Michael Carleton
+ */
+public final class TestMaps {
+
+	private TestMaps() {
+	}
+
+	/**
+	 * Builds the map of an n x n grid of unit squares, in which the square with
+	 * lower left corner (i, j) is face i * n + j.
+	 */
+	public static TrapMap unitGrid(int n) {
+		return new TrapMap(gridRings(n, 0, 0), gridRingOffsets(n));
+	}
+
+	/**
+	 * Lays out the rings of an n x n grid of quads, in which ring i * n + j is the
+	 * quad with lower left corner (i, j), for the ring-array constructors.
+	 *
+	 * @param jitter how far (at most) each interior vertex is moved in x and in y;
+	 *               every ring sharing a vertex moves it alike, and the outline of
+	 *               the grid stays [0, n] x [0, n]
+	 * @param seed   seeds the jitter
+	 * @return the coordinates of the rings, four vertices each
+	 * @see #gridRingOffsets(int)
+	 */
+	public static double[] gridRings(int n, double jitter, long seed) {
+		final Random random = new Random(seed);
+		final double[][] vx = new double[n + 1][n + 1];
+		final double[][] vy = new double[n + 1][n + 1];
+		for (int i = 0; i <= n; i++) {
+			for (int j = 0; j <= n; j++) {
+				final boolean interior = i > 0 && j > 0 && i < n && j < n;
+				vx[i][j] = i + (interior ? (2 * random.nextDouble() - 1) * jitter : 0);
+				vy[i][j] = j + (interior ? (2 * random.nextDouble() - 1) * jitter : 0);
+			}
+		}
+		final double[] coords = new double[n * n * 8];
+		int c = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				final int[] corners = { i, j, i + 1, j, i + 1, j + 1, i, j + 1 };
+				for (int k = 0; k < 8; k += 2) {
+					coords[c++] = vx[corners[k]][corners[k + 1]];
+					coords[c++] = vy[corners[k]][corners[k + 1]];
+				}
+			}
+		}
+		return coords;
+	}
+
+	/**
+	 * @return the ring offsets of the n x n rings of {@link #gridRings(int, double,
+	 *         long)}
+	 */
+	public static int[] gridRingOffsets(int n) {
+		final int[] offsets = new int[n * n];
+		for (int r = 0; r < offsets.length; r++) {
+			offsets[r] = 4 * r;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Spreads query points evenly (by two irrational strides) over a square, such
+	 * as a grid of size n with a margin of 1 all round, so that some lie outside
+	 * it.
+	 *
+	 * @return the coordinates of the points, x then y
+	 */
+	public static double[] queryPoints(int count, double min, double max) {
+		final double[] coords = new double[2 * count];
+		for (int i = 0; i < count; i++) {
+			coords[2 * i] = min + (i * 0.618034) % (max - min);
+			coords[2 * i + 1] = min + (i * 0.414214) % (max - min);
+		}
+		return coords;
+	}
+}
@@ -1,16 +1,46 @@
 package micycle.trapmap;
 
+import static micycle.trapmap.TestMaps.gridRingOffsets;
+import static micycle.trapmap.TestMaps.gridRings;
+import static micycle.trapmap.TestMaps.queryPoints;
+import static micycle.trapmap.TestMaps.unitGrid;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.jupiter.api.Test;
 
+import micycle.trapmap.graph.Leaf;
+import micycle.trapmap.graph.Node;
 import processing.core.PConstants;
 import processing.core.PShape;
+import processing.core.PVector;
 
 class TrapMapTests {
 
@@ -116,11 +146,1195 @@ class TrapMapTests {
 		assertNull(trapMap.findContainingPolygon(50.00001, 0)); // test query point outside polygons
 	}
 
+	@Test
+	void testPointLocationFromCoordinates() throws IOException {
+		// same layout as testPointLocationFromQuads: two rings sharing edge [(0,0) -> (100,0)]
+		final double[] coords = { 0, 0, 100, 0, 100, -100, 0, -100, // top
+				0, 0, 100, 0, 150, 50, 100, 100, 0, 100, 0, 0 }; // bottom (explicitly closed)
+		final int[] ringOffsets = { 0, 4 };
+
+		final TrapMap trapMap = new TrapMap(coords, ringOffsets);
+		assertEquals(0, trapMap.findContainingFace(50, -50));
+		assertEquals(1, trapMap.findContainingFace(50, 50));
+		assertEquals(-1, trapMap.findContainingFace(999, 999));
+		assertNull(trapMap.findContainingPolygon(50, 50)); // no PShapes given
+		assertEquals(5, trapMap.getAllTrapezoids().size());
+
+		final FloatBuffer buffer = FloatBuffer.allocate(coords.length);
+		for (double c : coords) {
+			buffer.put((float) c);
+		}
+		buffer.flip();
+		final TrapMap bufferMap = new TrapMap(buffer, ringOffsets, new int[] { 7, 3 });
+		assertEquals(7, bufferMap.findContainingFace(50, -50));
+		assertEquals(3, bufferMap.findContainingFace(50, 50));
+		assertEquals(0, buffer.position());
+
+		// WKB: a big-endian polygon followed by a little-endian polygon with Z
+		final ByteBuffer wkb = ByteBuffer.allocate(512);
+		wkb.put((byte) 0).putInt(3).putInt(1).putInt(5);
+		for (int i = 0; i < 5; i++) {
+			wkb.putDouble(coords[(2 * i) % 8]).putDouble(coords[(2 * i + 1) % 8]);
+		}
+		wkb.order(ByteOrder.LITTLE_ENDIAN);
+		wkb.put((byte) 1).putInt(1003).putInt(1).putInt(6);
+		for (int i = 4; i < 10; i++) {
+			wkb.putDouble(coords[2 * i]).putDouble(coords[2 * i + 1]).putDouble(42);
+		}
+		final TrapMap wkbMap = TrapMap.fromWKB(new ByteArrayInputStream(wkb.array(), 0, wkb.position()));
+		assertEquals(0, wkbMap.findContainingFace(50, -50));
+		assertEquals(1, wkbMap.findContainingFace(50, 50));
+		assertEquals(5, wkbMap.getAllTrapezoids().size());
+	}
+
 	@Test
 	void segmentHashCodeTest() {
-		assertNotEquals(new Segment(1, 0, 0, 0).hashCode(), new Segment(0, 0, 1, 0));
-		assertNotEquals(new Segment(1, 2, 3, 4).hashCode(), new Segment(2, 1, 4, 3));
-		assertNotEquals(new Segment(-1, -2, -3, -4).hashCode(), new Segment(1, 2, 3, 4));
+		assertEquals(new Segment(1, 0, 0, 0).hashCode(), new Segment(0, 0, 1, 0).hashCode());
+		assertNotEquals(new Segment(1, 2, 3, 4).hashCode(), new Segment(2, 1, 4, 3).hashCode());
+		assertNotEquals(new Segment(-1, -2, -3, -4).hashCode(), new Segment(1, 2, 3, 4).hashCode());
+		assertNotEquals(new Segment(0, 0, 1, 1).hashCode(), new Segment(0, 1, 1, 0).hashCode());
+		assertEquals(new Segment(-0f, 0, 1, 1).hashCode(), new Segment(0, -0f, 1, 1).hashCode());
+	}
+
+	@Test
+	void testSharedEdgeAndVertexInterning() {
+		// 2x1 grid of unit squares: 7 unique edges, 6 unique vertices
+		final double[] coords = { 0, 0, 1, 0, 1, 1, 0, 1, 1, 0, 2, 0, 2, 1, 1, 1 };
+		final SegmentCollector collector = new SegmentCollector(8);
+		collector.addRings(coords, new int[] { 0, 4 }, null);
+
+		final Collection<Segment> segments = collector.segments();
+		assertEquals(7, segments.size());
+		final Set<PVector> vertices = Collections.newSetFromMap(new IdentityHashMap<>());
+		for (Segment s : segments) {
+			vertices.add(s.getLeftPoint());
+			vertices.add(s.getRightPoint());
+			if (s.equals(new Segment(1, 0, 1, 1))) { // shared edge is twinned
+				assertEquals(0, s.faceIdA);
+				assertEquals(1, s.faceIdB);
+			}
+		}
+		assertEquals(6, vertices.size());
+	}
+
+	@Test
+	void testCrossingValidationAndNoding() {
+		final Segment a = new Segment(0, 0, 10, 10);
+		final Segment b = new Segment(0, 10, 10, 0); // X-crossing with a
+		final Segment c = new Segment(5, 0, 5, 3); // T-junction: endpoint on d
+		final Segment d = new Segment(0, 3, 10, 3);
+		final Segment e = new Segment(10, 10, 10, 0); // shares endpoints only
+		assertTrue(TrapMap.findCrossings(Arrays.asList(a, e)).isEmpty());
+		assertEquals(1, TrapMap.findCrossings(Arrays.asList(a, b, e)).size());
+		assertEquals(1, TrapMap.findCrossings(Arrays.asList(c, d)).size());
+
+		final List<Segment> segments = Arrays.asList(a, b, c, d, e);
+		assertEquals(5, TrapMap.findCrossings(segments).size()); // a-b, a-d, b-d, c-d, d-e
+		assertThrows(IllegalArgumentException.class, () -> new TrapMap(segments, true));
+
+		final Collection<Segment> noded = TrapMap.nodeSegments(segments);
+		assertTrue(TrapMap.findCrossings(noded).isEmpty());
+		final TrapMap trapMap = new TrapMap(noded, true);
+		// triangle formed by a, b and d
+		assertEquals(trapMap.findFaceTrapezoids(5, 4), trapMap.findFaceTrapezoids(4, 3.5));
+		assertNotEquals(trapMap.findFaceTrapezoids(5, 4), trapMap.findFaceTrapezoids(5, 6));
+	}
+
+	@Test
+	void testOrientationIsExact() {
+		// (b - a) x (c - a) = -1e-30 exactly, though the differences round to 1 and 2
+		final PVector a = new PVector(1e-30f, 0);
+		final PVector b = new PVector(1, 1);
+		final PVector c = new PVector(2, 2);
+		assertEquals(-1, Segment.orientation(a, b, c));
+		assertEquals(1, Segment.orientation(a, c, b));
+		assertEquals(0, Segment.orientation(new PVector(0, 0), b, c));
+		assertEquals(1, Segment.orientation(new PVector(0, 0), new PVector(3, 1), new PVector(0, Float.MIN_VALUE)));
+
+		final Random random = new Random(28);
+		for (int i = 0; i < 10_000; i++) {
+			final PVector[] p = new PVector[3];
+			for (int k = 0; k < 3; k++) { // mixed magnitudes, and points on lines through the origin
+				final float scale = (float) Math.pow(10, random.nextInt(60) - 30);
+				final float x = (random.nextInt(7) - 3) * scale;
+				p[k] = new PVector(x, random.nextBoolean() ? x : (random.nextInt(7) - 3) * scale);
+			}
+			final BigDecimal ax = new BigDecimal(p[0].x);
+			final BigDecimal ay = new BigDecimal(p[0].y);
+			final int exact = new BigDecimal(p[1].x).subtract(ax).multiply(new BigDecimal(p[2].y).subtract(ay))
+					.subtract(new BigDecimal(p[1].y).subtract(ay).multiply(new BigDecimal(p[2].x).subtract(ax))).signum();
+			assertEquals(exact, Segment.orientation(p[0], p[1], p[2]));
+		}
+	}
+
+	@Test
+	void testCrossingSweep() {
+		// the sweep against every pair, on random segments with shared x-coordinates,
+		// vertical and collinear segments, T-junctions and shared endpoints
+		final Random random = new Random(28);
+		for (int iteration = 0; iteration < 200; iteration++) {
+			final List<Segment> segments = new ArrayList<>();
+			final int size = iteration % 2 == 0 ? 12 : 100; // a coarse or a fine lattice
+			for (int i = 0; i < 5 + random.nextInt(60); i++) {
+				final Segment s = new Segment(random.nextInt(size), random.nextInt(size), random.nextInt(size), random.nextInt(size));
+				if (!s.getLeftPoint().equals(s.getRightPoint()) && !segments.contains(s)) {
+					segments.add(s);
+				}
+			}
+			final Set<Long> expected = new HashSet<>();
+			for (int i = 0; i < segments.size(); i++) {
+				for (int j = i + 1; j < segments.size(); j++) {
+					if (segments.get(i).crosses(segments.get(j))) {
+						expected.add((long) i << 32 | j);
+					}
+				}
+			}
+			final IdentityHashMap<Segment, Integer> index = new IdentityHashMap<>();
+			for (int i = 0; i < segments.size(); i++) {
+				index.put(segments.get(i), i);
+			}
+			final Set<Long> found = new HashSet<>();
+			for (Segment[] pair : TrapMap.findCrossings(segments)) {
+				final int i = Math.min(index.get(pair[0]), index.get(pair[1]));
+				final int j = Math.max(index.get(pair[0]), index.get(pair[1]));
+				assertTrue(found.add((long) i << 32 | j), "pair reported twice");
+			}
+			assertEquals(expected, found);
+
+			final Collection<Segment> noded = TrapMap.nodeSegments(segments);
+			assertTrue(TrapMap.findCrossings(noded).isEmpty());
+		}
+	}
+
+	@Test
+	void testQueriesOutsideBoundsAndAllocation() {
+		final int n = 20;
+		final TrapMap trapMap = unitGrid(n);
+		assertEquals(-1, trapMap.findContainingFace(-1, 5));
+		assertNull(trapMap.findContainingTrapezoid(5, n + 1));
+		assertSame(trapMap.findNearestTrapezoid(n - 0.5, n - 0.5), trapMap.findNearestTrapezoid(n - 0.5, n + 100));
+		assertTrue(trapMap.getTrimmedBytes() > 0); // construction-only state was released
+
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		final long thread = Thread.currentThread().getId();
+		final double[] points = queryPoints(10_000, -1, n + 1); // include points outside the grid
+		int sum = queryGrid(trapMap, points, 10); // warm up
+		final long before = threads.getThreadAllocatedBytes(thread);
+		sum += queryGrid(trapMap, points, 100);
+		final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		assertTrue(sum > 0);
+		assertTrue(allocated < 1024, "queries allocated " + allocated + " bytes");
+	}
+
+	@Test
+	void testTrim() {
+		final int n = 12;
+		final TrapMap trapMap = unitGrid(n);
+		assertTrue(trapMap.getTrimmedBytes() > 0);
+
+		// no node keeps its parents, no trapezoid its leaf, and each trapezoid has one leaf
+		final Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+		final Set<Trapezoid> trapezoids = Collections.newSetFromMap(new IdentityHashMap<>());
+		final ArrayDeque<Node> stack = new ArrayDeque<>();
+		stack.push(trapMap.getRoot());
+		int leaves = 0;
+		while (!stack.isEmpty()) {
+			final Node node = stack.pop();
+			if (!visited.add(node)) {
+				continue;
+			}
+			assertTrue(node.getParentNodes().isEmpty());
+			assertNull(node.getParentNode());
+			if (node instanceof Leaf) {
+				leaves++;
+				assertTrue(trapezoids.add(((Leaf) node).getData()), "duplicate leaf");
+				assertNull(((Leaf) node).getData().getLeaf());
+			} else {
+				stack.push(node.getLeftChildNode());
+				stack.push(node.getRightChildNode());
+			}
+		}
+		assertEquals(trapezoids.size(), leaves);
+		assertTrue(trapezoids.containsAll(trapMap.getAllTrapezoids()));
+
+		// queries still find the right faces
+		final Random random = new Random(38);
+		for (int q = 0; q < 10_000; q++) {
+			final double x = random.nextDouble() * n;
+			final double y = random.nextDouble() * n;
+			assertEquals((int) x * n + (int) y, trapMap.findContainingFace(x, y));
+		}
+	}
+
+	@Test
+	void testRectQueries() {
+		final int n = 20;
+		final TrapMap trapMap = unitGrid(n); // face of cell (i, j) is i * n + j
+
+		int[] faces = trapMap.findFacesInRect(2.5, 3.5, 4.5, 4.5);
+		Arrays.sort(faces);
+		assertArrayEquals(new int[] { 43, 44, 63, 64, 83, 84 }, faces);
+		assertEquals(6, trapMap.findTrapezoidsInRect(2.5, 3.5, 4.5, 4.5).size());
+
+		// a degenerate rectangle at a grid vertex touches the four cells around it
+		faces = trapMap.findFacesInRect(5, 5, 5, 5);
+		Arrays.sort(faces);
+		assertArrayEquals(new int[] { 84, 85, 104, 105 }, faces);
+
+		assertEquals(trapMap.getAllTrapezoids().size(), trapMap.findTrapezoidsInRect(-1, -1, n + 1, n + 1).size());
+		assertEquals(0, trapMap.findFacesInRect(n + 1, 0, n + 2, n).length);
+		assertEquals(0, trapMap.findTrapezoidsInRect(3, 3, 2, 2).size()); // empty rectangle
+	}
+
+	@Test
+	void testSegmentQueries() {
+		final int n = 20;
+		final TrapMap trapMap = unitGrid(n); // face of cell (i, j) is i * n + j
+
+		final List<Trapezoid> crossed = trapMap.findTrapezoidsAlongSegment(3.5, 0.5, 0.5, 1.7);
+		final int[] faces = crossed.stream().mapToInt(Trapezoid::getFaceId).toArray();
+		assertArrayEquals(new int[] { 60, 40, 41, 21, 1 }, faces); // ordered from the first endpoint
+		assertEquals(0, trapMap.findTrapezoidsAlongSegment(-5, -5, -1, 30).size());
+
+		assertEquals(new Segment(1, 0, 1, 1), trapMap.firstHit(0.5, 0.5, 1, 0));
+		assertEquals(new Segment(0, 4, 1, 4), trapMap.firstHit(0.5, 3.5, 0, 2));
+		assertEquals(new Segment(0, 7, 0, 8), trapMap.firstHit(-10, 7.5, 1, 0)); // from outside the map
+		assertEquals(new Segment(2, 2, 3, 2), trapMap.firstHit(2.5, 2, 0, 1)); // the origin lies on a segment
+		assertNull(trapMap.firstHit(-10, 7.5, -1, 0));
+		assertThrows(IllegalArgumentException.class, () -> trapMap.firstHit(1, 1, 0, 0));
+	}
+
+	@Test
+	void testVerticalRayQueries() {
+		final List<Segment> segments = new ArrayList<>();
+		segments.add(new Segment(0, 0, 10, 0));
+		segments.add(new Segment(2, 3, 8, 5));
+		segments.add(new Segment(0, 10, 10, 10));
+		final TrapMap trapMap = new TrapMap(segments);
+
+		assertEquals(segments.get(1), trapMap.segmentAbove(5, 1));
+		assertEquals(segments.get(0), trapMap.segmentBelow(5, 1));
+		assertEquals(segments.get(2), trapMap.segmentAbove(5, 6));
+		assertEquals(segments.get(1), trapMap.segmentBelow(5, 6));
+		assertEquals(segments.get(0), trapMap.segmentAbove(1, -5)); // below the map
+		assertNull(trapMap.segmentBelow(1, -5));
+		assertEquals(segments.get(1), trapMap.segmentAbove(5, 4)); // on a segment
+		assertEquals(segments.get(1), trapMap.segmentBelow(5, 4));
+		assertNull(trapMap.segmentAbove(5, 11)); // bounding box segments are excluded
+		assertEquals(segments.get(2), trapMap.segmentBelow(5, 11));
+		assertNull(trapMap.segmentAbove(-1, 5));
+
+		final double[] coords = { 5, 1, 1, 5, 5, 20 };
+		assertArrayEquals(new Segment[] { segments.get(1), segments.get(2), null }, trapMap.segmentsAbove(coords));
+		assertArrayEquals(new Segment[] { segments.get(0), segments.get(0), segments.get(2) }, trapMap.segmentsBelow(coords));
+	}
+
+	@Test
+	void testNearestSegment() {
+		final TrapMap trapMap = unitGrid(20);
+
+		assertEquals(new Segment(2, 5, 2, 6), trapMap.nearestSegment(2.3, 5.6));
+		assertEquals(0.3, trapMap.distanceToBoundary(2.3, 5.6), 1e-6);
+		assertEquals(0, trapMap.distanceToBoundary(4, 7.5), 1e-9); // on a segment
+
+		// outside the map
+		assertEquals(new Segment(0, 5, 0, 6), trapMap.nearestSegment(-3, 5.5));
+		assertEquals(3, trapMap.distanceToBoundary(-3, 5.5), 1e-9);
+		assertEquals(5, trapMap.distanceToBoundary(-3, -4), 1e-9);
+		assertEquals(5, trapMap.distanceToBoundary(23, 24), 1e-9);
+
+		// randomized noded inputs against a brute-force scan
+		final Random random = new Random(33);
+		for (int iteration = 0; iteration < 30; iteration++) {
+			final List<Segment> segments = new ArrayList<>();
+			for (int i = 0; i < 5 + random.nextInt(30); i++) {
+				// small integer coordinates give shared x-coordinates and vertical segments
+				segments.add(new Segment(random.nextInt(12), random.nextInt(12), random.nextInt(12), random.nextInt(12)));
+			}
+			segments.removeIf(s -> s.getLeftPoint().equals(s.getRightPoint()));
+			final Collection<Segment> noded = TrapMap.nodeSegments(segments);
+			final TrapMap randomMap = new TrapMap(noded, true); // throws if the noding missed a crossing
+			final List<PVector> vertices = new ArrayList<>();
+			for (Segment s : noded) {
+				vertices.add(s.getLeftPoint());
+				vertices.add(s.getRightPoint());
+			}
+			for (int q = 0; q < 200; q++) {
+				final double x;
+				final double y;
+				switch (q % 4) {
+					case 0 : // on a vertex's x-coordinate
+						x = vertices.get(random.nextInt(vertices.size())).x;
+						y = random.nextDouble() * 16 - 2;
+						break;
+					case 1 : // on a vertex
+						final PVector v = vertices.get(random.nextInt(vertices.size()));
+						x = v.x;
+						y = v.y;
+						break;
+					default : // anywhere, including outside the map
+						x = random.nextDouble() * 16 - 2;
+						y = random.nextDouble() * 16 - 2;
+				}
+				double nearest = Double.POSITIVE_INFINITY;
+				for (Segment s : noded) {
+					nearest = Math.min(nearest, distance(s, x, y));
+				}
+				assertEquals(nearest, randomMap.distanceToBoundary(x, y), 1e-6, "iteration " + iteration + " at " + x + ", " + y);
+				assertEquals(nearest, distance(randomMap.nearestSegment(x, y), x, y), 1e-6);
+			}
+		}
+	}
+
+	/**
+	 * @return the Euclidean distance from a point to a segment
+	 */
+	private static double distance(Segment s, double x, double y) {
+		final double ax = s.getLeftPoint().x;
+		final double ay = s.getLeftPoint().y;
+		final double dx = s.getRightPoint().x - ax;
+		final double dy = s.getRightPoint().y - ay;
+		final double t = Math.max(0, Math.min(1, ((x - ax) * dx + (y - ay) * dy) / (dx * dx + dy * dy)));
+		return Math.hypot(x - ax - t * dx, y - ay - t * dy);
+	}
+
+	@Test
+	void testFaceTracker() {
+		final TrapMap trapMap = unitGrid(20); // face of cell (i, j) is i * 20 + j
+		final List<double[]> events = new ArrayList<>();
+		final FaceTracker tracker = new FaceTracker(trapMap, (faceId, entry, exit) -> events.add(new double[] { faceId, entry, exit }));
+
+		tracker.addVertex(0.5, 0.5);
+		tracker.addVertex(2.5, 0.5);
+		tracker.addVertex(2.5, 0.5); // repeated vertex
+		tracker.addVertex(2.5, 1.5);
+		assertEquals(3, events.size()); // the last face is still open
+		tracker.finish();
+		final double[][] expected = { { 0, 0, 0.25 }, { 20, 0.25, 0.75 }, { 40, 0.75, 2.5 }, { 41, 2.5, 3 } };
+		assertEquals(expected.length, events.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertArrayEquals(expected[i], events.get(i), 1e-9);
+		}
+
+		// leaving the map
+		events.clear();
+		tracker.addVertex(19.5, 0.5);
+		tracker.addVertex(21.5, 0.5);
+		tracker.finish();
+		assertEquals(2, events.size());
+		assertArrayEquals(new double[] { 380, 0, 0.25 }, events.get(0), 1e-9);
+		assertArrayEquals(new double[] { -1, 0.25, 1 }, events.get(1), 1e-9);
+
+		// random traces over a grid with sloping edges (so that the walk follows
+		// neighbor links), against locating the trapezoids along each step afresh
+		final Random random = new Random(34);
+		final int n = 12;
+		final TrapMap jittered = new TrapMap(gridRings(n, 0.3, 34), gridRingOffsets(n));
+		for (int trace = 0; trace < 50; trace++) {
+			final double[] vertices = new double[2 * 40];
+			vertices[0] = random.nextDouble() * (n + 2) - 1;
+			vertices[1] = random.nextDouble() * (n + 2) - 1;
+			for (int v = 2; v < vertices.length; v++) {
+				vertices[v] = vertices[v - 2] + random.nextGaussian() * (trace % 2 == 0 ? 0.3 : 3);
+			}
+			events.clear();
+			final FaceTracker walker = new FaceTracker(jittered, (faceId, entry, exit) -> events.add(new double[] { faceId, entry, exit }));
+			for (int v = 0; v < vertices.length; v += 2) {
+				walker.addVertex(vertices[v], vertices[v + 1]);
+			}
+			walker.finish();
+			final List<double[]> expectedEvents = trackByDescent(jittered, vertices);
+			assertEquals(expectedEvents.size(), events.size());
+			for (int i = 0; i < events.size(); i++) {
+				assertArrayEquals(expectedEvents.get(i), events.get(i), 1e-9);
+			}
+		}
+
+		// traces inside an axis-aligned grid, stepping between points of a lattice
+		// (through vertices, and across vertical segments): the walk crosses every
+		// segment locally, never descending from the root
+		for (int trace = 0; trace < 50; trace++) {
+			final double[] vertices = new double[2 * 40];
+			vertices[0] = 0.1 + random.nextDouble() * 11.8; // start off the lattice, inside a face
+			vertices[1] = 0.1 + random.nextDouble() * 11.8;
+			for (int v = 2; v < vertices.length; v += 2) {
+				do { // not along a grid line, where either face could be reported
+					vertices[v] = 0.25 * (1 + random.nextInt(47));
+					vertices[v + 1] = 0.25 * (1 + random.nextInt(47));
+				} while (vertices[v] == vertices[v - 2] && vertices[v] % 1 == 0
+						|| vertices[v + 1] == vertices[v - 1] && vertices[v + 1] % 1 == 0);
+			}
+			events.clear();
+			final FaceTracker walker = new FaceTracker(trapMap, (faceId, entry, exit) -> events.add(new double[] { faceId, entry, exit }));
+			for (int v = 0; v < vertices.length; v += 2) {
+				walker.addVertex(vertices[v], vertices[v + 1]);
+			}
+			walker.finish();
+			assertEquals(0, walker.descents);
+			final List<double[]> expectedEvents = trackByDescent(trapMap, vertices);
+			assertEquals(expectedEvents.size(), events.size());
+			for (int i = 0; i < events.size(); i++) {
+				assertArrayEquals(expectedEvents.get(i), events.get(i), 1e-9);
+			}
+		}
+	}
+
+	/**
+	 * Classifies a polyline by locating the trapezoids along each of its steps
+	 * from the root, merging consecutive stretches in the same face.
+	 */
+	private static List<double[]> trackByDescent(TrapMap trapMap, double[] vertices) {
+		final List<double[]> events = new ArrayList<>();
+		events.add(new double[] { trapMap.findContainingFace(vertices[0], vertices[1]), 0, 0 });
+		for (int v = 2; v < vertices.length; v += 2) {
+			final double x1 = vertices[v - 2], y1 = vertices[v - 1], x2 = vertices[v], y2 = vertices[v + 1];
+			final double base = v / 2 - 1;
+			final QueryRegion.Line line = new QueryRegion.Line(x1, y1, x2 - x1, y2 - y1, 0, 1);
+			double t = 0;
+			for (Trapezoid trapezoid : trapMap.findTrapezoidsAlongSegment(x1, y1, x2, y2)) {
+				line.intersects(trapezoid);
+				if (line.exit <= t + 1e-9 || line.exit <= line.enter) {
+					continue;
+				}
+				if (line.enter > t + 1e-9) {
+					extend(events, -1, base + t, base + line.enter);
+				}
+				extend(events, trapezoid.getFaceId(), base + Math.max(t, line.enter), base + line.exit);
+				t = line.exit;
+			}
+			if (t < 1 - 1e-9) {
+				extend(events, -1, base + t, base + 1);
+			}
+		}
+		return events;
+	}
+
+	private static void extend(List<double[]> events, int faceId, double entry, double exit) {
+		final double[] last = events.get(events.size() - 1);
+		if (last[0] == faceId) {
+			last[2] = exit;
+		} else {
+			events.add(new double[] { faceId, last[2], exit });
+		}
+	}
+
+	@Test
+	void testBulkLocation() {
+		final int n = 20;
+		final TrapMap trapMap = unitGrid(n);
+		final double[] coords = queryPoints(10_000, -1, n + 1); // include points outside the grid
+		final int[] expected = new int[coords.length / 2];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = trapMap.findContainingFace(coords[2 * i], coords[2 * i + 1]);
+		}
+		assertArrayEquals(expected, trapMap.findContainingFaces(coords, false));
+		assertArrayEquals(expected, trapMap.findContainingFaces(coords, true));
+		assertArrayEquals(expected, trapMap.findContainingFaces(coords));
+		assertEquals(0, trapMap.findContainingFaces(new double[0]).length);
+	}
+
+	@Test
+	void testTrapezoidsTileBounds() {
+		// trapezoids whose left and right points share a y-coordinate (such as cells
+		// along the bounding box, whose walls both stand on its edge) have area, and
+		// were once dropped as if they had zero height
+		final TrapMap trapMap = new TrapMap(gridRings(6, 0.3, 21), gridRingOffsets(6));
+		final List<Trapezoid> trapezoids = trapMap.getAllTrapezoids();
+		final float[] corners = trapMap.getTrapezoidCorners();
+		double area = 0;
+		int level = 0; // trapezoids with area whose left and right points share a y-coordinate
+		for (int i = 0; i < trapezoids.size(); i++) {
+			final int c = 8 * i; // from top left clockwise
+			final double a = (corners[c + 2] - corners[c]) * ((corners[c + 1] - corners[c + 7]) + (corners[c + 3] - corners[c + 5])) / 2;
+			assertTrue(a > 0);
+			area += a;
+			if (trapezoids.get(i).getLeftBound().y == trapezoids.get(i).getRightBound().y) {
+				level++;
+			}
+		}
+		assertTrue(level > 0);
+		assertEquals(6 * 6, area, 1e-4); // they tile the grid's outline, its bounding box
+		assertEquals(trapezoids.size(), trapMap.findTrapezoidsInRect(0, 0, 6, 6).size());
+		assertEquals(36, trapMap.findFacesInRect(0, 0, 6, 6).length);
+	}
+
+	@Test
+	void testTrapezoidCorners() {
+		// a quad whose vertices split its sloping edges at non-integer corners
+		final TrapMap trapMap = new TrapMap(new double[] { 0, 0, 10, 1, 7, 7, 2, 5 }, new int[] { 0 });
+		final List<Trapezoid> all = trapMap.getAllTrapezoids();
+		final float[] corners = trapMap.getTrapezoidCorners();
+		assertEquals(8 * all.size(), corners.length);
+
+		final FloatBuffer buffer = FloatBuffer.allocate(corners.length + 1);
+		buffer.put(-1);
+		trapMap.getTrapezoidCorners(buffer);
+		assertEquals(corners.length + 1, buffer.position());
+		assertThrows(BufferOverflowException.class, () -> trapMap.getTrapezoidCorners(FloatBuffer.allocate(7)));
+
+		final double[] precise = new double[9];
+		for (int i = 0; i < all.size(); i++) {
+			final Trapezoid t = all.get(i);
+			final List<PVector> vertices = t.getBoundaryVertices();
+			t.getCorners(precise, 1);
+			for (int c = 0; c < 4; c++) {
+				assertEquals(vertices.get(c).x, corners[8 * i + 2 * c]);
+				assertEquals(vertices.get(c).y, corners[8 * i + 2 * c + 1]);
+				assertEquals(vertices.get(c).x, precise[1 + 2 * c], 1e-5);
+				assertEquals(vertices.get(c).y, precise[1 + 2 * c + 1], 1e-5);
+				assertEquals(corners[8 * i + 2 * c], buffer.get(1 + 8 * i + 2 * c));
+			}
+			// corners are clockwise from top left: the left edge is vertical
+			assertEquals(corners[8 * i], corners[8 * i + 6]);
+			assertTrue(corners[8 * i + 1] >= corners[8 * i + 7]);
+		}
+		// some corner lies on a sloping edge, at a non-integer position
+		boolean fractional = false;
+		for (float c : corners) {
+			fractional |= c != Math.rint(c);
+		}
+		assertTrue(fractional);
+	}
+
+	@Test
+	void testMeshExport() throws IOException {
+		final int n = 10;
+		final TrapMap trapMap = unitGrid(n);
+		final TrapezoidMesh mesh = trapMap.toMesh();
+		assertEquals((n + 1) * (n + 1), mesh.getVertexCount()); // grid corners, each stored once
+		assertEquals(3 * mesh.getTriangleCount(), mesh.getIndices().length);
+
+		// the triangles of each face cover exactly its cell
+		final float[] v = mesh.getVertices();
+		final double[] area = new double[n * n];
+		for (int t = 0; t < mesh.getTriangleCount(); t++) {
+			final int a = mesh.getIndices()[3 * t], b = mesh.getIndices()[3 * t + 1], c = mesh.getIndices()[3 * t + 2];
+			final double cross = (v[2 * b] - v[2 * a]) * (v[2 * c + 1] - v[2 * a + 1]) - (v[2 * b + 1] - v[2 * a + 1]) * (v[2 * c] - v[2 * a]);
+			assertTrue(cross < 0, "clockwise"); // clockwise, with y up
+			area[mesh.getFaceIds()[t]] -= cross / 2;
+		}
+		for (double a : area) {
+			assertEquals(1, a, 1e-9);
+		}
+
+		// a triangular face is split by the wall through its apex into two pinched
+		// trapezoids, each giving one triangle
+		final TrapezoidMesh triangle = new TrapMap(new double[] { 0, 0, 4, 0, 2, 3 }, new int[] { 0 }).toMesh();
+		final Set<Integer> used = new HashSet<>();
+		int inFace = 0;
+		for (int t = 0; t < triangle.getTriangleCount(); t++) {
+			if (triangle.getFaceIds()[t] == 0) {
+				inFace++;
+				for (int i = 0; i < 3; i++) {
+					used.add(triangle.getIndices()[3 * t + i]);
+				}
+			}
+		}
+		assertEquals(2, inFace);
+		assertEquals(4, used.size()); // the corners, and the foot of the wall
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mesh.writeTo(Channels.newChannel(out));
+		final ByteBuffer written = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(8 + 4 * (v.length + 4 * mesh.getTriangleCount()), written.remaining());
+		assertEquals(mesh.getVertexCount(), written.getInt());
+		assertEquals(mesh.getTriangleCount(), written.getInt());
+		assertEquals(v[3], written.getFloat(8 + 12));
+		assertEquals(mesh.getFaceIds()[mesh.getTriangleCount() - 1], written.getInt(written.capacity() - 4));
+	}
+
+	@Test
+	void testCompiledLayouts() {
+		final int n = 20;
+		final TrapMap trapMap = unitGrid(n);
+		for (CompiledTrapMap.Layout layout : CompiledTrapMap.Layout.values()) {
+			final CompiledTrapMap compiled = trapMap.compile(layout);
+			assertEquals(trapMap.compile().getNodeCount(), compiled.getNodeCount());
+			final double[] points = queryPoints(10_000, -1, n + 1); // include points outside the grid
+			for (int i = 0; i < points.length; i += 2) {
+				final double x = points[i];
+				final double y = points[i + 1];
+				assertEquals(trapMap.findContainingFace(x, y), compiled.findContainingFace(x, y));
+				assertSame(trapMap.findNearestTrapezoid(x, y), compiled.findNearestTrapezoid(x, y));
+				assertSame(trapMap.findContainingTrapezoid(x, y), compiled.findContainingTrapezoid(x, y));
+			}
+			// vertices and edges, where the shear decides
+			for (int i = 0; i <= n; i++) {
+				for (int j = 0; j <= n; j++) {
+					assertSame(trapMap.findNearestTrapezoid(i, j), compiled.findNearestTrapezoid(i, j));
+					assertSame(trapMap.findNearestTrapezoid(i + 0.5, j), compiled.findNearestTrapezoid(i + 0.5, j));
+				}
+			}
+			final double[] coords = { 0.5, 0.5, 5.5, 19.5, -1, 3 };
+			assertArrayEquals(new int[] { 0, 5 * n + 19, -1 }, compiled.findContainingFaces(coords));
+		}
+	}
+
+	@Test
+	void testOffHeap() {
+		final int n = 20;
+		final TrapMap trapMap = unitGrid(n);
+		final OffHeapTrapMap offHeap = trapMap.compile().toOffHeap();
+		assertTrue(offHeap.getMemoryUsage() > 0);
+		final float[] bounds = new float[4];
+		final float[] segment = new float[4];
+		final double[] points = queryPoints(10_000, -1, n + 1); // include points outside the grid
+		for (int i = 0; i < points.length; i += 2) {
+			final double x = points[i];
+			final double y = points[i + 1];
+			final int face = trapMap.findContainingFace(x, y);
+			assertEquals(face, offHeap.findContainingFace(x, y));
+			assertEquals(trapMap.findContainingTrapezoid(x, y) == null, offHeap.findContainingTrapezoid(x, y) < 0);
+
+			// the trapezoid's geometry and neighbors match the heap map's
+			final Trapezoid expected = trapMap.findNearestTrapezoid(x, y);
+			final int t = offHeap.findNearestTrapezoid(x, y);
+			offHeap.getBounds(t, bounds);
+			assertArrayEquals(new float[] { expected.getLeftBound().x, expected.getLeftBound().y, expected.getRightBound().x,
+					expected.getRightBound().y }, bounds);
+			offHeap.getSegment(offHeap.getUpperBound(t), segment);
+			assertEquals(expected.getUpperBound().getLeftPoint().x, segment[0]);
+			assertEquals(expected.getUpperBound().getRightPoint().y, segment[3]);
+			final int neighbor = offHeap.getUpperRightNeighbor(t);
+			if (expected.getUpperRightNeighbor() == null) {
+				assertEquals(-1, neighbor);
+			} else {
+				offHeap.getBounds(neighbor, bounds);
+				assertEquals(expected.getUpperRightNeighbor().getLeftBound().x, bounds[0]);
+			}
+		}
+		final double[] coords = { 0.5, 0.5, 5.5, 19.5, -1, 3 };
+		assertArrayEquals(new int[] { 0, 5 * n + 19, -1 }, offHeap.findContainingFaces(coords));
+
+		offHeap.close();
+		assertTrue(offHeap.isClosed());
+		assertEquals(0, offHeap.getMemoryUsage());
+		assertThrows(IllegalStateException.class, () -> offHeap.findContainingFace(0.5, 0.5));
+		offHeap.close(); // no effect
+	}
+
+	@Test
+	void testTrapMapSet() {
+		final TrapMap grid = unitGrid(10);
+		final TrapMapSet layers = new TrapMapSet(grid, unitGrid(4).compile(), unitGrid(7));
+		assertEquals(3, layers.size());
+		assertArrayEquals(new int[] { 3 * 10 + 2, 3 * 4 + 2, 3 * 7 + 2 }, layers.locateAll(3.5, 2.5, null));
+		assertArrayEquals(new int[] { 9 * 10 + 9, -1, -1 }, layers.locateAll(9.5, 9.5, new int[3]));
+
+		// a batch big enough to be spatially sorted
+		final double[] coords = queryPoints(5000, -1, 11); // include points outside the grids
+		final int[] faces = layers.locateAll(coords);
+		assertEquals(3 * 5000, faces.length);
+		for (int i = 0; i < 5000; i++) {
+			for (int k = 0; k < 3; k++) {
+				assertEquals(layers.getLayer(k).findContainingFace(coords[2 * i], coords[2 * i + 1]), faces[3 * i + k]);
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> new TrapMapSet(grid, null));
+	}
+
+	@Test
+	void testOverlay() {
+		final TrapMap grid = unitGrid(4);
+		final TrapMap square = new TrapMap(new double[] { 1.5, 0.5, 5, 0.5, 5, 2.5, 1.5, 2.5 }, new int[] { 0 });
+		final TrapMapOverlay overlay = new TrapMapSet(grid, square).overlay(0, 1);
+		assertEquals(Collections.emptyList(), overlay.validate());
+		// 9 cells meet the square, 14 extend outside it, and the square extends outside the grid
+		assertEquals(9 + 14 + 1, overlay.getFaceCount());
+		final int face = overlay.findContainingFace(1.75, 0.75);
+		assertEquals(4, overlay.getFaceA(face));
+		assertEquals(0, overlay.getFaceB(face));
+		assertEquals(face, overlay.findFace(4, 0));
+		assertEquals(-1, overlay.findFace(0, 0));
+		assertEquals(overlay.findFace(-1, 0), overlay.findContainingFace(4.5, 1));
+		assertEquals(-1, overlay.findContainingFace(4.5, 3));
+
+		// the overlay's own faces are adjacent across horizontal and vertical segments
+		final FaceGraph faceGraph = overlay.getFaceGraph();
+		assertEquals(3, faceGraph.getDegree(face));
+		assertEquals(1, faceGraph.getSharedLength(face, overlay.findFace(4, -1)), 1e-6); // an L around the corner
+		assertEquals(0.5, faceGraph.getSharedLength(face, overlay.findFace(5, 0)), 1e-6);
+		assertEquals(0.5, faceGraph.getSharedLength(face, overlay.findFace(8, 0)), 1e-6);
+		assertEquals(0, faceGraph.getSharedLength(face, overlay.findFace(9, 0)), 1e-6); // only touches at a vertex
+
+		// overlay meshes with crossing edges, against locating in each input
+		final Random random = new Random(7);
+		for (int iteration = 0; iteration < 10; iteration++) {
+			final TrapMap a = ringMap(randomMesh(random, 2 + random.nextInt(6), 2 + random.nextInt(6)), 0, 0);
+			final TrapMap b = ringMap(randomMesh(random, 2 + random.nextInt(6), 2 + random.nextInt(6)), 1.3, 2.7);
+			final TrapMapOverlay ab = new TrapMapOverlay(a, b);
+			assertEquals(Collections.emptyList(), ab.validate(), "iteration " + iteration);
+			for (int q = 0; q < 500; q++) {
+				final double x = random.nextDouble() * 36;
+				final double y = random.nextDouble() * 36;
+				if (a.distanceToBoundary(x, y) < 1e-3 || b.distanceToBoundary(x, y) < 1e-3) {
+					continue; // intersections are rounded to float precision
+				}
+				final int f = ab.findContainingFace(x, y);
+				assertEquals(ab.findFace(a.findContainingFace(x, y), b.findContainingFace(x, y)), f);
+				if (f != -1) {
+					assertEquals(a.findContainingFace(x, y), ab.getFaceA(f));
+					assertEquals(b.findContainingFace(x, y), ab.getFaceB(f));
+				}
+			}
+			final FaceGraph abGraph = ab.getFaceGraph();
+			assertTrue(abGraph.getAdjacentFaces().length > 0);
+			for (int f : abGraph.getFaces()) {
+				for (int g : abGraph.getAdjacentFaces(f)) { // symmetric
+					assertEquals(abGraph.getSharedLength(f, g), abGraph.getSharedLength(g, f), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	void testVersioned() {
+		final int n = 8;
+		final double[] coords = gridRings(n, 0, 0);
+		final int[] ringOffsets = gridRingOffsets(n);
+		final int[] merged = new int[n * n];
+		for (int r = 0; r < merged.length; r++) {
+			merged[r] = r == 1 ? 0 : r; // cell 1 joins cell 0
+		}
+		final List<TrapMap> versions = new ArrayList<>();
+		versions.add(new TrapMap(coords, ringOffsets));
+		versions.add(new TrapMap(coords, ringOffsets, merged));
+		versions.add(new TrapMap(new double[] { 1.5, 1.5, 6.5, 2.5, 4.5, 6.5 }, new int[] { 0 })); // a new boundary
+		versions.add(versions.get(0)); // reverted
+		final VersionedTrapMap versioned = new VersionedTrapMap(versions);
+		assertEquals(4, versioned.getVersionCount());
+		assertEquals(1, versioned.locate(0.5, 1.5, 0));
+		assertEquals(0, versioned.locate(0.5, 1.5, 1));
+		assertEquals(-1, versioned.locate(0.5, 1.5, 2));
+		assertEquals(1, versioned.locate(0.5, 1.5, 3));
+		assertEquals(-1, versioned.locate(9, 9, 0));
+		assertEquals(1, versioned.atVersion(3).findContainingFace(0.5, 1.5));
+		assertThrows(IllegalArgumentException.class, () -> versioned.locate(0.5, 0.5, 4));
+		// histories store changes only, rather than a face per version
+		assertTrue(versioned.getChangeCount() < 4 * versioned.getHistoryCount());
+
+		final Random random = new Random(11);
+		for (int q = 0; q < 5000; q++) {
+			final double x = random.nextDouble() * (n + 2) - 1;
+			final double y = random.nextDouble() * (n + 2) - 1;
+			final int v = random.nextInt(versions.size());
+			if (versions.get(v).distanceToBoundary(x, y) > 1e-6) {
+				assertEquals(versions.get(v).findContainingFace(x, y), versioned.locate(x, y, v));
+			}
+		}
+
+		// versions built on demand, one at a time
+		final int[] builds = new int[versions.size()];
+		final VersionedTrapMap onDemand = new VersionedTrapMap(versions.size(), v -> {
+			builds[v]++;
+			switch (v) {
+				case 1 :
+					return new TrapMap(coords, ringOffsets, merged);
+				case 2 :
+					return new TrapMap(new double[] { 1.5, 1.5, 6.5, 2.5, 4.5, 6.5 }, new int[] { 0 });
+				default :
+					return new TrapMap(coords, ringOffsets);
+			}
+		});
+		assertArrayEquals(new int[] { 2, 2, 2, 2 }, builds); // once for the segments, once for the faces
+		assertEquals(versioned.getChangeCount(), onDemand.getChangeCount());
+		for (int q = 0; q < 1000; q++) {
+			final double x = random.nextDouble() * (n + 2) - 1;
+			final double y = random.nextDouble() * (n + 2) - 1;
+			final int v = random.nextInt(versions.size());
+			assertEquals(versioned.locate(x, y, v), onDemand.locate(x, y, v));
+		}
+		assertThrows(IllegalArgumentException.class, () -> new VersionedTrapMap(0, v -> versions.get(0)));
+	}
+
+	@Test
+	void testHolder() {
+		final int[] size = { 4 };
+		final TrapMapHolder holder = new TrapMapHolder(() -> {
+			if (size[0] < 0) {
+				throw new IllegalArgumentException("no data");
+			}
+			return unitGrid(size[0]);
+		}, TrapMapHolder.Form.OFF_HEAP);
+		assertThrows(IllegalStateException.class, () -> holder.findContainingFace(0.5, 0.5));
+
+		final FaceLocator first = holder.rebuild().join();
+		assertEquals(unitGrid(4).findContainingFace(2.5, 1.5), holder.findContainingFace(2.5, 1.5));
+		assertEquals(-1, holder.findContainingFace(6.5, 6.5));
+		assertEquals(1, holder.getBuildCount());
+		assertEquals(unitGrid(4).getAllTrapezoids().size(), holder.getTrapezoidCount());
+		assertTrue(holder.getOffHeapBytes() > 0);
+		assertTrue(holder.getLastBuildNanos() > 0);
+
+		size[0] = 8;
+		holder.rebuild().join();
+		assertTrue(((OffHeapTrapMap) first).isClosed()); // replaced, and released
+		assertEquals(unitGrid(8).findContainingFace(6.5, 6.5), holder.findContainingFace(6.5, 6.5));
+
+		size[0] = -1; // a failed rebuild keeps the current map
+		assertThrows(CompletionException.class, () -> holder.rebuild().join());
+		assertEquals(1, holder.getFailedBuildCount());
+		assertTrue(holder.getLastFailure() instanceof IllegalArgumentException);
+		assertArrayEquals(unitGrid(8).findContainingFaces(new double[] { 6.5, 6.5, 0.5, 7.5 }),
+				holder.findContainingFaces(new double[] { 6.5, 6.5, 0.5, 7.5 }));
+
+		final FaceLocator last = holder.get();
+		holder.close();
+		assertTrue(((OffHeapTrapMap) last).isClosed());
+		assertThrows(IllegalStateException.class, () -> holder.findContainingFace(0.5, 0.5));
+		assertThrows(IllegalStateException.class, holder::rebuild);
+
+		// an error (such as running out of memory) is counted as a failed rebuild
+		final TrapMapHolder failing = new TrapMapHolder(() -> {
+			throw new OutOfMemoryError("simulated");
+		}, TrapMapHolder.Form.OFF_HEAP);
+		final CompletionException e = assertThrows(CompletionException.class, () -> failing.rebuild().join());
+		assertTrue(e.getCause() instanceof OutOfMemoryError);
+		assertEquals(1, failing.getFailedBuildCount());
+		assertTrue(failing.getLastFailure() instanceof OutOfMemoryError);
+		failing.close();
+
+		// closing lets a rebuild under way finish (unpublished) and fails those waiting
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		final TrapMapHolder slow = new TrapMapHolder(() -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				interrupted.set(true);
+			}
+			return unitGrid(4);
+		}, TrapMapHolder.Form.MAP);
+		final CompletableFuture<FaceLocator> running = slow.rebuild();
+		final CompletableFuture<FaceLocator> waiting = slow.rebuild();
+		assertDoesNotThrow(() -> started.await());
+		final Thread closer = new Thread(slow::close);
+		closer.start();
+		while (closer.getState() != Thread.State.TIMED_WAITING) { // closed, and awaiting the rebuild
+			Thread.yield();
+		}
+		release.countDown();
+		assertDoesNotThrow(() -> closer.join());
+		assertThrows(CompletionException.class, running::join);
+		assertThrows(CompletionException.class, waiting::join);
+		assertFalse(interrupted.get());
+		assertEquals(0, slow.getBuildCount());
+		assertNull(slow.get());
+	}
+
+	@Test
+	void testHolderConcurrency() throws InterruptedException {
+		final AtomicInteger rebuilds = new AtomicInteger();
+		final TrapMapHolder holder = new TrapMapHolder(() -> unitGrid(rebuilds.getAndIncrement() % 2 == 0 ? 4 : 8),
+				TrapMapHolder.Form.OFF_HEAP);
+		holder.rebuild().join();
+		final double[] coords = { 1.5, 2.5, 3.5, 3.5 };
+		final int[] small = unitGrid(4).findContainingFaces(coords);
+		final int[] large = unitGrid(8).findContainingFaces(coords);
+
+		// query from several threads while off-heap maps are replaced (and closed)
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final AtomicInteger queries = new AtomicInteger();
+		final Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				try {
+					while (!done.get()) {
+						final int[] faces = holder.findContainingFaces(coords); // from one map or the other, never a mix
+						assertTrue(Arrays.equals(small, faces) || Arrays.equals(large, faces), Arrays.toString(faces));
+						final int face = holder.findContainingFace(1.5, 2.5);
+						assertTrue(face == small[0] || face == large[0]);
+						queries.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					failure.compareAndSet(null, e);
+				}
+			});
+			threads[i].start();
+		}
+		while (queries.get() == 0 && failure.get() == null) {
+			Thread.yield(); // the queries are under way
+		}
+		FaceLocator previous = holder.get();
+		for (int r = 0; r < 30; r++) {
+			final FaceLocator next = holder.rebuild().join();
+			assertTrue(((OffHeapTrapMap) previous).isClosed());
+			previous = next;
+		}
+		done.set(true);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		holder.close();
+		assertNull(failure.get());
+		assertTrue(queries.get() > 0);
+		assertEquals(31, holder.getBuildCount());
+	}
+
+	@Test
+	void testGraphs() {
+		final TrapMap grid = unitGrid(4); // face i * 4 + j is the cell at (i, j)
+		final FaceGraph faceGraph = grid.getFaceGraph();
+		assertEquals(16, faceGraph.getFaceCount());
+		assertArrayEquals(new int[] { 1, 4 }, faceGraph.getAdjacentFaces(0));
+		assertArrayEquals(new int[] { 1, 4, 6, 9 }, faceGraph.getAdjacentFaces(5));
+		assertEquals(3, faceGraph.getDegree(7));
+		assertEquals(2 * 2 * 4 * 3, faceGraph.getAdjacentFaces().length);
+		assertEquals(faceGraph.getAdjacentFaces().length, faceGraph.getOffsets()[16]);
+		assertEquals(0, new TrapMap(Arrays.asList(new Segment(0, 0, 1, 1))).getFaceGraph().getAdjacentFaces().length);
+
+		// sparse face IDs: rows follow the IDs present, not the largest ID
+		final double[] pair = { 0, 0, 1, 0, 1, 1, 0, 1, 1, 0, 2, 0, 2, 1, 1, 1 };
+		for (int big : new int[] { 1_000_000_000, Integer.MAX_VALUE }) {
+			final FaceGraph sparse = new TrapMap(pair, new int[] { 0, 4 }, new int[] { 7, big }).getFaceGraph();
+			assertEquals(2, sparse.getFaceCount());
+			assertArrayEquals(new int[] { 7, big }, sparse.getFaces());
+			assertArrayEquals(new int[] { 0, 1, 2 }, sparse.getOffsets());
+			assertArrayEquals(new int[] { big }, sparse.getAdjacentFaces(7));
+			assertArrayEquals(new int[] { 7 }, sparse.getAdjacentFaces(big));
+			assertEquals(1.0, sparse.getSharedLength(big, 7));
+			assertEquals(1, sparse.indexOf(big));
+			assertEquals(-1, sparse.indexOf(8));
+			assertEquals(0, sparse.getDegree(8));
+			assertEquals(0, sparse.getAdjacentFaces(-1).length);
+		}
+
+		// shared boundary lengths: an L-shaped face beside a square and a rectangle
+		final TrapMap shapes = new TrapMap(new double[] { 0, 0, 2, 0, 2, 1, 1, 1, 1, 2, 0, 2, // L
+				1, 1, 2, 1, 2, 2, 1, 2, // square in the notch
+				2, 0, 3, 0, 3, 2, 2, 2, 2, 1 }, // rectangle to the right (its edges meet both)
+				new int[] { 0, 6, 10 });
+		final FaceGraph lengths = shapes.getFaceGraph();
+		assertArrayEquals(new int[] { 1, 2 }, lengths.getAdjacentFaces(0));
+		assertArrayEquals(new double[] { 2, 1 }, lengths.getSharedLengths(0));
+		assertEquals(2.0, lengths.getSharedLength(1, 0));
+		assertEquals(1.0, lengths.getSharedLength(1, 2));
+		assertEquals(1.0, lengths.getSharedLength(2, 1));
+		assertEquals(0.0, lengths.getSharedLength(0, 0));
+		assertEquals(0.0, lengths.getSharedLength(5, 0));
+		for (int face = 0; face < 16; face++) {
+			final double[] shared = faceGraph.getSharedLengths(face);
+			assertEquals(faceGraph.getDegree(face), shared.length);
+			for (double length : shared) {
+				assertEquals(1.0, length);
+			}
+		}
+
+		final Random random = new Random(8);
+		final List<Segment> segments = new ArrayList<>();
+		for (int i = 0; i < 40; i++) {
+			segments.add(new Segment(random.nextInt(30), random.nextInt(30), random.nextInt(30), random.nextInt(30)));
+		}
+		for (TrapMap trapMap : Arrays.asList(grid, new TrapMap(TrapMap.nodeSegments(segments)))) {
+			final TrapezoidGraph graph = trapMap.toGraph();
+			assertEquals(trapMap.getAllTrapezoids().size(), graph.getProperCount());
+			final int[] neighbors = graph.getNeighbors();
+			assertEquals(4 * graph.getTrapezoidCount(), neighbors.length);
+			for (int i = 0; i < graph.getTrapezoidCount(); i++) {
+				final Trapezoid t = graph.getTrapezoid(i);
+				assertEquals(i, graph.indexOf(t));
+				assertEquals(graph.indexOf(t.getUpperLeftNeighbor()), neighbors[4 * i]);
+				assertEquals(graph.indexOf(t.getLowerRightNeighbor()), neighbors[4 * i + 3]);
+				assertEquals(t.getFaceId(), graph.getFaceIds()[i]);
+			}
+			for (int q = 0; q < 20; q++) {
+				final double x = random.nextDouble() * 30;
+				final double y = random.nextDouble() * 30;
+				final Trapezoid start = trapMap.findContainingTrapezoid(x, y);
+				if (start == null) {
+					continue; // outside the grid
+				}
+				final Set<Trapezoid> face = Collections.newSetFromMap(new IdentityHashMap<>());
+				for (int i : graph.floodFill(graph.indexOf(start))) {
+					face.add(graph.getTrapezoid(i));
+				}
+				final Set<Trapezoid> expected = Collections.newSetFromMap(new IdentityHashMap<>());
+				expected.addAll(trapMap.findFaceTrapezoids(x, y));
+				assertEquals(expected, face);
+			}
+		}
+	}
+
+	@Test
+	void testSnapTolerance() {
+		// a grid whose rings each place the shared vertices with their own noise
+		final int n = 6;
+		final Random random = new Random(3);
+		final double[] coords = gridRings(n, 0, 0);
+		final int[] ringOffsets = gridRingOffsets(n);
+		for (int k = 0; k < coords.length; k++) {
+			coords[k] += (random.nextDouble() - 0.5) * 1e-4;
+		}
+		final SegmentCollector exact = new SegmentCollector(coords.length / 2);
+		exact.addRings(coords, ringOffsets, null);
+		final SegmentCollector snapped = new SegmentCollector(coords.length / 2, 1e-3);
+		snapped.addRings(coords, ringOffsets, null);
+		assertEquals(4 * n * n, exact.segments().size()); // no edge is shared
+		assertEquals(2 * n * (n + 1), snapped.segments().size());
+
+		final TrapMap trapMap = new TrapMap(coords, ringOffsets, null, 1e-3);
+		assertEquals(Collections.emptyList(), trapMap.validate());
+		assertEquals(2 * 2 * n * (n - 1), trapMap.getFaceGraph().getAdjacentFaces().length);
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				assertEquals(i * n + j, trapMap.findContainingFace(i + 0.5, j + 0.5));
+				assertEquals(i * n + j, trapMap.findContainingFace(i + 0.01, j + 0.99));
+			}
+		}
+		assertThrows(IllegalArgumentException.class, () -> new TrapMap(coords, ringOffsets, null, -1));
+
+		// the same from a float buffer, read from its position
+		final FloatBuffer buffer = FloatBuffer.allocate(coords.length + 2);
+		buffer.put(new float[] { 99, 99 });
+		for (double c : coords) {
+			buffer.put((float) c);
+		}
+		buffer.position(2);
+		final TrapMap fromBuffer = new TrapMap(buffer, ringOffsets, null, 1e-3);
+		assertEquals(2, buffer.position());
+		assertEquals(2 * 2 * n * (n - 1), fromBuffer.getFaceGraph().getAdjacentFaces().length);
+		assertEquals(2 * n + 4, fromBuffer.findContainingFace(2.5, 4.5));
+	}
+
+	@Test
+	void testRandomizedDifferential() {
+		final Random random = new Random(2024);
+		for (int iteration = 0; iteration < 40; iteration++) {
+			final List<double[]> rings = randomMesh(random, 2 + random.nextInt(8), 2 + random.nextInt(8));
+			final List<PShape> shapes = new ArrayList<>();
+			for (double[] ring : rings) {
+				final PShape shape = new PShape();
+				shape.setFamily(PShape.PATH);
+				shape.beginShape();
+				for (int i = 0; i < ring.length; i += 2) {
+					shape.vertex((float) ring[i], (float) ring[i + 1]);
+				}
+				shape.endShape(PConstants.CLOSE);
+				shapes.add(shape);
+			}
+			final TrapMap trapMap = new TrapMap(shapes);
+			assertEquals(Collections.emptyList(), trapMap.validate(), "iteration " + iteration);
+
+			for (int q = 0; q < 500; q++) {
+				// half the queries share an x-coordinate with the mesh's vertices
+				final double x = q % 2 == 0 ? random.nextInt(40) : random.nextDouble() * 40;
+				final double y = random.nextDouble() * 40;
+				int expected = -1;
+				boolean onBoundary = false;
+				for (int r = 0; r < rings.size(); r++) {
+					onBoundary |= onRingBoundary(rings.get(r), x, y);
+					if (insideRing(rings.get(r), x, y)) {
+						expected = r;
+					}
+				}
+				if (!onBoundary) {
+					final PShape polygon = trapMap.findContainingPolygon(x, y);
+					assertEquals(expected, polygon == null ? -1 : shapes.indexOf(polygon), "iteration " + iteration + " at " + x + ", " + y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds the map of rings (each its own face), translated by (dx, dy).
+	 */
+	private static TrapMap ringMap(List<double[]> rings, double dx, double dy) {
+		final List<Double> coords = new ArrayList<>();
+		final int[] ringOffsets = new int[rings.size()];
+		for (int r = 0; r < rings.size(); r++) {
+			ringOffsets[r] = coords.size() / 2;
+			final double[] ring = rings.get(r);
+			for (int i = 0; i < ring.length; i += 2) {
+				coords.add(ring[i] + dx);
+				coords.add(ring[i + 1] + dy);
+			}
+		}
+		return new TrapMap(coords.stream().mapToDouble(Double::doubleValue).toArray(), ringOffsets);
+	}
+
+	/**
+	 * Generates a mesh over a grid of cells with integer vertices, jittered so that
+	 * many vertices share x-coordinates and edges are often vertical or collinear.
+	 * Each cell is a quad or (where its diagonal lies inside it) a pair of
+	 * triangles.
+	 *
+	 * @return the rings of the mesh
+	 */
+	private static List<double[]> randomMesh(Random random, int columns, int rows) {
+		final int spacing = 4;
+		final double[][] vx = new double[columns + 1][rows + 1];
+		final double[][] vy = new double[columns + 1][rows + 1];
+		for (int i = 0; i <= columns; i++) {
+			for (int j = 0; j <= rows; j++) {
+				final boolean interior = i > 0 && j > 0 && i < columns && j < rows;
+				vx[i][j] = i * spacing + (interior ? random.nextInt(3) - 1 : 0);
+				vy[i][j] = j * spacing + (interior ? random.nextInt(3) - 1 : 0);
+			}
+		}
+		final List<double[]> rings = new ArrayList<>();
+		for (int i = 0; i < columns; i++) {
+			for (int j = 0; j < rows; j++) {
+				final double[] quad = { vx[i][j], vy[i][j], vx[i + 1][j], vy[i + 1][j], vx[i + 1][j + 1], vy[i + 1][j + 1], vx[i][j + 1],
+						vy[i][j + 1] };
+				final boolean convex = cross(quad, 0, 2, 4) > 0 && cross(quad, 0, 4, 6) > 0; // so the diagonal is inside
+				if (!convex || random.nextBoolean()) {
+					rings.add(quad);
+				} else { // split along the diagonal
+					rings.add(new double[] { quad[0], quad[1], quad[2], quad[3], quad[4], quad[5] });
+					rings.add(new double[] { quad[0], quad[1], quad[4], quad[5], quad[6], quad[7] });
+				}
+			}
+		}
+		return rings;
+	}
+
+	/**
+	 * @return the cross product of the vectors from vertex a to vertices b and c
+	 *         (given as indices of x-coordinates in the ring)
+	 */
+	private static double cross(double[] ring, int a, int b, int c) {
+		return (ring[b] - ring[a]) * (ring[c + 1] - ring[a + 1]) - (ring[b + 1] - ring[a + 1]) * (ring[c] - ring[a]);
+	}
+
+	/**
+	 * Point-in-polygon by crossing number (boundary points are undefined).
+	 */
+	private static boolean insideRing(double[] ring, double x, double y) {
+		boolean inside = false;
+		for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+			if ((ring[i + 1] > y) != (ring[j + 1] > y)
+					&& x < ring[j] + (y - ring[j + 1]) * (ring[i] - ring[j]) / (ring[i + 1] - ring[j + 1])) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+
+	private static boolean onRingBoundary(double[] ring, double x, double y) {
+		for (int i = 0, j = ring.length - 2; i < ring.length; j = i, i += 2) {
+			if (Segment.distanceSq(x, y, ring[j], ring[j + 1], ring[i], ring[i + 1]) < 1e-12) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int queryGrid(TrapMap trapMap, double[] points, int rounds) {
+		int sum = 0;
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < points.length; i += 2) {
+				sum += trapMap.findContainingFace(points[i], points[i + 1]);
+				sum += trapMap.findNearestTrapezoid(points[i], points[i + 1]).getFaceId();
+			}
+		}
+		return sum;
 	}
 
 }
@@ -0,0 +1,116 @@
+package micycle.trapmap.benchmark;
+
+import static micycle.trapmap.TestMaps.gridRingOffsets;
+import static micycle.trapmap.TestMaps.gridRings;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import micycle.trapmap.CompiledTrapMap;
+import micycle.trapmap.TrapMap;
+
+/**
+ * Point location throughput of the compiled search structure under each node
+ * layout, against the object graph of the map itself. The mesh is large enough
+ * (at the larger grid size) that the structure does not fit in the CPU cache,
+ * so random queries are dominated by cache misses.
+ *
+ * @author Michael Carleton
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LayoutBenchmark {
+
+	private static final int QUERIES = 1 << 16;
+
+	/**
+	 * The map and the queries, which don't depend on the layout.
+	 */
+	@State(Scope.Benchmark)
+	public static class Grid {
+
+		@Param({ "100", "500" })
+		int gridSize;
+
+		TrapMap trapMap;
+		double[] queries; // x0, y0, x1, y1...
+
+		@Setup
+		public void setup() {
+			trapMap = new TrapMap(gridRings(gridSize, 0.25, 42), gridRingOffsets(gridSize));
+			final SplittableRandom random = new SplittableRandom(1337);
+			queries = new double[QUERIES * 2];
+			for (int i = 0; i < queries.length; i++) {
+				queries[i] = random.nextDouble(0, gridSize);
+			}
+		}
+	}
+
+	/**
+	 * The map compiled under each layout; only the benchmark that uses it is run
+	 * once per layout.
+	 */
+	@State(Scope.Benchmark)
+	public static class Compiled {
+
+		@Param({ "BREADTH_FIRST", "DEPTH_FIRST", "VAN_EMDE_BOAS" })
+		CompiledTrapMap.Layout layout;
+
+		CompiledTrapMap compiled;
+
+		@Setup
+		public void setup(Grid grid) {
+			compiled = grid.trapMap.compile(layout);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int compiled(Grid grid, Compiled compiled) {
+		final double[] queries = grid.queries;
+		int sum = 0;
+		for (int i = 0; i < queries.length; i += 2) {
+			sum += compiled.compiled.findContainingFace(queries[i], queries[i + 1]);
+		}
+		return sum;
+	}
+
+	/**
+	 * The object graph, for reference (run once per grid size, not per layout).
+	 */
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int objectGraph(Grid grid) {
+		final double[] queries = grid.queries;
+		int sum = 0;
+		for (int i = 0; i < queries.length; i += 2) {
+			sum += grid.trapMap.findContainingFace(queries[i], queries[i + 1]);
+		}
+		return sum;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		final Options options = new OptionsBuilder().include(LayoutBenchmark.class.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,104 @@
+package micycle.trapmap.benchmark;
+
+import static micycle.trapmap.TestMaps.gridRingOffsets;
+import static micycle.trapmap.TestMaps.gridRings;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import micycle.trapmap.TrapMap;
+
+/**
+ * Point location throughput over a jittered grid mesh, with queries spread
+ * over (and slightly beyond) the mesh. The bulk benchmarks compare locating a
+ * batch of random queries in the given order with locating them in Hilbert
+ * curve order.
+ * <p>
+ * Run with the GC profiler (as {@link #main(String[]) main()} does, or
+ * <code>-prof gc</code> from the JMH command line): the query path should not
+ * allocate, so <code>gc.alloc.rate.norm</code> should be ~0 B/op.
+ *
+ * @author Michael Carleton
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+	private static final int QUERIES = 1 << 16;
+
+	@Param({ "100", "300" })
+	int gridSize;
+
+	private TrapMap trapMap;
+	private double[] queries; // x0, y0, x1, y1...
+
+	@Setup
+	public void setup() {
+		trapMap = new TrapMap(gridRings(gridSize, 0.25, 42), gridRingOffsets(gridSize));
+		final SplittableRandom random = new SplittableRandom(1337);
+		queries = new double[QUERIES * 2];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = random.nextDouble(-1, gridSize + 1);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int findContainingFace() {
+		int sum = 0;
+		for (int i = 0; i < queries.length; i += 2) {
+			sum += trapMap.findContainingFace(queries[i], queries[i + 1]);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int findNearestTrapezoid() {
+		int sum = 0;
+		for (int i = 0; i < queries.length; i += 2) {
+			sum += trapMap.findNearestTrapezoid(queries[i], queries[i + 1]).getFaceId();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int[] findContainingFacesInGivenOrder() {
+		return trapMap.findContainingFaces(queries, false);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(QUERIES)
+	public int[] findContainingFacesSpatiallySorted() {
+		return trapMap.findContainingFaces(queries, true);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		final Options options = new OptionsBuilder().include(QueryBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,99 @@
+package micycle.trapmap.benchmark;
+
+import static micycle.trapmap.TestMaps.gridRingOffsets;
+import static micycle.trapmap.TestMaps.gridRings;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import micycle.trapmap.TrapMap;
+import micycle.trapmap.server.TrapMapClient;
+import micycle.trapmap.server.TrapMapServer;
+
+/**
+ * Round trips of batches of points through a {@link TrapMapServer} on
+ * localhost, by batch size: small batches measure the per-frame overhead (of
+ * the network stack and the server loop), large ones the throughput of the bulk
+ * query path. Run with several threads (<code>-t</code>) for concurrent clients;
+ * each thread has its own connection.
+ *
+ * @author Michael Carleton
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Server {
+
+		TrapMapServer server;
+
+		@Setup
+		public void setup() throws IOException {
+			final int n = 300;
+			server = new TrapMapServer(new TrapMap(gridRings(n, 0.25, 42), gridRingOffsets(n)), 0);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			server.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Client {
+
+		@Param({ "1", "64", "4096" })
+		int batchSize;
+
+		TrapMapClient client;
+		double[] coords; // x0, y0, x1, y1...
+
+		@Setup
+		public void setup(Server server) throws IOException {
+			client = new TrapMapClient(server.server.getAddress());
+			final SplittableRandom random = new SplittableRandom(1337);
+			coords = new double[2 * batchSize];
+			for (int i = 0; i < coords.length; i++) {
+				coords[i] = random.nextDouble(0, 300);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			client.close();
+		}
+	}
+
+	@Benchmark
+	public int[] roundTrip(Client client) throws IOException {
+		return client.client.locate(client.coords);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		final Options options = new OptionsBuilder().include(ServerBenchmark.class.getSimpleName()).threads(4).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,163 @@
+package micycle.trapmap.flow;
+
+import static micycle.trapmap.TestMaps.unitGrid;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import micycle.trapmap.FaceLocator;
+import micycle.trapmap.OffHeapTrapMap;
+import micycle.trapmap.TrapMap;
+
+class TrapMapProcessorTests {
+
+	@Test
+	void testOrderedBatches() throws InterruptedException {
+		final TrapMap trapMap = unitGrid(20);
+		final TrapMapProcessor processor = new TrapMapProcessor(trapMap, 3, 100);
+		final Collector collector = new Collector();
+		processor.subscribe(collector);
+
+		final List<double[]> batches = new ArrayList<>();
+		final Random random = new Random(5);
+		try (SubmissionPublisher<double[]> source = new SubmissionPublisher<>()) {
+			source.subscribe(processor);
+			for (int b = 0; b < 50; b++) {
+				final double[] coords = new double[2 * random.nextInt(350)]; // some batches are split
+				for (int i = 0; i < coords.length; i++) {
+					coords[i] = random.nextDouble() * 22 - 1;
+				}
+				batches.add(coords);
+				source.submit(coords);
+			}
+		}
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		assertNull(collector.error.get());
+		assertEquals(batches.size(), collector.results.size());
+		for (int b = 0; b < batches.size(); b++) {
+			assertArrayEquals(trapMap.findContainingFaces(batches.get(b)), collector.results.get(b));
+		}
+		assertEquals(0, processor.getQueueDepth());
+		assertEquals(batches.size(), processor.getEmittedCount());
+	}
+
+	@Test
+	void testBackpressure() throws InterruptedException {
+		final TrapMapProcessor processor = new TrapMapProcessor(unitGrid(4), 2, 10);
+		final Collector collector = new Collector(2); // requests 2 batches, then nothing
+		processor.subscribe(collector);
+		final Collector second = new Collector();
+		processor.subscribe(second);
+		assertTrue(second.error.get() instanceof IllegalStateException);
+
+		try (SubmissionPublisher<double[]> source = new SubmissionPublisher<>()) {
+			source.subscribe(processor);
+			for (int b = 0; b < 100; b++) {
+				source.submit(new double[] { 0.5, 0.5, 1.5, 2.5 });
+			}
+			// 2 emitted batches, and 2 per worker requested ahead of them
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (processor.getLocatedBatches() < 4 && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			assertEquals(2, processor.getEmittedCount());
+			assertEquals(4, processor.getQueueDepth());
+			assertEquals(4, processor.getLocatedBatches());
+			assertEquals(0, processor.getDemand());
+			assertEquals(2, collector.results.size());
+			assertArrayEquals(new int[] { 0, 6 }, collector.results.get(1));
+			processor.close();
+		}
+	}
+
+	@Test
+	void testFailure() throws InterruptedException {
+		final OffHeapTrapMap offHeap = unitGrid(4).compile().toOffHeap();
+		offHeap.close(); // queries now fail
+		final TrapMapProcessor processor = new TrapMapProcessor(offHeap, 2, 10);
+		final Collector collector = new Collector();
+		processor.subscribe(collector);
+		try (SubmissionPublisher<double[]> source = new SubmissionPublisher<>()) {
+			source.subscribe(processor);
+			source.submit(new double[] { 0.5, 0.5 });
+		}
+		assertTrue(collector.done.await(10, TimeUnit.SECONDS));
+		assertTrue(collector.error.get() instanceof IllegalStateException);
+
+		// an error (not just an exception) thrown by a query also fails the stream
+		final TrapMapProcessor failing = new TrapMapProcessor(new FaceLocator() {
+			@Override
+			public int findContainingFace(double x, double y) {
+				throw new AssertionError("query failed");
+			}
+
+			@Override
+			public int[] findContainingFaces(double[] coords) {
+				throw new AssertionError("query failed");
+			}
+		}, 2, 10);
+		final Collector second = new Collector();
+		failing.subscribe(second);
+		try (SubmissionPublisher<double[]> source = new SubmissionPublisher<>()) {
+			source.subscribe(failing);
+			source.submit(new double[] { 0.5, 0.5 });
+		}
+		assertTrue(second.done.await(10, TimeUnit.SECONDS));
+		assertTrue(second.error.get() instanceof AssertionError);
+	}
+
+	/**
+	 * Consumes results one at a time, up to a limit.
+	 */
+	private static class Collector implements Flow.Subscriber<int[]> {
+
+		final List<int[]> results = Collections.synchronizedList(new ArrayList<>());
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final CountDownLatch done = new CountDownLatch(1);
+		private final long limit; // the number of batches to request
+		private Flow.Subscription subscription;
+
+		Collector() {
+			this(Long.MAX_VALUE);
+		}
+
+		Collector(long limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(int[] faces) {
+			results.add(faces);
+			if (results.size() < limit) {
+				subscription.request(1);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error.set(throwable);
+			done.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			done.countDown();
+		}
+	}
+}
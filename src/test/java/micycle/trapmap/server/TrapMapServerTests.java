@@ -0,0 +1,112 @@
+package micycle.trapmap.server;
+
+import static micycle.trapmap.TestMaps.queryPoints;
+import static micycle.trapmap.TestMaps.unitGrid;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import micycle.trapmap.FaceLocator;
+import micycle.trapmap.TrapMap;
+
+class TrapMapServerTests {
+
+	@Test
+	void testBatches() throws IOException {
+		final TrapMap trapMap = unitGrid(10);
+		try (TrapMapServer server = new TrapMapServer(trapMap, 0); TrapMapClient client = new TrapMapClient(server.getAddress())) {
+			final double[] coords = queryPoints(10_000, -1, 11); // larger than the server's buffers
+			assertArrayEquals(trapMap.findContainingFaces(coords), client.locate(coords));
+			assertArrayEquals(new int[0], client.locate(new double[0]));
+			assertArrayEquals(new int[] { 3 * 10 + 4, -1 }, client.locate(new double[] { 3.5, 4.5, 20, 20 }));
+
+			// hot swap
+			final FaceLocator previous = server.swap(unitGrid(5));
+			assertSame(trapMap, previous);
+			assertArrayEquals(new int[] { 3 * 5 + 4, -1 }, client.locate(new double[] { 3.5, 4.5, 7.5, 7.5 }));
+		}
+	}
+
+	@Test
+	void testPipelinedAndInvalidFrames() throws IOException, InterruptedException {
+		try (TrapMapServer server = new TrapMapServer(unitGrid(4), 0); SocketChannel channel = SocketChannel.open(server.getAddress())) {
+			// two frames written at once are answered in order
+			final ByteBuffer frames = ByteBuffer.allocate(2 * (4 + 16)).order(ByteOrder.LITTLE_ENDIAN);
+			frames.putInt(1).putDouble(0.5).putDouble(0.5);
+			frames.putInt(1).putDouble(1.5).putDouble(2.5);
+			frames.flip();
+			channel.write(frames);
+			final ByteBuffer replies = ByteBuffer.allocate(2 * 8).order(ByteOrder.LITTLE_ENDIAN);
+			while (replies.hasRemaining()) {
+				assertTrue(channel.read(replies) >= 0);
+			}
+			replies.flip();
+			assertEquals(1, replies.getInt());
+			assertEquals(0, replies.getInt());
+			assertEquals(1, replies.getInt());
+			assertEquals(6, replies.getInt());
+
+			// many frames of different sizes, located by several workers, are answered in order
+			final Random random = new Random(46);
+			final List<double[]> batches = new ArrayList<>();
+			int replyBytes = 0;
+			final ByteBuffer many = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+			for (int b = 0; b < 40; b++) {
+				final double[] coords = new double[2 * random.nextInt(2000)];
+				many.putInt(coords.length / 2);
+				for (int i = 0; i < coords.length; i++) {
+					coords[i] = random.nextDouble() * 6 - 1;
+					many.putDouble(coords[i]);
+				}
+				batches.add(coords);
+				replyBytes += 4 + 2 * coords.length;
+			}
+			many.flip();
+			final Thread writer = new Thread(() -> {
+				try {
+					while (many.hasRemaining()) {
+						channel.write(many);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			writer.start();
+			final ByteBuffer answers = ByteBuffer.allocate(replyBytes).order(ByteOrder.LITTLE_ENDIAN);
+			while (answers.hasRemaining()) {
+				assertTrue(channel.read(answers) >= 0);
+			}
+			writer.join();
+			answers.flip();
+			final TrapMap grid = unitGrid(4);
+			for (double[] coords : batches) {
+				final int[] faces = new int[answers.getInt()];
+				for (int i = 0; i < faces.length; i++) {
+					faces[i] = answers.getInt();
+				}
+				assertArrayEquals(grid.findContainingFaces(coords), faces);
+			}
+
+			// a negative point count closes the connection...
+			final ByteBuffer invalid = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			invalid.putInt(-1);
+			invalid.flip();
+			channel.write(invalid);
+			assertEquals(-1, channel.read(ByteBuffer.allocate(4)));
+
+			// ...but not the server
+			try (TrapMapClient client = new TrapMapClient(server.getAddress())) {
+				assertArrayEquals(new int[] { 6 }, client.locate(new double[] { 1.5, 2.5 }));
+			}
+		}
+	}
+}